@@ -0,0 +1,80 @@
+package com.softwaremill.session
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+import scala.util.Try
+
+/**
+  * Compares a typical session serialized using a `MultiValueSessionSerializer` and encoded as a compact token, with the
+  * same session serialized using a `BinarySessionSerializer`. The length of the tokens is printed during the setup.
+  */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+class BinarySessionBenchmark {
+  import BinarySessionBenchmark._
+
+  @Param(Array("multiValue", "binary"))
+  var serializer: String = _
+
+  @Param(Array("false", "true"))
+  var encrypt: Boolean = _
+
+  var encodeSession: () => String = _
+  var decodeSession: () => SessionResult[_] = _
+
+  private val session = UserSession(1234567L, "acme-corporation", isAdmin = true, List("billing", "reports"))
+
+  @Setup
+  def setup(): Unit = {
+    val config = SessionConfig
+      .default(SessionUtil.randomServerSecret())
+      .copy(sessionEncryptData = encrypt, sessionTokenFormat = SessionTokenFormat.Compact)
+
+    serializer match {
+      case "multiValue" => prepare(config)(new BasicSessionEncoder[UserSession]()(multiValueSerializer))
+      case "binary"     => prepare(config)(new BinarySessionEncoder[UserSession]()(binarySerializer))
+    }
+  }
+
+  private def prepare(config: SessionConfig)(implicit encoder: SessionEncoder[UserSession]): Unit = {
+    val manager = new SessionManager[UserSession](config).clientSessionManager
+    val encoded = manager.encode(session)
+
+    encodeSession = () => manager.encode(session)
+    decodeSession = () => manager.decode(encoded)
+  }
+
+  @Benchmark
+  def encode(): String = encodeSession()
+
+  @Benchmark
+  def decode(): SessionResult[_] = decodeSession()
+}
+
+object BinarySessionBenchmark {
+  case class UserSession(userId: Long, tenantId: String, isAdmin: Boolean, groups: List[String])
+
+  val multiValueSerializer: SessionSerializer[UserSession, String] =
+    new MultiValueSessionSerializer[UserSession](
+      s =>
+        Map("userId" -> s.userId.toString,
+            "tenantId" -> s.tenantId,
+            "isAdmin" -> s.isAdmin.toString,
+            "groups" -> s.groups.mkString(",")),
+      m =>
+        Try(
+          UserSession(m("userId").toLong,
+                      m("tenantId"),
+                      m("isAdmin").toBoolean,
+                      m("groups").split(",").toList.filter(_.nonEmpty)))
+    )
+
+  val binarySerializer: BinarySessionSerializer[UserSession] =
+    BinarySessionSerializer
+      .tuple4[Long, String, Boolean, List[String]]
+      .xmap({ case (id, tenant, admin, groups) => UserSession(id, tenant, admin, groups) },
+            s => (s.userId, s.tenantId, s.isAdmin, s.groups))
+}
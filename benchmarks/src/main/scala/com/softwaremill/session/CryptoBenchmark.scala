@@ -0,0 +1,32 @@
+package com.softwaremill.session
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+/**
+  * Compares signing with a `Mac` created and keyed on every call, with signing using a [[KeyedMac]] engine, which is
+  * created once per secret.
+  */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+class CryptoBenchmark {
+  val secret: String = SessionUtil.randomServerSecret()
+  val message: String = s"${Long.MaxValue}-xuserId~1234&roles~admin%2Cuser"
+
+  val hmacSHA1: KeyedMac = KeyedMac.hmacSHA1(secret)
+  val hmacSHA256: KeyedMac = KeyedMac.hmacSHA256(secret)
+
+  @Benchmark
+  def hmacSHA1PerCall(): String = Crypto.sign_HmacSHA1_hex(message, secret)
+
+  @Benchmark
+  def hmacSHA1Keyed(): String = Crypto.sign_HmacSHA1_hex(message, hmacSHA1)
+
+  @Benchmark
+  def hmacSHA256PerCall(): String = Crypto.sign_HmacSHA256_base64_v0_5_2(message, secret)
+
+  @Benchmark
+  def hmacSHA256Keyed(): String = Crypto.sign_HmacSHA256_base64_v0_5_2(message, hmacSHA256)
+}
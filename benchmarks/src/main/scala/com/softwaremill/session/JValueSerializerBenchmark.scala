@@ -0,0 +1,59 @@
+package com.softwaremill.session
+
+import java.util.concurrent.TimeUnit
+
+import org.json4s.{DefaultFormats, JValue}
+import org.openjdk.jmh.annotations._
+
+import scala.util.Try
+
+/**
+  * Compares serializing case classes using json4s reflection (`JValueSessionSerializer.caseClass`) with serializers
+  * derived at compile time (`JValueSessionSerializer.derived`), on their own and as a part of encoding and decoding a
+  * JWT.
+  */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+class JValueSerializerBenchmark {
+  import JValueSerializerBenchmark._
+
+  @Param(Array("caseClass", "derived"))
+  var serializer: String = _
+
+  var sessionSerializer: SessionSerializer[TenantSession, JValue] = _
+  var encoder: JwtSessionEncoder[TenantSession] = _
+  var config: SessionConfig = _
+  var serialized: JValue = _
+  var encoded: String = _
+
+  @Setup
+  def setup(): Unit = {
+    sessionSerializer = serializer match {
+      case "caseClass" => JValueSessionSerializer.caseClass[TenantSession]
+      case "derived"   => derivedSerializer
+    }
+    encoder = new JwtSessionEncoder[TenantSession]()(sessionSerializer, DefaultFormats)
+    config = SessionConfig.default(SessionUtil.randomServerSecret())
+    serialized = sessionSerializer.serialize(session)
+    encoded = encoder.encode(session, System.currentTimeMillis(), config)
+  }
+
+  @Benchmark
+  def serialize(): JValue = sessionSerializer.serialize(session)
+
+  @Benchmark
+  def deserialize(): Try[TenantSession] = sessionSerializer.deserialize(serialized)
+
+  @Benchmark
+  def encode(): String = encoder.encode(session, System.currentTimeMillis(), config)
+
+  @Benchmark
+  def decode(): Try[DecodeResult[TenantSession]] = encoder.decode(encoded, config)
+}
+
+object JValueSerializerBenchmark {
+  val session: TenantSession = TenantSession("1234", "acme-corporation", "Europe/Warsaw", List("admin", "billing"))
+
+  val derivedSerializer: JValueSessionSerializer[TenantSession] = JValueSessionSerializer.derived[TenantSession]
+}
@@ -0,0 +1,56 @@
+package com.softwaremill.session
+
+import java.security.KeyPairGenerator
+import java.security.spec.ECGenParameterSpec
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+/**
+  * Compares signing and verifying using the supported JWS algorithms. For RS256 and HS256, also compares verifying
+  * signatures by signing the message again and comparing the results, with verifying them using
+  * [[JwsAlgorithm.verify]] (ES256 and EdDSA can only be verified using the public key).
+  *
+  * EdDSA requires Java 15 or newer.
+  */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+class JwsAlgorithmBenchmark {
+  @Param(Array("HS256", "RS256", "ES256", "EdDSA"))
+  var alg: String = _
+
+  val message: String = "eyJhbGciOiJIUzI1NiIsInR5cCI6IkpXVCJ9.eyJkYXRhIjp7InVzZXJJZCI6IjEyMzQifSwiZXhwIjoxNzAwMDAwMDAwfQ"
+
+  var algorithm: JwsAlgorithm = _
+  var signature: String = _
+
+  @Setup
+  def setup(): Unit = {
+    algorithm = alg match {
+      case "HS256" => JwsAlgorithm.HmacSHA256(SessionUtil.randomServerSecret())
+      case "RS256" =>
+        val keyPairGen = KeyPairGenerator.getInstance("RSA")
+        keyPairGen.initialize(2048)
+        JwsAlgorithm.Rsa(keyPairGen.generateKeyPair().getPrivate)
+      case "ES256" =>
+        val keyPairGen = KeyPairGenerator.getInstance("EC")
+        keyPairGen.initialize(new ECGenParameterSpec("secp256r1"))
+        val kp = keyPairGen.generateKeyPair()
+        JwsAlgorithm.Ecdsa(kp.getPrivate, kp.getPublic)
+      case "EdDSA" =>
+        val kp = KeyPairGenerator.getInstance("Ed25519").generateKeyPair()
+        JwsAlgorithm.EdDsa(kp.getPrivate, kp.getPublic)
+    }
+    signature = algorithm.sign(message)
+  }
+
+  @Benchmark
+  def sign(): String = algorithm.sign(message)
+
+  @Benchmark
+  def verifyBySigning(): Boolean = SessionUtil.constantTimeEquals(signature, algorithm.sign(message))
+
+  @Benchmark
+  def verify(): Boolean = algorithm.verify(message, signature)
+}
@@ -0,0 +1,41 @@
+package com.softwaremill.session
+
+import java.security.KeyPairGenerator
+import java.util.concurrent.TimeUnit
+
+import com.softwaremill.session.SessionConfig.JwsConfig
+import org.openjdk.jmh.annotations._
+
+/**
+  * Drives many threads through [[JwtSessionEncoder]] at once, using RS256, to check that signing and verifying scale
+  * with the number of threads (each thread reuses its own, already initialized signature engines). Run with a
+  * different number of threads using `-t`.
+  */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(16)
+class JwtConcurrencyBenchmark {
+  import JValueSessionSerializer._
+
+  val encoder = new JwtSessionEncoder[String]
+  val session = "1234"
+  var config: SessionConfig = _
+  var encoded: String = _
+
+  @Setup
+  def setup(): Unit = {
+    val keyPairGen = KeyPairGenerator.getInstance("RSA")
+    keyPairGen.initialize(2048)
+    config = SessionConfig
+      .default(SessionUtil.randomServerSecret())
+      .copy(jws = JwsConfig(alg = JwsAlgorithm.Rsa(keyPairGen.generateKeyPair().getPrivate)))
+    encoded = encoder.encode(session, System.currentTimeMillis(), config)
+  }
+
+  @Benchmark
+  def encode(): String = encoder.encode(session, System.currentTimeMillis(), config)
+
+  @Benchmark
+  def decode(): Boolean = encoder.decode(encoded, config).get.signatureMatches
+}
@@ -0,0 +1,70 @@
+package com.softwaremill.session
+
+import java.util.concurrent.TimeUnit
+
+import com.softwaremill.session.SessionConfig.JwtConfig
+import org.json4s.JValue
+import org.openjdk.jmh.annotations._
+
+/**
+  * Compares encoding and decoding JWTs using json4s documents, and using the streaming codec, with all registered
+  * claims included. HS256 signatures are used, so that the JSON processing is a significant part of the cost.
+  */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+class JwtJsonCodecBenchmark {
+  @Param(Array("json4s", "streaming"))
+  var codec: String = _
+
+  @Param(Array("string", "caseClass"))
+  var data: String = _
+
+  var config: SessionConfig = _
+  var encodeSession: Long => String = _
+  var decodeSession: String => Boolean = _
+  var encoded: String = _
+
+  @Setup
+  def setup(): Unit = {
+    config = SessionConfig
+      .default(SessionUtil.randomServerSecret())
+      .copy(
+        jwt = JwtConfig(
+          issuer = Some("issuer"),
+          subject = Some("subject"),
+          audience = Some("audience"),
+          expirationTimeout = Some(3600L),
+          notBeforeOffset = Some(0L),
+          includeIssuedAt = true,
+          includeRandomJwtId = true
+        ))
+
+    data match {
+      case "string"    => prepare("1234")(JValueSessionSerializer.stringToJValueSessionSerializer)
+      case "caseClass" =>
+        prepare(UserSession("1234", "admin,user", "john@example.com"))(JValueSessionSerializer.caseClass[UserSession])
+    }
+  }
+
+  private def prepare[T](session: T)(implicit serializer: SessionSerializer[T, JValue]): Unit = {
+    val selectedCodec = codec match {
+      case "json4s"    => JwtJsonCodec.Json4s
+      case "streaming" => JwtJsonCodec.Streaming
+    }
+    val encoder = new JwtSessionEncoder[T] {
+      override protected def jsonCodec: JwtJsonCodec = selectedCodec
+    }
+    encodeSession = nowMillis => encoder.encode(session, nowMillis, config)
+    decodeSession = s => encoder.decode(s, config).get.signatureMatches
+    encoded = encodeSession(System.currentTimeMillis())
+  }
+
+  @Benchmark
+  def encode(): String = encodeSession(System.currentTimeMillis())
+
+  @Benchmark
+  def decode(): Boolean = decodeSession(encoded)
+}
+
+case class UserSession(userId: String, roles: String, email: String)
@@ -0,0 +1,74 @@
+package com.softwaremill.session
+
+import java.net.{URLDecoder, URLEncoder}
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+import scala.util.Try
+
+/**
+  * Compares `MultiValueSessionSerializer` with its previous implementation, which encoded each key and value using
+  * `URLEncoder` and joined them with `mkString`, and decoded sessions using `split` and `URLDecoder`. The `plain`
+  * session only contains values which don't need escaping, the `escaped` one mostly values which do.
+  */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+class MultiValueSerializerBenchmark {
+  import MultiValueSerializerBenchmark._
+
+  @Param(Array("previous", "current"))
+  var implementation: String = _
+
+  @Param(Array("plain", "escaped"))
+  var values: String = _
+
+  var serializer: SessionSerializer[Map[String, String], String] = _
+  var session: Map[String, String] = _
+  var serialized: String = _
+  var serializedV0_5_2: String = _
+
+  @Setup
+  def setup(): Unit = {
+    serializer = implementation match {
+      case "previous" => new PreviousMultiValueSessionSerializer
+      case "current"  => new MultiValueSessionSerializer[Map[String, String]](identity, Try(_))
+    }
+    session = values match {
+      case "plain" => Map("userId" -> "1234", "tenant" -> "acme-corporation", "role" -> "admin", "expires" -> "0")
+      case "escaped" =>
+        Map("userId" -> "1234", "name" -> "Jan Kowalski", "email" -> "jan@example.com", "roles" -> "admin,user")
+    }
+    serialized = serializer.serialize(session)
+    serializedV0_5_2 = serialized.replace('~', '=')
+  }
+
+  @Benchmark
+  def serialize(): String = serializer.serialize(session)
+
+  @Benchmark
+  def deserialize(): Try[Map[String, String]] = serializer.deserialize(serialized)
+
+  @Benchmark
+  def deserializeV0_5_2(): Try[Map[String, String]] = serializer.deserializeV0_5_2(serializedV0_5_2)
+}
+
+object MultiValueSerializerBenchmark {
+  class PreviousMultiValueSessionSerializer extends SessionSerializer[Map[String, String], String] {
+    private def urlEncode(s: String): String = URLEncoder.encode(s, "UTF-8")
+    private def urlDecode(s: String): String = URLDecoder.decode(s, "UTF-8")
+
+    override def serialize(t: Map[String, String]) =
+      t.map { case (k, v) => urlEncode(k) + "~" + urlEncode(v) }.mkString("&")
+
+    override def deserialize(s: String) = deserialize(s, "~")
+
+    override def deserializeV0_5_2(s: String) = deserialize(s, "=")
+
+    private def deserialize(s: String, separator: String) = Try {
+      if (s == "") Map.empty[String, String]
+      else s.split("&").map(_.split(separator, 2)).map(p => urlDecode(p(0)) -> urlDecode(p(1))).toMap
+    }
+  }
+}
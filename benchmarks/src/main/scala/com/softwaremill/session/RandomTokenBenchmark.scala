@@ -0,0 +1,25 @@
+package com.softwaremill.session
+
+import java.math.BigInteger
+import java.security.SecureRandom
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+/**
+  * Generates refresh token selectors and tokens from many threads at once, as during a spike of logins, comparing
+  * [[SessionUtil.randomString]] with formatting a `BigInteger` drawn from a single, shared `SecureRandom`.
+  */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(8)
+class RandomTokenBenchmark {
+  val sharedRandom = new SecureRandom()
+
+  @Benchmark
+  def randomString(): String = SessionUtil.randomString(64)
+
+  @Benchmark
+  def sharedSecureRandomBigInteger(): String = new BigInteger(64 * 5, sharedRandom).toString(32)
+}
@@ -0,0 +1,99 @@
+package com.softwaremill.session
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.{ThreadLocalRandom, TimeUnit}
+
+import akka.util.ByteString
+import org.openjdk.jmh.annotations._
+
+import scala.collection.mutable
+import scala.concurrent.Future
+import scala.concurrent.duration.Duration
+
+/**
+  * Drives concurrent lookups and token rotations (storing a new token, which evicts the one expiring first, and removing
+  * another one) through [[InMemoryRefreshTokenStorage]], compared to the previous implementation (a `mutable.Map`,
+  * which isn't thread-safe, so here every operation synchronizes on it). Run with a different number of threads using
+  * `-tg <lookup threads>,<rotate threads>`.
+  */
+@State(Scope.Group)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+class RefreshTokenStorageBenchmark {
+  import RefreshTokenStorageBenchmark._
+
+  @Param(Array("synchronized", "concurrent"))
+  var implementation: String = _
+
+  var storage: RefreshTokenStorage[String] = _
+  val nextSelector = new AtomicLong()
+
+  @Setup
+  def setup(): Unit = {
+    storage = implementation match {
+      case "synchronized" => new SynchronizedRefreshTokenStorage
+      case "concurrent" =>
+        new InMemoryRefreshTokenStorage[String] {
+          override def maxSize = Size
+          override def logEnabled = false
+          override def log(msg: String) = ()
+        }
+    }
+    (1 to Size).foreach(_ => store())
+  }
+
+  private def store(): Future[Unit] = {
+    val i = nextSelector.incrementAndGet()
+    storage.store(RefreshTokenData("session", i.toString, TokenHash, Long.MaxValue - Size + i))
+  }
+
+  private def randomSelector(): String = {
+    val last = nextSelector.get()
+    (last - ThreadLocalRandom.current().nextLong(Size)).toString
+  }
+
+  @Benchmark
+  @Group("rotate")
+  @GroupThreads(6)
+  def lookup(): Future[Option[RefreshTokenLookupResult[String]]] = storage.lookup(randomSelector())
+
+  @Benchmark
+  @Group("rotate")
+  @GroupThreads(2)
+  def storeAndRemove(): Future[Unit] = {
+    store()
+    storage.remove(randomSelector())
+  }
+}
+
+object RefreshTokenStorageBenchmark {
+  val Size = 10000
+  val TokenHash: ByteString = ByteString(new Array[Byte](32))
+
+  /**
+    * The previous implementation of [[InMemoryRefreshTokenStorage]], synchronized, and evicting tokens in insertion
+    * order to stay bounded.
+    */
+  class SynchronizedRefreshTokenStorage extends RefreshTokenStorage[String] {
+    private val store = mutable.LinkedHashMap[String, RefreshTokenData[String]]()
+
+    override def lookup(selector: String) = Future.successful {
+      store.synchronized(store.get(selector)).map(d => RefreshTokenLookupResult(d.tokenHashBytes, d.expires, () => d.forSession))
+    }
+
+    override def store(data: RefreshTokenData[String]) = Future.successful {
+      store.synchronized {
+        store.put(data.selector, data)
+        if (store.size > Size) store.remove(store.head._1)
+      }
+      ()
+    }
+
+    override def remove(selector: String) = Future.successful {
+      store.synchronized(store.remove(selector))
+      ()
+    }
+
+    override def schedule[S](after: Duration)(op: => Future[S]) = ()
+  }
+}
@@ -0,0 +1,66 @@
+package com.softwaremill.session
+
+import java.util.concurrent.TimeUnit
+
+import com.softwaremill.session.SessionConfig.JwsConfig
+import org.json4s.DefaultFormats
+import org.openjdk.jmh.annotations._
+
+/**
+  * Measures how much work a [[SessionManager]] does to decode valid tokens, and to reject forged tokens (signed using
+  * another secret) and expired ones, as clients can send any number of those. Sessions expire after a minute; expired
+  * tokens have been issued an hour ago.
+  */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+class RejectedSessionBenchmark {
+  @Param(Array("legacy", "compact", "jwt"))
+  var format: String = _
+
+  @Param(Array("valid", "forged", "expired"))
+  var token: String = _
+
+  var decodeToken: () => SessionResult[_] = _
+
+  @Setup
+  def setup(): Unit = {
+    val secret = SessionUtil.randomServerSecret()
+    val default = SessionConfig.default(secret)
+    val config = default.copy(
+      sessionMaxAgeSeconds = Some(60L),
+      sessionTokenFormat = if (format == "compact") SessionTokenFormat.Compact else SessionTokenFormat.Legacy,
+      jwt = default.jwt.copy(expirationTimeout = Some(60L))
+    )
+    val forgedConfig =
+      config.copy(serverSecret = secret.reverse, jws = JwsConfig(alg = JwsAlgorithm.HmacSHA256(secret.reverse)))
+
+    format match {
+      case "jwt" =>
+        prepare(UserSession("1234", "admin,user", "john@example.com"), config, forgedConfig)(
+          new JwtSessionEncoder[UserSession]()(JValueSessionSerializer.caseClass[UserSession], DefaultFormats))
+      case _ =>
+        prepare(Map("userId" -> "1234", "roles" -> "admin,user", "email" -> "john@example.com"), config, forgedConfig)(
+          new BasicSessionEncoder[Map[String, String]])
+    }
+  }
+
+  private def prepare[T](session: T, config: SessionConfig, forgedConfig: SessionConfig)(
+      implicit encoder: SessionEncoder[T]): Unit = {
+    val now = System.currentTimeMillis()
+    def managerAt(millis: Long, config: SessionConfig) = new SessionManager[T](config) {
+      override def nowMillis: Long = millis
+    }.clientSessionManager
+
+    val manager = managerAt(now, config)
+    val encoded = token match {
+      case "valid"   => manager.encode(session)
+      case "forged"  => managerAt(now, forgedConfig).encode(session)
+      case "expired" => managerAt(now - 3600L * 1000L, config).encode(session)
+    }
+    decodeToken = () => manager.decode(encoded)
+  }
+
+  @Benchmark
+  def decode(): SessionResult[_] = decodeToken()
+}
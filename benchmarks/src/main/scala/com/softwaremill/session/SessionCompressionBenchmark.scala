@@ -0,0 +1,71 @@
+package com.softwaremill.session
+
+import java.util.concurrent.TimeUnit
+
+import org.json4s.DefaultFormats
+import org.openjdk.jmh.annotations._
+
+/**
+  * Measures the CPU cost of compressing large sessions (a user with many roles and some tenant metadata), with and
+  * without a preset dictionary, in the formats which benefit the most. The length of the resulting tokens, which is
+  * what compression trades the CPU time for, is printed during the setup. JWTs are never compressed using the
+  * dictionary.
+  */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+class SessionCompressionBenchmark {
+  @Param(Array("legacyAes", "compact", "jwt"))
+  var format: String = _
+
+  @Param(Array("none", "deflate", "dictionary"))
+  var compression: String = _
+
+  var encodeSession: () => String = _
+  var decodeSession: () => SessionResult[_] = _
+
+  private val roles = List("tenant-admin", "billing-viewer", "billing-editor", "reports-viewer", "reports-editor") ++
+    (1 to 25).map(i => s"project-$i-member")
+  private val dictionary = "tenantId=acme-corporation&roles=tenant-admin,billing-viewer,reports-viewer,project-"
+
+  @Setup
+  def setup(): Unit = {
+    val default = SessionConfig.default(SessionUtil.randomServerSecret())
+    val config = default.copy(
+      sessionEncryptData = format == "legacyAes",
+      sessionTokenFormat = if (format == "compact") SessionTokenFormat.Compact else SessionTokenFormat.Legacy,
+      sessionCompression = compression match {
+        case "none"       => None
+        case "deflate"    => Some(SessionCompression(256))
+        case "dictionary" => Some(SessionCompression(256, dictionary))
+      }
+    )
+
+    format match {
+      case "jwt" =>
+        prepare(TenantSession("1234", "acme-corporation", "Europe/Warsaw", roles), config)(
+          new JwtSessionEncoder[TenantSession]()(JValueSessionSerializer.caseClass[TenantSession], DefaultFormats))
+      case _ =>
+        val session =
+          Map("userId" -> "1234", "tenantId" -> "acme-corporation", "timeZone" -> "Europe/Warsaw", "roles" -> roles
+            .mkString(","))
+        prepare(session, config)(new BasicSessionEncoder[Map[String, String]])
+    }
+  }
+
+  private def prepare[T](session: T, config: SessionConfig)(implicit encoder: SessionEncoder[T]): Unit = {
+    val manager = new SessionManager[T](config).clientSessionManager
+    val encoded = manager.encode(session)
+
+    encodeSession = () => manager.encode(session)
+    decodeSession = () => manager.decode(encoded)
+  }
+
+  @Benchmark
+  def encode(): String = encodeSession()
+
+  @Benchmark
+  def decode(): SessionResult[_] = decodeSession()
+}
+
+case class TenantSession(userId: String, tenantId: String, timeZone: String, roles: List[String])
@@ -0,0 +1,50 @@
+package com.softwaremill.session
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+/**
+  * Measures a full encode and decode of a session, as done on every request which sets or reads a session, as well as
+  * rejecting a session with a tampered signature. Token migrations are enabled, as legacy tokens with a bad signature
+  * are then verified twice.
+  */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+class SessionEncoderBenchmark {
+  @Param(Array("none", "AES", "AES-GCM"))
+  var encryption: String = _
+
+  @Param(Array("legacy", "compact"))
+  var format: String = _
+
+  var config: SessionConfig = _
+  val encoder = new BasicSessionEncoder[Map[String, String]]
+  val session = Map("userId" -> "1234", "roles" -> "admin,user")
+  var encoded: String = _
+  var tampered: String = _
+
+  @Setup
+  def setup(): Unit = {
+    val default = SessionConfig
+      .default(SessionUtil.randomServerSecret())
+      .copy(sessionTokenFormat = SessionTokenFormat.fromValue(format),
+            tokenMigrationV0_5_2Enabled = true,
+            tokenMigrationV0_5_3Enabled = true)
+    config =
+      if (encryption == "none") default
+      else default.copy(sessionEncryptData = true, sessionEncryption = SessionEncryption.fromValue(encryption))
+    encoded = encoder.encode(session, System.currentTimeMillis(), config)
+    tampered = encoded.substring(0, encoded.length - 1) + (if (encoded.last == 'A') 'B' else 'A')
+  }
+
+  @Benchmark
+  def encode(): String = encoder.encode(session, System.currentTimeMillis(), config)
+
+  @Benchmark
+  def decode(): Boolean = encoder.decode(encoded, config).get.signatureMatches
+
+  @Benchmark
+  def decodeTampered(): Boolean = encoder.decode(tampered, config).map(_.signatureMatches).getOrElse(false)
+}
@@ -0,0 +1,337 @@
+package com.softwaremill.session.javadsl;
+
+import com.softwaremill.session.MultiValueSessionSerializer;
+import com.softwaremill.session.SessionSerializer;
+import com.softwaremill.session.converters.MapConverters;
+import scala.compat.java8.JFunction0;
+import scala.compat.java8.JFunction1;
+import scala.util.Try;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Creates {@link MultiValueSessionSerializer}s for Java beans and records. The properties are discovered using
+ * reflection once, when the serializer is created; each getter, setter and constructor is then bound to a
+ * {@link LambdaMetafactory}-generated function or a {@link MethodHandle}, so that (de)serializing a session only
+ * involves plain method calls.
+ */
+final class GeneratedSessionSerializers {
+
+    private GeneratedSessionSerializers() {
+    }
+
+    static <T> SessionSerializer<T, String> generate(Class<T> type, MethodHandles.Lookup lookup) {
+        try {
+            return isRecord(type) ? forRecord(type, lookup) : forBean(type, lookup);
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalArgumentException("Cannot generate a session serializer for " + type.getName(), t);
+        }
+    }
+
+    // records are only available since Java 16
+    private static boolean isRecord(Class<?> type) {
+        Class<?> superclass = type.getSuperclass();
+        return superclass != null && superclass.getName().equals("java.lang.Record");
+    }
+
+    /**
+     * A session property: how to read it from the session object, and how to convert its value to and from a string.
+     */
+    private static final class Property {
+        final String name;
+        final Function<Object, Object> getter;
+        final ValueCodec codec;
+
+        Property(String name, Function<Object, Object> getter, ValueCodec codec) {
+            this.name = name;
+            this.getter = getter;
+            this.codec = codec;
+        }
+    }
+
+    private static <T> SessionSerializer<T, String> forBean(Class<T> type, MethodHandles.Lookup lookup) throws Throwable {
+        Supplier<Object> constructor = constructor(type, lookup);
+
+        List<Property> properties = new ArrayList<>();
+        List<BiConsumer<Object, Object>> setterList = new ArrayList<>();
+        for (Method getter : sortedMethods(type)) {
+            String name = propertyName(getter);
+            if (name == null) {
+                continue;
+            }
+            Method setter;
+            try {
+                setter = type.getMethod("set" + capitalize(name), getter.getReturnType());
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException("No setter for the session property " + name + " of " + type.getName());
+            }
+            properties.add(new Property(name, getter(getter, lookup), ValueCodec.of(getter.getReturnType(), name)));
+            setterList.add(setter(setter, lookup));
+        }
+        @SuppressWarnings("unchecked")
+        BiConsumer<Object, Object>[] setters = setterList.toArray(new BiConsumer[0]);
+
+        return serializer(properties, values -> {
+            Object session = constructor.get();
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    setters[i].accept(session, values[i]);
+                }
+            }
+            return type.cast(session);
+        });
+    }
+
+    private static <T> SessionSerializer<T, String> forRecord(Class<T> type, MethodHandles.Lookup lookup) throws Throwable {
+        Object[] components = (Object[]) Class.class.getMethod("getRecordComponents").invoke(type);
+        List<Property> properties = new ArrayList<>();
+        Class<?>[] componentTypes = new Class<?>[components.length];
+        for (int i = 0; i < components.length; i++) {
+            Class<?> componentClass = components[i].getClass();
+            String name = (String) componentClass.getMethod("getName").invoke(components[i]);
+            Method accessor = (Method) componentClass.getMethod("getAccessor").invoke(components[i]);
+            componentTypes[i] = accessor.getReturnType();
+            properties.add(new Property(name, getter(accessor, lookup), ValueCodec.of(accessor.getReturnType(), name)));
+        }
+
+        MethodHandle constructor = lookup
+            .findConstructor(type, MethodType.methodType(void.class, componentTypes))
+            .asSpreader(Object[].class, components.length)
+            .asType(MethodType.methodType(Object.class, Object[].class));
+
+        return serializer(properties, values -> {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == null && componentTypes[i].isPrimitive()) {
+                    throw new IllegalArgumentException("Missing session property " + properties.get(i).name);
+                }
+            }
+            try {
+                return type.cast((Object) constructor.invokeExact(values));
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        });
+    }
+
+    private static <T> SessionSerializer<T, String> serializer(List<Property> properties, Function<Object[], T> create) {
+        Property[] props = properties.toArray(new Property[0]);
+        return new MultiValueSessionSerializer<>(
+            (JFunction1<T, scala.collection.immutable.Map<String, String>>) session -> {
+                Map<String, String> m = new HashMap<>();
+                for (Property p : props) {
+                    Object value = p.getter.apply(session);
+                    // undefined values are omitted
+                    if (value != null) {
+                        m.put(p.name, p.codec.format(value));
+                    }
+                }
+                return MapConverters.toImmutableMap(m);
+            },
+            (JFunction1<scala.collection.immutable.Map<String, String>, Try<T>>) m -> Try.apply((JFunction0<T>) () -> {
+                Object[] values = new Object[props.length];
+                for (int i = 0; i < props.length; i++) {
+                    scala.Option<String> value = m.get(props[i].name);
+                    values[i] = value.isDefined() ? props[i].codec.parse(value.get()) : null;
+                }
+                return create.apply(values);
+            })
+        );
+    }
+
+    private static List<Method> sortedMethods(Class<?> type) {
+        List<Method> methods = new ArrayList<>();
+        for (Method m : type.getMethods()) {
+            if (!Modifier.isStatic(m.getModifiers()) && m.getDeclaringClass() != Object.class) {
+                methods.add(m);
+            }
+        }
+        methods.sort(Comparator.comparing(Method::getName));
+        return methods;
+    }
+
+    private static String propertyName(Method m) {
+        if (m.getParameterCount() != 0 || m.getReturnType() == void.class) {
+            return null;
+        }
+        String name = m.getName();
+        if (name.startsWith("get") && name.length() > 3) {
+            return decapitalize(name.substring(3));
+        } else if (name.startsWith("is") && name.length() > 2 && m.getReturnType() == boolean.class) {
+            return decapitalize(name.substring(2));
+        } else {
+            return null;
+        }
+    }
+
+    private static String capitalize(String s) {
+        return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+    }
+
+    private static String decapitalize(String s) {
+        return Character.toLowerCase(s.charAt(0)) + s.substring(1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Supplier<Object> constructor(Class<?> type, MethodHandles.Lookup lookup) throws Throwable {
+        MethodHandle handle;
+        try {
+            handle = lookup.findConstructor(type, MethodType.methodType(void.class));
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("No public no-argument constructor in " + type.getName());
+        }
+        if (canGenerateLambdas(type, lookup)) {
+            CallSite site = LambdaMetafactory.metafactory(lookup, "get", MethodType.methodType(Supplier.class),
+                MethodType.methodType(Object.class), handle, MethodType.methodType(type));
+            return (Supplier<Object>) site.getTarget().invokeExact();
+        } else {
+            MethodHandle h = handle.asType(MethodType.methodType(Object.class));
+            return () -> {
+                try {
+                    return (Object) h.invokeExact();
+                } catch (Throwable t) {
+                    throw rethrow(t);
+                }
+            };
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Function<Object, Object> getter(Method method, MethodHandles.Lookup lookup) throws Throwable {
+        MethodHandle handle = lookup.unreflect(method);
+        if (canGenerateLambdas(method.getDeclaringClass(), lookup)) {
+            CallSite site = LambdaMetafactory.metafactory(lookup, "apply", MethodType.methodType(Function.class),
+                MethodType.methodType(Object.class, Object.class), handle,
+                MethodType.methodType(boxed(method.getReturnType()), method.getDeclaringClass()));
+            return (Function<Object, Object>) site.getTarget().invokeExact();
+        } else {
+            MethodHandle h = handle.asType(MethodType.methodType(Object.class, Object.class));
+            return session -> {
+                try {
+                    return (Object) h.invokeExact(session);
+                } catch (Throwable t) {
+                    throw rethrow(t);
+                }
+            };
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BiConsumer<Object, Object> setter(Method method, MethodHandles.Lookup lookup) throws Throwable {
+        MethodHandle handle = lookup.unreflect(method);
+        if (canGenerateLambdas(method.getDeclaringClass(), lookup)) {
+            CallSite site = LambdaMetafactory.metafactory(lookup, "accept", MethodType.methodType(BiConsumer.class),
+                MethodType.methodType(void.class, Object.class, Object.class), handle,
+                MethodType.methodType(void.class, method.getDeclaringClass(), boxed(method.getParameterTypes()[0])));
+            return (BiConsumer<Object, Object>) site.getTarget().invokeExact();
+        } else {
+            MethodHandle h = handle.asType(MethodType.methodType(void.class, Object.class, Object.class));
+            return (session, value) -> {
+                try {
+                    h.invokeExact(session, value);
+                } catch (Throwable t) {
+                    throw rethrow(t);
+                }
+            };
+        }
+    }
+
+    /**
+     * The classes generated by {@link LambdaMetafactory} are defined next to the lookup class, and reference the
+     * session class by name: this requires a lookup with private access, in a class loader which sees the session class.
+     * Otherwise (e.g. the session class is loaded by a child class loader), the method handles are invoked directly.
+     */
+    private static boolean canGenerateLambdas(Class<?> type, MethodHandles.Lookup lookup) {
+        if ((lookup.lookupModes() & MethodHandles.Lookup.PRIVATE) == 0) {
+            return false;
+        }
+        try {
+            return Class.forName(type.getName(), false, lookup.lookupClass().getClassLoader()) == type;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static Class<?> boxed(Class<?> type) {
+        return type.isPrimitive() ? MethodType.methodType(type).wrap().returnType() : type;
+    }
+
+    /**
+     * Converts property values to and from strings: strings, primitives (and their wrappers) and enums are supported.
+     */
+    private static final class ValueCodec {
+        final Function<Object, String> format;
+        final Function<String, Object> parse;
+
+        private ValueCodec(Function<Object, String> format, Function<String, Object> parse) {
+            this.format = format;
+            this.parse = parse;
+        }
+
+        String format(Object value) {
+            return format.apply(value);
+        }
+
+        Object parse(String value) {
+            return parse.apply(value);
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        static ValueCodec of(Class<?> type, String property) {
+            Class<?> t = boxed(type);
+            if (t == String.class) {
+                return new ValueCodec(v -> (String) v, v -> v);
+            } else if (t == Integer.class) {
+                return new ValueCodec(String::valueOf, Integer::valueOf);
+            } else if (t == Long.class) {
+                return new ValueCodec(String::valueOf, Long::valueOf);
+            } else if (t == Boolean.class) {
+                return new ValueCodec(String::valueOf, Boolean::valueOf);
+            } else if (t == Double.class) {
+                return new ValueCodec(String::valueOf, Double::valueOf);
+            } else if (t == Float.class) {
+                return new ValueCodec(String::valueOf, Float::valueOf);
+            } else if (t == Short.class) {
+                return new ValueCodec(String::valueOf, Short::valueOf);
+            } else if (t == Byte.class) {
+                return new ValueCodec(String::valueOf, Byte::valueOf);
+            } else if (t == Character.class) {
+                return new ValueCodec(String::valueOf, v -> {
+                    if (v.length() != 1) {
+                        throw new IllegalArgumentException("Not a character: " + v);
+                    }
+                    return v.charAt(0);
+                });
+            } else if (t.isEnum()) {
+                return new ValueCodec(v -> ((Enum<?>) v).name(), v -> Enum.valueOf((Class) t, v));
+            } else {
+                throw new IllegalArgumentException("Unsupported type of the session property " + property + ": " + type.getName());
+            }
+        }
+    }
+}
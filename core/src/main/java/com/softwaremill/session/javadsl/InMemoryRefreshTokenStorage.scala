@@ -1,7 +1,25 @@
 package com.softwaremill.session.javadsl
 
+import java.util.function.{Function => JFunction}
+
+import com.softwaremill.session.{RefreshTokenRemovalScheduler, RefreshTokenStorage}
+
 /**
  * Can't use the trait com.softwaremill.session.InMemoryRefreshTokenStorage in Java code, hence this wrapper
  * http://stackoverflow.com/questions/7637752/using-scala-traits-with-implemented-methods-in-java
+ *
+ * @param maxSize The maximum number of stored tokens; when exceeded, the tokens which expire first are evicted.
+ * @param createRemovalScheduler If not null, creates the scheduler which removes used tokens, given this storage, e.g.
+ *                               using `RefreshTokenRemovalScheduler.apply`. It's called once, when the first removal is
+ *                               scheduled.
  */
-abstract class InMemoryRefreshTokenStorage[T]() extends com.softwaremill.session.InMemoryRefreshTokenStorage[T]
\ No newline at end of file
+abstract class InMemoryRefreshTokenStorage[T](
+    override val maxSize: Int,
+    createRemovalScheduler: JFunction[RefreshTokenStorage[T], RefreshTokenRemovalScheduler])
+    extends com.softwaremill.session.InMemoryRefreshTokenStorage[T] {
+  def this(maxSize: Int) = this(maxSize, null)
+  def this() = this(Int.MaxValue)
+
+  override lazy val removalScheduler: Option[RefreshTokenRemovalScheduler] =
+    Option(createRemovalScheduler).map(_.apply(this))
+}
@@ -0,0 +1,7 @@
+package com.softwaremill.session
+
+/**
+  * Signals a session token which is malformed or has an invalid signature. Such tokens are to be expected (a client
+  * might send any number of forged tokens), so no stack trace is captured, which makes rejecting them cheap.
+  */
+class CorruptSessionException(message: String) extends RuntimeException(message, null, false, false)
@@ -15,6 +15,9 @@ object Crypto {
     toHexString(mac.doFinal(message.getBytes("utf-8")))
   }
 
+  def sign_HmacSHA1_hex(message: String, mac: KeyedMac): String =
+    toHexString(mac.sign(message.getBytes("utf-8")))
+
   def sign_HmacSHA256_base64_v0_5_2(message: String, secret: String): String = {
     val key = secret.getBytes("UTF-8")
     val mac = Mac.getInstance("HmacSHA256")
@@ -22,24 +25,42 @@ object Crypto {
     SessionUtil.toBase64_v0_5_2(mac.doFinal(message.getBytes("utf-8")))
   }
 
-  def encrypt_AES(value: String, secret: String): String = {
-    val raw = util.Arrays.copyOf(secret.getBytes("utf-8"), 16)
-    val skeySpec = new SecretKeySpec(raw, "AES")
-    val cipher = Cipher.getInstance("AES")
-    cipher.init(Cipher.ENCRYPT_MODE, skeySpec)
-    toHexString(cipher.doFinal(value.getBytes("utf-8")))
+  def sign_HmacSHA256_base64_v0_5_2(message: String, mac: KeyedMac): String =
+    SessionUtil.toBase64_v0_5_2(mac.sign(message.getBytes("utf-8")))
+
+  def encrypt_AES(value: String, secret: String): String =
+    toHexString(encrypt_AES(value.getBytes("utf-8"), aesKey(secret)))
+
+  def decrypt_AES(value: String, secret: String): String =
+    new String(decrypt_AES(hexStringToByte(value), aesKey(secret)), "utf-8")
+
+  private[session] def aesKey(secret: String): SecretKeySpec =
+    new SecretKeySpec(util.Arrays.copyOf(secret.getBytes("utf-8"), 16), "AES")
+
+  private val aesCipher = new ThreadLocal[Cipher] {
+    override def initialValue(): Cipher = Cipher.getInstance("AES")
   }
 
-  def decrypt_AES(value: String, secret: String): String = {
-    val raw = util.Arrays.copyOf(secret.getBytes("utf-8"), 16)
-    val skeySpec = new SecretKeySpec(raw, "AES")
-    val cipher = Cipher.getInstance("AES")
-    cipher.init(Cipher.DECRYPT_MODE, skeySpec)
-    new String(cipher.doFinal(hexStringToByte(value)))
+  private[session] def encrypt_AES(value: Array[Byte], key: SecretKeySpec): Array[Byte] = {
+    val cipher = aesCipher.get()
+    cipher.init(Cipher.ENCRYPT_MODE, key)
+    cipher.doFinal(value)
   }
 
-  def hash_SHA256(value: String): String = {
-    val digest = MessageDigest.getInstance("SHA-256")
-    toHexString(digest.digest(value.getBytes("UTF-8")))
+  private[session] def decrypt_AES(value: Array[Byte], key: SecretKeySpec): Array[Byte] = {
+    val cipher = aesCipher.get()
+    cipher.init(Cipher.DECRYPT_MODE, key)
+    cipher.doFinal(value)
   }
+
+  def hash_SHA256(value: String): String = toHexString(hash_SHA256(Codec.encodeUtf8(value, 0, value.length)))
+
+  private val sha256Digest = new ThreadLocal[MessageDigest] {
+    override def initialValue(): MessageDigest = MessageDigest.getInstance("SHA-256")
+  }
+
+  /**
+    * `digest` resets the thread-local `MessageDigest`, so it can be reused right away.
+    */
+  private[session] def hash_SHA256(value: Array[Byte]): Array[Byte] = sha256Digest.get().digest(value)
 }
@@ -0,0 +1,7 @@
+package com.softwaremill.session
+
+/**
+  * Signals a session token which has expired. Encoders may detect this before verifying the token's signature, so
+  * the token might also be forged. As with [[CorruptSessionException]], no stack trace is captured.
+  */
+class ExpiredSessionException extends RuntimeException("Session expired", null, false, false)
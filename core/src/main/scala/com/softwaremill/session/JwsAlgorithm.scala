@@ -1,19 +1,38 @@
 package com.softwaremill.session
 
 import java.nio.charset.StandardCharsets.UTF_8
-import java.security.spec.PKCS8EncodedKeySpec
-import java.security.{KeyFactory, PrivateKey, Signature}
+import java.security.interfaces.{ECKey, RSAPrivateCrtKey}
+import java.security.spec.{
+  ECGenParameterSpec,
+  ECParameterSpec,
+  PKCS8EncodedKeySpec,
+  RSAPublicKeySpec,
+  X509EncodedKeySpec
+}
+import java.security.{AlgorithmParameters, Key, KeyFactory, MessageDigest, PrivateKey, PublicKey}
 import java.util.Base64
 
 import com.typesafe.config.Config
-import javax.crypto.Mac
-import javax.crypto.spec.SecretKeySpec
 
 import scala.util.{Failure, Success, Try}
 
 sealed trait JwsAlgorithm {
   def value: String
-  def sign(message: String): String
+
+  def sign(message: String): String = sign(JwsAlgorithm.messageBytes(message))
+
+  /**
+    * Signs the UTF-8 (for JWTs: ASCII) bytes of the message, so that the signing input can be assembled without
+    * creating intermediate strings.
+    */
+  def sign(message: Array[Byte]): String
+
+  /**
+    * Checks if the (base64url-encoded) signature is a valid signature of the message. Unless overridden, the message
+    * is signed again, and the signatures are compared.
+    */
+  def verify(message: String, signature: String): Boolean =
+    SessionUtil.constantTimeEquals(signature, sign(message))
 
   protected def encode(bytes: Array[Byte]): String =
     Base64.getUrlEncoder.withoutPadding().encodeToString(bytes)
@@ -21,56 +40,247 @@ sealed trait JwsAlgorithm {
 
 object JwsAlgorithm {
 
+  private def decodeSignature(signature: String): Option[Array[Byte]] =
+    Try(Codec.parseBase64Url(signature, 0, signature.length)).toOption
+
+  private[session] def messageBytes(message: String): Array[Byte] = Codec.encodeUtf8(message, 0, message.length)
+
+  private def verifyWith(verifier: KeyedSignature, message: String, signature: String): Boolean =
+    decodeSignature(signature).exists(verifier.verify(messageBytes(message), _))
+
+  private[session] def readKeyFromConfig(jwsConfig: Config, configKey: String, alg: String): Try[String] =
+    Option(jwsConfig.hasPath(configKey))
+      .filter(identity)
+      .flatMap(_ => Option(jwsConfig.getString(configKey)))
+      .filter(_.trim.nonEmpty)
+      .map(_.replaceAll("\\s", "").replaceAll("-----[^-]+-----", ""))
+      .map(Success(_))
+      .getOrElse(Failure(new IllegalArgumentException(
+        s"akka.http.session.jws.$configKey must be defined in order to use alg = $alg")))
+
+  /**
+    * Reads a base64-encoded private key in the PKCS#8 format.
+    */
+  private def readPrivateKeyFromConfig(jwsConfig: Config,
+                                       configKey: String,
+                                       alg: String,
+                                       keyAlgorithm: String): Try[PrivateKey] =
+    readKeyFromConfig(jwsConfig, configKey, alg).flatMap { key =>
+      Try {
+        KeyFactory.getInstance(keyAlgorithm).generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder.decode(key)))
+      }.recoverWith {
+        case ex => Failure(new IllegalArgumentException(s"Invalid $keyAlgorithm private key", ex))
+      }
+    }
+
+  /**
+    * Reads a base64-encoded public key in the X.509 format.
+    */
+  private def readPublicKeyFromConfig(jwsConfig: Config,
+                                      configKey: String,
+                                      alg: String,
+                                      keyAlgorithm: String): Try[PublicKey] =
+    readKeyFromConfig(jwsConfig, configKey, alg).flatMap { key =>
+      Try {
+        KeyFactory.getInstance(keyAlgorithm).generatePublic(new X509EncodedKeySpec(Base64.getDecoder.decode(key)))
+      }.recoverWith {
+        case ex => Failure(new IllegalArgumentException(s"Invalid $keyAlgorithm public key", ex))
+      }
+    }
+
+  /**
+    * The public key can't be derived from an EC or EdDSA private key, hence both are configured. Signing a test
+    * message catches keys which don't belong together at startup, instead of rejecting every session later on.
+    */
+  private def checkKeyPair(jcaAlgorithm: String, privateKey: PrivateKey, publicKey: PublicKey): Try[Unit] = Try {
+    val message = "key pair check".getBytes(UTF_8)
+    val signature = KeyedSignature.forSigning(jcaAlgorithm, privateKey).sign(message)
+    if (!KeyedSignature.forVerification(jcaAlgorithm, publicKey).verify(message, signature)) {
+      throw new IllegalArgumentException("The configured private and public keys don't match")
+    }
+  }
+
   case class Rsa(privateKey: PrivateKey) extends JwsAlgorithm {
 
     override val value: String = "RS256"
 
-    override def sign(message: String): String = {
-      val privateSignature: Signature = Signature.getInstance("SHA256withRSA")
-      privateSignature.initSign(privateKey)
-      privateSignature.update(message.getBytes(UTF_8))
+    private lazy val signer = KeyedSignature.forSigning(Rsa.JcaAlgorithm, privateKey)
+
+    override def sign(message: Array[Byte]): String = encode(signer.sign(message))
 
-      encode(privateSignature.sign())
+    /**
+      * Uses the public key, derived from the private key, if it contains the public exponent (as keys in the PKCS#8
+      * format do). Verifying using the public key is much cheaper than signing again using the private key.
+      */
+    private lazy val verifier: Option[KeyedSignature] = privateKey match {
+      case k: RSAPrivateCrtKey =>
+        val publicKey =
+          KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(k.getModulus, k.getPublicExponent))
+        Some(KeyedSignature.forVerification(Rsa.JcaAlgorithm, publicKey))
+      case _ => None
     }
+
+    override def verify(message: String, signature: String): Boolean =
+      verifier.fold(super.verify(message, signature))(verifyWith(_, message, signature))
   }
 
   object Rsa {
+    private[session] val JcaAlgorithm = "SHA256withRSA"
 
-    def fromConfig(jwsConfig: Config): Try[Rsa] = {
-
-      def readKeyFromConf(): Try[String] = {
-        val configKey = "rsa-private-key"
-        Option(jwsConfig.hasPath(configKey))
-          .filter(identity)
-          .flatMap(_ => Option(jwsConfig.getString(configKey)))
-          .filter(_.trim.nonEmpty)
-          .map(_.replaceAll("\\s", "").replaceAll("-----[^-]+-----", ""))
-          .map(Success(_))
-          .getOrElse(Failure(new IllegalArgumentException(
-            "akka.http.session.jws.rsa-private-key must be defined in order to use alg = RS256")))
-      }
+    def fromConfig(jwsConfig: Config): Try[Rsa] =
+      readPrivateKeyFromConfig(jwsConfig, "rsa-private-key", "RS256", "RSA").map(Rsa(_))
+  }
+
+  /**
+    * Only verifies RS256 signatures, using the public key. Useful on nodes which should accept sessions, but never
+    * create them, and hence shouldn't hold the private key.
+    */
+  case class RsaVerifyOnly(publicKey: PublicKey) extends JwsAlgorithm {
+
+    override val value: String = "RS256"
+
+    override def sign(message: Array[Byte]): String =
+      throw new UnsupportedOperationException("Sessions can't be signed using only an RSA public key")
+
+    private lazy val verifier = KeyedSignature.forVerification(Rsa.JcaAlgorithm, publicKey)
+
+    override def verify(message: String, signature: String): Boolean = verifyWith(verifier, message, signature)
+  }
+
+  object RsaVerifyOnly {
+
+    def fromConfig(jwsConfig: Config): Try[RsaVerifyOnly] =
+      readPublicKeyFromConfig(jwsConfig, "rsa-public-key", "RS256", "RSA").map(RsaVerifyOnly(_))
+  }
+
+  /**
+    * ES256: ECDSA using the P-256 curve and SHA-256. Compared to RS256, signatures (and keys) are much shorter: 64
+    * bytes instead of 256. Using the JDK's implementation, signing costs about as much as with RS256, but verifying is
+    * considerably more expensive.
+    *
+    * The public key is needed to verify signatures, as ECDSA signatures are randomized, so signing a message again
+    * doesn't yield the same signature.
+    */
+  case class Ecdsa(privateKey: PrivateKey, publicKey: PublicKey) extends JwsAlgorithm {
 
-      readKeyFromConf()
-        .flatMap { key =>
-          Try {
-            val keyFactory = KeyFactory.getInstance("RSA")
-            val privateKey = keyFactory.generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder.decode(key)))
-            Rsa(privateKey)
-          }.recoverWith {
-            case ex => Failure(new IllegalArgumentException("Invalid RSA private key", ex))
-          }
-        }
+    override val value: String = "ES256"
+
+    private lazy val signer = KeyedSignature.forSigning(Ecdsa.JcaAlgorithm, privateKey)
+    private lazy val verifier = KeyedSignature.forVerification(Ecdsa.JcaAlgorithm, publicKey)
+
+    override def sign(message: Array[Byte]): String = encode(signer.sign(message))
+
+    override def verify(message: String, signature: String): Boolean = verifyWith(verifier, message, signature)
+  }
+
+  object Ecdsa {
+    // JWS uses the fixed-length R || S signature encoding, not the DER one (see RFC 7518, section 3.4)
+    private[session] val JcaAlgorithm = "SHA256withECDSAinP1363Format"
+
+    def fromConfig(jwsConfig: Config): Try[Ecdsa] =
+      for {
+        privateKey <- readPrivateKeyFromConfig(jwsConfig, "ec-private-key", "ES256", "EC").flatMap(checkCurve)
+        publicKey <- readPublicKeyFromConfig(jwsConfig, "ec-public-key", "ES256", "EC").flatMap(checkCurve)
+        _ <- checkKeyPair(JcaAlgorithm, privateKey, publicKey)
+      } yield Ecdsa(privateKey, publicKey)
+
+    private lazy val P256: ECParameterSpec = {
+      val params = AlgorithmParameters.getInstance("EC")
+      params.init(new ECGenParameterSpec("secp256r1"))
+      params.getParameterSpec(classOf[ECParameterSpec])
+    }
+
+    /**
+      * Other 256-bit curves, such as secp256k1, have the same field size, so all domain parameters are compared.
+      */
+    private[session] def checkCurve[K <: Key](key: K): Try[K] = key match {
+      case k: ECKey if isP256(k.getParams) => Success(key)
+      case _ => Failure(new IllegalArgumentException("ES256 requires a key on the P-256 curve"))
     }
+
+    private def isP256(params: ECParameterSpec): Boolean =
+      params != null && params.getCurve == P256.getCurve && params.getGenerator == P256.getGenerator &&
+        params.getOrder == P256.getOrder && params.getCofactor == P256.getCofactor
+  }
+
+  /**
+    * Only verifies ES256 signatures, using the public key.
+    */
+  case class EcdsaVerifyOnly(publicKey: PublicKey) extends JwsAlgorithm {
+
+    override val value: String = "ES256"
+
+    override def sign(message: Array[Byte]): String =
+      throw new UnsupportedOperationException("Sessions can't be signed using only an EC public key")
+
+    private lazy val verifier = KeyedSignature.forVerification(Ecdsa.JcaAlgorithm, publicKey)
+
+    override def verify(message: String, signature: String): Boolean = verifyWith(verifier, message, signature)
+  }
+
+  object EcdsaVerifyOnly {
+
+    def fromConfig(jwsConfig: Config): Try[EcdsaVerifyOnly] =
+      readPublicKeyFromConfig(jwsConfig, "ec-public-key", "ES256", "EC")
+        .flatMap(Ecdsa.checkCurve)
+        .map(EcdsaVerifyOnly(_))
+  }
+
+  /**
+    * EdDSA using the Ed25519 curve (see RFC 8037). Signatures are 64 bytes long, and both signing and verifying are
+    * cheaper than with ES256. Requires Java 15 or newer.
+    */
+  case class EdDsa(privateKey: PrivateKey, publicKey: PublicKey) extends JwsAlgorithm {
+
+    override val value: String = "EdDSA"
+
+    private lazy val signer = KeyedSignature.forSigning(EdDsa.JcaAlgorithm, privateKey)
+    private lazy val verifier = KeyedSignature.forVerification(EdDsa.JcaAlgorithm, publicKey)
+
+    override def sign(message: Array[Byte]): String = encode(signer.sign(message))
+
+    override def verify(message: String, signature: String): Boolean = verifyWith(verifier, message, signature)
+  }
+
+  object EdDsa {
+    private[session] val JcaAlgorithm = "Ed25519"
+
+    def fromConfig(jwsConfig: Config): Try[EdDsa] =
+      for {
+        privateKey <- readPrivateKeyFromConfig(jwsConfig, "ed25519-private-key", "EdDSA", JcaAlgorithm)
+        publicKey <- readPublicKeyFromConfig(jwsConfig, "ed25519-public-key", "EdDSA", JcaAlgorithm)
+        _ <- checkKeyPair(JcaAlgorithm, privateKey, publicKey)
+      } yield EdDsa(privateKey, publicKey)
+  }
+
+  /**
+    * Only verifies EdDSA (Ed25519) signatures, using the public key.
+    */
+  case class EdDsaVerifyOnly(publicKey: PublicKey) extends JwsAlgorithm {
+
+    override val value: String = "EdDSA"
+
+    override def sign(message: Array[Byte]): String =
+      throw new UnsupportedOperationException("Sessions can't be signed using only an Ed25519 public key")
+
+    private lazy val verifier = KeyedSignature.forVerification(EdDsa.JcaAlgorithm, publicKey)
+
+    override def verify(message: String, signature: String): Boolean = verifyWith(verifier, message, signature)
+  }
+
+  object EdDsaVerifyOnly {
+
+    def fromConfig(jwsConfig: Config): Try[EdDsaVerifyOnly] =
+      readPublicKeyFromConfig(jwsConfig, "ed25519-public-key", "EdDSA", EdDsa.JcaAlgorithm).map(EdDsaVerifyOnly(_))
   }
 
   case class HmacSHA256(serverSecret: String) extends JwsAlgorithm {
     override val value: String = "HS256"
-    override def sign(message: String): String = {
-      val key = serverSecret.getBytes("UTF-8")
-      val mac = Mac.getInstance("HmacSHA256")
-      mac.init(new SecretKeySpec(key, "HmacSHA256"))
-      encode(mac.doFinal(message.getBytes("utf-8")))
-    }
+    private lazy val mac = KeyedMac.hmacSHA256(serverSecret)
+    override def sign(message: Array[Byte]): String = encode(mac.sign(message))
+
+    override def verify(message: String, signature: String): Boolean =
+      decodeSignature(signature).exists(MessageDigest.isEqual(_, mac.sign(message.getBytes("utf-8"))))
   }
 
 }
@@ -0,0 +1,58 @@
+package com.softwaremill.session
+
+import java.nio.charset.StandardCharsets.UTF_8
+
+import javax.crypto.Mac
+import javax.crypto.spec.SecretKeySpec
+
+/**
+  * A MAC engine which is keyed once, when created. Each thread gets its own, already initialized `Mac` instance
+  * (cloned from a prototype, if the provider supports it), so that signing doesn't require a provider lookup or a
+  * key setup on every call.
+  */
+final class KeyedMac(val algorithm: String, key: Array[Byte]) {
+  private val keySpec = new SecretKeySpec(key, algorithm)
+  private val prototype = newMac()
+
+  private val perThread = new ThreadLocal[Mac] {
+    override def initialValue(): Mac =
+      try prototype.clone().asInstanceOf[Mac]
+      catch { case _: CloneNotSupportedException => newMac() }
+  }
+
+  private def newMac(): Mac = {
+    val mac = Mac.getInstance(algorithm)
+    mac.init(keySpec)
+    mac
+  }
+
+  /**
+    * `doFinal` resets the engine, so the thread-local instance can be reused right away.
+    */
+  def sign(message: Array[Byte]): Array[Byte] = perThread.get().doFinal(message)
+
+  def sign(message: Array[Byte], offset: Int, length: Int): Array[Byte] = {
+    val mac = perThread.get()
+    mac.update(message, offset, length)
+    mac.doFinal()
+  }
+
+  /**
+    * Signs the `[0, prefixLength)` range of `prefix`, followed by the whole `message`.
+    */
+  def sign(prefix: Array[Byte], prefixLength: Int, message: Array[Byte]): Array[Byte] = {
+    val mac = perThread.get()
+    mac.update(prefix, 0, prefixLength)
+    mac.doFinal(message)
+  }
+
+  /**
+    * The length of the signatures, in bytes.
+    */
+  def macLength: Int = prototype.getMacLength
+}
+
+object KeyedMac {
+  def hmacSHA1(secret: String): KeyedMac = new KeyedMac("HmacSHA1", secret.getBytes(UTF_8))
+  def hmacSHA256(secret: String): KeyedMac = new KeyedMac("HmacSHA256", secret.getBytes(UTF_8))
+}
@@ -1,65 +1,295 @@
 package com.softwaremill.session
 
-import scala.collection.mutable
-import scala.concurrent.Future
-import scala.concurrent.duration.Duration
+import java.util.Comparator
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.{
+  ConcurrentHashMap,
+  ConcurrentSkipListMap,
+  ScheduledExecutorService,
+  ScheduledThreadPoolExecutor,
+  TimeUnit
+}
+
+import akka.util.ByteString
+
+import scala.concurrent.duration.{Duration, FiniteDuration}
+import scala.concurrent.{ExecutionContext, Future}
+import scala.util.Try
+import scala.util.control.NonFatal
 
 trait RefreshTokenStorage[T] {
   def lookup(selector: String): Future[Option[RefreshTokenLookupResult[T]]]
   def store(data: RefreshTokenData[T]): Future[Unit]
   def remove(selector: String): Future[Unit]
   def schedule[S](after: Duration)(op: => Future[S]): Unit
+
+  /**
+    * Removes a used refresh token after the given delay. By default, runs [[remove]] using [[schedule]]; storages can
+    * use a [[RefreshTokenRemovalScheduler]] instead, which batches the removals.
+    */
+  def scheduleRemoval(selector: String, after: FiniteDuration): Unit = schedule(after)(remove(selector))
+
+  /**
+    * Removes the tokens with the given selectors. By default, calls [[remove]] for each selector; storages can override
+    * this to remove them in a single operation.
+    */
+  def removeAll(selectors: Seq[String])(implicit ec: ExecutionContext): Future[Unit] =
+    Future.traverse(selectors)(remove).map(_ => ())
 }
 
+/**
+  * @param tokenHashBytes The SHA-256 hash of the token (32 bytes).
+  */
 case class RefreshTokenData[T](forSession: T,
                                selector: String,
-                               tokenHash: String,
+                               tokenHashBytes: ByteString,
                                /**
                                  * Timestamp
                                  */
-                               expires: Long)
+                               expires: Long) {
+
+  /**
+    * For storages which store the hash as a hex-encoded string, as done before the hash was available as bytes.
+    */
+  def this(forSession: T, selector: String, tokenHash: String, expires: Long) =
+    this(forSession, selector, RefreshTokenHash.fromHex(tokenHash), expires)
 
-case class RefreshTokenLookupResult[T](tokenHash: String,
+  /**
+    * The hex-encoded hash of the token, as used before the hash was available as bytes.
+    */
+  def tokenHash: String = RefreshTokenHash.toHex(tokenHashBytes)
+}
+
+object RefreshTokenData {
+  def apply[T](forSession: T, selector: String, tokenHash: String, expires: Long): RefreshTokenData[T] =
+    new RefreshTokenData[T](forSession, selector, tokenHash, expires)
+}
+
+/**
+  * @param tokenHashBytes The SHA-256 hash of the token (32 bytes), as stored in [[RefreshTokenData]].
+  */
+case class RefreshTokenLookupResult[T](tokenHashBytes: ByteString,
                                        /**
                                          * Timestamp
                                          */
                                        expires: Long,
-                                       createSession: () => T)
+                                       createSession: () => T) {
+
+  /**
+    * For storages which store the hash as a hex-encoded string, as done before the hash was available as bytes.
+    */
+  def this(tokenHash: String, expires: Long, createSession: () => T) =
+    this(RefreshTokenHash.fromHex(tokenHash), expires, createSession)
+
+  /**
+    * The hex-encoded hash of the token, as used before the hash was available as bytes.
+    */
+  def tokenHash: String = RefreshTokenHash.toHex(tokenHashBytes)
+}
+
+object RefreshTokenLookupResult {
+  def apply[T](tokenHash: String, expires: Long, createSession: () => T): RefreshTokenLookupResult[T] =
+    new RefreshTokenLookupResult[T](tokenHash, expires, createSession)
+}
+
+private[session] object RefreshTokenHash {
+
+  /**
+    * The digest isn't shared, so the array can be wrapped without copying it.
+    */
+  def of(token: String): ByteString =
+    ByteString.fromArrayUnsafe(Crypto.hash_SHA256(Codec.encodeUtf8(token, 0, token.length)))
+
+  /**
+    * A hash which isn't valid hex never matches any token.
+    */
+  def fromHex(tokenHash: String): ByteString =
+    Try(ByteString.fromArrayUnsafe(Codec.parseHex(tokenHash, 0, tokenHash.length))).getOrElse(ByteString.empty)
+
+  def toHex(tokenHashBytes: ByteString): String = SessionUtil.toHexString(tokenHashBytes.toArray)
+
+  def matches(token: String, tokenHashBytes: ByteString): Boolean =
+    SessionUtil.constantTimeEquals(of(token), tokenHashBytes)
+}
 
 /**
-  * Useful for testing.
+  * Stores refresh tokens in memory, so that they are lost on restart and not shared between nodes: useful for testing,
+  * and for single-node deployments. Safe to use concurrently.
+  *
+  * Tokens are indexed by their expiry date: expired tokens are removed when new ones are stored, and if more than
+  * [[maxSize]] tokens are stored, the ones which expire first are evicted. The token which is being stored is never
+  * removed, as it's about to be sent to the client.
   */
 trait InMemoryRefreshTokenStorage[T] extends RefreshTokenStorage[T] {
-  case class Store(session: T, tokenHash: String, expires: Long)
-  private val _store = mutable.Map[String, Store]()
+  import InMemoryRefreshTokenStorage.ExpiryKey
+
+  case class Store(session: T, tokenHashBytes: ByteString, expires: Long) {
+    def tokenHash: String = RefreshTokenHash.toHex(tokenHashBytes)
+  }
+  private val _store = new ConcurrentHashMap[String, Store]()
+  private val byExpiry = new ConcurrentSkipListMap[ExpiryKey, Store](ExpiryKey.comparator)
+  private val evictedTokenCount = new LongAdder()
+
+  /**
+    * The maximum number of stored tokens. Unbounded by default.
+    */
+  def maxSize: Int = Int.MaxValue
+
+  /**
+    * A copy of all stored tokens. To inspect the storage without copying it, use [[storedTokenCount]],
+    * [[storedToken]] or [[foreachStoredToken]].
+    */
+  def store: Map[String, Store] = {
+    val copy = Map.newBuilder[String, Store]
+    foreachStoredToken((selector, s) => copy += selector -> s)
+    copy.result()
+  }
 
-  def store: Map[String, Store] = _store.toMap
+  def storedTokenCount: Int = _store.size()
+
+  def storedToken(selector: String): Option[Store] = Option(_store.get(selector))
+
+  def foreachStoredToken(f: (String, Store) => Unit): Unit = _store.forEach((selector, s) => f(selector, s))
+
+  /**
+    * The number of tokens evicted because more than [[maxSize]] tokens were stored.
+    */
+  def evictedTokens: Long = evictedTokenCount.sum()
 
   override def lookup(selector: String) = {
     Future.successful {
-      val r = _store.get(selector).map(s => RefreshTokenLookupResult[T](s.tokenHash, s.expires, () => s.session))
-      log(s"Looking up token for selector: $selector, found: ${r.isDefined}")
+      val r = storedToken(selector).map(s => RefreshTokenLookupResult[T](s.tokenHashBytes, s.expires, () => s.session))
+      if (logEnabled) log(s"Looking up token for selector: $selector, found: ${r.isDefined}")
       r
     }
   }
 
   override def store(data: RefreshTokenData[T]) = {
-    log(
-      s"Storing token for selector: ${data.selector}, user: ${data.forSession}, " +
-        s"expires: ${data.expires}, now: ${System.currentTimeMillis()}")
-    Future.successful(_store.put(data.selector, Store(data.forSession, data.tokenHash, data.expires)))
+    val now = nowMillis
+    if (logEnabled)
+      log(
+        s"Storing token for selector: ${data.selector}, user: ${data.forSession}, " +
+          s"expires: ${data.expires}, now: $now")
+    val s = Store(data.forSession, data.tokenHashBytes, data.expires)
+    val previous = _store.put(data.selector, s)
+    if (previous != null) byExpiry.remove(ExpiryKey(previous.expires, data.selector), previous)
+    val key = ExpiryKey(s.expires, data.selector)
+    byExpiry.put(key, s)
+
+    removeExpired(now, key)
+    if (_store.size() > maxSize) evictOverMaxSize(key)
+    Future.successful(())
   }
 
   override def remove(selector: String) = {
-    log(s"Removing token for selector: $selector")
-    Future.successful(_store.remove(selector))
+    if (logEnabled) log(s"Removing token for selector: $selector")
+    val removed = _store.remove(selector)
+    if (removed != null) byExpiry.remove(ExpiryKey(removed.expires, selector), removed)
+    Future.successful(())
+  }
+
+  /**
+    * Runs the operation after the given delay, using a daemon thread shared by all in-memory storages. Operations
+    * scheduled without a delay are run immediately, and ones scheduled after an infinite delay are never run.
+    */
+  override def schedule[S](after: Duration)(op: => Future[S]) = after match {
+    case delay: FiniteDuration if delay > Duration.Zero =>
+      if (logEnabled) log(s"Scheduling operation to run after $delay")
+      val task: Runnable = () => runScheduled(op)
+      InMemoryRefreshTokenStorage.timer.schedule(task, delay.toMillis, TimeUnit.MILLISECONDS)
+      ()
+    case _: FiniteDuration =>
+      if (logEnabled) log("Running scheduled operation immediately")
+      runScheduled(op)
+    case _ =>
+      if (logEnabled) log(s"Not running operation scheduled after $after")
   }
 
-  override def schedule[S](after: Duration)(op: => Future[S]) = {
-    log("Running scheduled operation immediately")
-    op
+  private def runScheduled[S](op: => Future[S]): Unit =
+    try op.failed.foreach(e => log(s"Scheduled operation failed: $e"))(InMemoryRefreshTokenStorage.timerContext)
+    catch { case NonFatal(e) => log(s"Scheduled operation failed: $e") }
+
+  /**
+    * Removes used tokens after the delay configured by [[SessionConfig.removeUsedRefreshTokenAfter]] in batches, e.g.
+    * `override lazy val removalScheduler = Some(RefreshTokenRemovalScheduler(this, system.scheduler, e => log(...)))`.
+    * If not set, each removal is scheduled separately using [[schedule]].
+    */
+  lazy val removalScheduler: Option[RefreshTokenRemovalScheduler] = None
+
+  override def scheduleRemoval(selector: String, after: FiniteDuration): Unit = removalScheduler match {
+    case Some(scheduler) => scheduler.scheduleRemoval(selector, after)
+    case None            => super.scheduleRemoval(selector, after)
+  }
+
+  override def removeAll(selectors: Seq[String])(implicit ec: ExecutionContext): Future[Unit] = {
+    selectors.foreach(remove)
     Future.successful(())
   }
 
+  /**
+    * @param stored The token which is being stored, which isn't removed even if it's expired according to the
+    *               storage's clock.
+    */
+  private def removeExpired(now: Long, stored: ExpiryKey): Unit = {
+    val byExpiryIt = byExpiry.entrySet().iterator()
+    var expired = true
+    while (expired && byExpiryIt.hasNext) {
+      val first = byExpiryIt.next()
+      expired = first.getKey.expires < now
+      if (expired && first.getKey != stored) removeIndexed(first.getKey, first.getValue)
+    }
+  }
+
+  private def evictOverMaxSize(stored: ExpiryKey): Unit = {
+    val byExpiryIt = byExpiry.entrySet().iterator()
+    while (_store.size() > maxSize && byExpiryIt.hasNext) {
+      val first = byExpiryIt.next()
+      if (first.getKey != stored && removeIndexed(first.getKey, first.getValue)) {
+        evictedTokenCount.increment()
+        if (logEnabled) log(s"Evicted token for selector: ${first.getKey.selector}")
+      }
+    }
+  }
+
+  /**
+    * @return If the token was removed: false if it has already been removed, e.g. by a concurrent store.
+    */
+  private def removeIndexed(key: ExpiryKey, s: Store): Boolean =
+    byExpiry.remove(key, s) && _store.remove(key.selector, s)
+
+  /**
+    * Used to remove expired tokens. Should match the session manager's clock, e.g. when it's fixed in tests.
+    */
+  def nowMillis: Long = System.currentTimeMillis()
+
+  /**
+    * Messages are only created and passed to [[log]] if this returns true, e.g. override with `logger.isDebugEnabled`.
+    */
+  def logEnabled: Boolean = true
+
   def log(msg: String): Unit
 }
+
+object InMemoryRefreshTokenStorage {
+  private case class ExpiryKey(expires: Long, selector: String)
+
+  // a daemon thread, so that pending removals don't prevent the JVM from exiting
+  private lazy val timer: ScheduledExecutorService = {
+    val executor = new ScheduledThreadPoolExecutor(1, (r: Runnable) => {
+      val thread = new Thread(r, "in-memory-refresh-token-storage-timer")
+      thread.setDaemon(true)
+      thread
+    })
+    executor.setRemoveOnCancelPolicy(true)
+    executor
+  }
+
+  private lazy val timerContext: ExecutionContext = ExecutionContext.fromExecutor(timer)
+
+  private object ExpiryKey {
+    val comparator: Comparator[ExpiryKey] = (a: ExpiryKey, b: ExpiryKey) => {
+      val byExpires = java.lang.Long.compare(a.expires, b.expires)
+      if (byExpires != 0) byExpires else a.selector.compareTo(b.selector)
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package com.softwaremill.session
+
+import java.security.SecureRandom
+
+import scala.util.Try
+
+/**
+  * Generates random tokens and bytes using a cryptographically strong random number generator.
+  *
+  * Each thread has its own `SecureRandom` instance, so that threads don't contend on a shared generator's lock. A DRBG
+  * generator is used when available, as the default (native) one synchronizes on a global lock, even when there are
+  * many instances. Random bytes are generated in bulk into a per-thread buffer, and tokens are encoded directly from
+  * it.
+  */
+private[session] object SecureRandomTokens {
+  private val BufferSize = 512
+
+  // the same alphabet as `BigInteger.toString(32)`, which was used to generate tokens before
+  private val Base32Digits = "0123456789abcdefghijklmnopqrstuv".toCharArray
+
+  private final class Buffer {
+    val random: SecureRandom = Try(SecureRandom.getInstance("DRBG")).getOrElse(new SecureRandom())
+    val bytes = new Array[Byte](BufferSize)
+    var position: Int = BufferSize
+
+    def next(): Int = {
+      if (position == BufferSize) {
+        random.nextBytes(bytes)
+        position = 0
+      }
+      val b = bytes(position) & 0xFF
+      // the used bytes are cleared, so that they don't linger in memory
+      bytes(position) = 0
+      position += 1
+      b
+    }
+  }
+
+  private val perThread = new ThreadLocal[Buffer] {
+    override def initialValue(): Buffer = new Buffer
+  }
+
+  def nextBytes(dest: Array[Byte]): Unit = {
+    val buffer = perThread.get()
+    var i = 0
+    while (i < dest.length) {
+      dest(i) = buffer.next().toByte
+      i += 1
+    }
+  }
+
+  /**
+    * A token of exactly `length` chars, each encoding 5 random bits, using the digits and the lower-case letters
+    * `a`-`v`.
+    */
+  def base32(length: Int): String = {
+    val buffer = perThread.get()
+    val chars = new Array[Char](length)
+    var bits = 0
+    var available = 0
+    var i = 0
+    while (i < length) {
+      if (available < 5) {
+        bits = (bits << 8) | buffer.next()
+        available += 8
+      }
+      available -= 5
+      chars(i) = Base32Digits((bits >>> available) & 0x1F)
+      i += 1
+    }
+    new String(chars)
+  }
+}
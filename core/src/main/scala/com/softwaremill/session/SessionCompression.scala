@@ -0,0 +1,71 @@
+package com.softwaremill.session
+
+import java.nio.charset.StandardCharsets.UTF_8
+import java.util
+import java.util.zip.{Deflater, Inflater}
+
+/**
+  * Compresses serialized sessions which are at least `threshold` bytes long using DEFLATE, before they are signed and
+  * encrypted. A session is only sent compressed if that makes the token shorter.
+  *
+  * @param dictionary A preset DEFLATE dictionary: strings which commonly occur in sessions (e.g. keys and role names),
+  *                   the most common ones last. Compressed sessions can only be read using the same dictionary. JWTs
+  *                   are compressed without it, as the `zip` header doesn't allow for one.
+  */
+case class SessionCompression(threshold: Int, dictionary: String = "") {
+  private[session] val dictionaryBytes: Array[Byte] = dictionary.getBytes(UTF_8)
+}
+
+object SessionCompression {
+  private[session] val NoDictionary = Array.emptyByteArray
+
+  // raw DEFLATE (RFC 1951) streams, without the zlib header and checksum, as used by the JWT `zip` header
+  private val deflaters = new ThreadLocal[Deflater] {
+    override def initialValue(): Deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true)
+  }
+  private val inflaters = new ThreadLocal[Inflater] {
+    override def initialValue(): Inflater = new Inflater(true)
+  }
+
+  /**
+    * The dictionary with which sessions are decompressed: also when compression has been disabled since.
+    */
+  private[session] def dictionary(config: SessionConfig): Array[Byte] =
+    config.sessionCompression.fold(NoDictionary)(_.dictionaryBytes)
+
+  private[session] def deflate(data: Array[Byte], dictionary: Array[Byte]): Array[Byte] = {
+    val deflater = deflaters.get()
+    try {
+      if (dictionary.nonEmpty) deflater.setDictionary(dictionary)
+      deflater.setInput(data)
+      deflater.finish()
+      var out = new Array[Byte](data.length / 2 + 64)
+      var length = 0
+      while (!deflater.finished()) {
+        if (length == out.length) out = util.Arrays.copyOf(out, out.length * 2)
+        length += deflater.deflate(out, length, out.length - length)
+      }
+      util.Arrays.copyOf(out, length)
+    } finally deflater.reset()
+  }
+
+  /**
+    * Only called with authenticated data, hence the decompressed size isn't limited.
+    */
+  private[session] def inflate(data: Array[Byte], from: Int, until: Int, dictionary: Array[Byte]): Array[Byte] = {
+    val inflater = inflaters.get()
+    try {
+      if (dictionary.nonEmpty) inflater.setDictionary(dictionary)
+      inflater.setInput(data, from, until - from)
+      var out = new Array[Byte]((until - from) * 4 + 64)
+      var length = 0
+      while (!inflater.finished()) {
+        if (length == out.length) out = util.Arrays.copyOf(out, out.length * 2)
+        val inflated = inflater.inflate(out, length, out.length - length)
+        if (inflated == 0 && inflater.needsInput()) throw new CorruptSessionException("Truncated compressed session")
+        length += inflated
+      }
+      util.Arrays.copyOf(out, length)
+    } finally inflater.reset()
+  }
+}
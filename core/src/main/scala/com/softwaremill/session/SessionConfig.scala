@@ -2,7 +2,15 @@ package com.softwaremill.session
 
 import java.util.concurrent.TimeUnit
 
-import com.softwaremill.session.JwsAlgorithm.{HmacSHA256, Rsa}
+import com.softwaremill.session.JwsAlgorithm.{
+  Ecdsa,
+  EcdsaVerifyOnly,
+  EdDsa,
+  EdDsaVerifyOnly,
+  HmacSHA256,
+  Rsa,
+  RsaVerifyOnly
+}
 import com.softwaremill.session.SessionConfig.{JwsConfig, JwtConfig}
 import com.typesafe.config.{Config, ConfigFactory, ConfigValueFactory}
 import akka.http.scaladsl.model.headers.SameSite
@@ -49,13 +57,75 @@ case class SessionConfig(
                            * Allow migrating tokens created with prior versions of this library.
                            */
                          tokenMigrationV0_5_2Enabled: Boolean,
-                         tokenMigrationV0_5_3Enabled: Boolean) {
+                         tokenMigrationV0_5_3Enabled: Boolean,
+                         /**
+                           * If defined, sessions are signed and encrypted using the active key from the ring, instead
+                           * of the server secret. Allows rotating secrets without invalidating existing sessions.
+                           */
+                         keyRing: Option[SessionKeyRing] = None,
+                         /**
+                           * How the session data is encrypted, if [[sessionEncryptData]] is enabled.
+                           */
+                         sessionEncryption: SessionEncryption = SessionEncryption.Aes,
+                         /**
+                           * The format of new session tokens. Tokens in any format are accepted when decoding.
+                           */
+                         sessionTokenFormat: SessionTokenFormat = SessionTokenFormat.Legacy,
+                         /**
+                           * If defined, up to the given number of successfully verified sessions are cached, keyed by
+                           * their token, so that a session sent on many requests is decoded only once.
+                           */
+                         verifiedSessionCacheMaxSize: Option[Int] = None,
+                         /**
+                           * If defined, session tokens (sent in a cookie or header) longer than the given number of
+                           * characters are rejected as corrupt, without being decoded.
+                           */
+                         sessionMaxTokenLength: Option[Int] = None,
+                         /**
+                           * If defined, refresh tokens longer than the given number of characters are rejected as
+                           * corrupt, without being looked up.
+                           */
+                         refreshTokenMaxTokenLength: Option[Int] = Some(1024),
+                         /**
+                           * If defined, large sessions are compressed before being signed and encrypted. Compressed
+                           * sessions are always accepted.
+                           */
+                         sessionCompression: Option[SessionCompression] = None,
+                         /**
+                           * If defined (a fraction in the `(0, 1]` range), touching a session sends it to the client
+                           * again only when less than this fraction of [[sessionMaxAgeSeconds]] remains until it
+                           * expires. Otherwise, touched sessions are re-issued on every request.
+                           */
+                         sessionTouchReissueThreshold: Option[Double] = None) {
   require(serverSecret.length >= 64, "Server secret must be at least 64 characters long!")
+  require(sessionTouchReissueThreshold.forall(t => t > 0 && t <= 1),
+          "Session touch re-issue threshold must be greater than 0 and at most 1!")
+
+  /**
+    * The server secret as a key; its MAC engines are created once per config instead of on every sign/verify.
+    */
+  private[session] lazy val serverSecretKey: SessionKey = SessionKey("", serverSecret)
+  private[session] def serverSecretHmacSHA1: KeyedMac = serverSecretKey.hmacSHA1
+  private[session] def serverSecretHmacSHA256: KeyedMac = serverSecretKey.hmacSHA256
+
+  /**
+    * The key used to sign and encrypt new sessions, and its id, which should be embedded in the session token.
+    */
+  private[session] def sessionSigningKey: (Option[String], SessionKey) =
+    keyRing.fold((Option.empty[String], serverSecretKey))(r => (Some(r.active.id), r.active))
+
+  /**
+    * The key with which a session, embedding the given key id, should be verified and decrypted.
+    */
+  private[session] def sessionVerificationKey(keyId: Option[String]): SessionKey =
+    keyId.fold(serverSecretKey) { id =>
+      keyRing.flatMap(_.key(id)).getOrElse(throw new IllegalArgumentException("Unknown session key id"))
+    }
 }
 
 object SessionConfig {
 
-  case class JwtConfig(issuer: Option[String], subject: Option[String], audience: Option[String], expirationTimeout: Option[Long], notBeforeOffset: Option[Long], includeIssuedAt: Boolean, includeRandomJwtId: Boolean)
+  case class JwtConfig(issuer: Option[String], subject: Option[String], audience: Option[String], expirationTimeout: Option[Long], notBeforeOffset: Option[Long], includeIssuedAt: Boolean, includeRandomJwtId: Boolean, jwtIdGenerator: JwtIdGenerator = JwtIdGenerator.Ulid)
 
   case class JwsConfig(alg: JwsAlgorithm)
 
@@ -70,6 +140,10 @@ object SessionConfig {
       if (config.getAnyRef(path) == noneValue) None
       else
         Some(config.getLong(path))
+    def getOptionalDouble(path: String) =
+      if (config.getAnyRef(path) == noneValue) None
+      else
+        Some(config.getDouble(path))
     def getOptionalDurationSeconds(path: String) =
       if (config.getAnyRef(path) == noneValue) None
       else
@@ -97,10 +171,21 @@ object SessionConfig {
         jwsConfig.getString("alg").toUpperCase match {
           case "HS256" =>
             HmacSHA256(scopedConfig.getString("server-secret"))
+          case "RS256" if !jwsConfig.hasPath("rsa-private-key") && jwsConfig.hasPath("rsa-public-key") =>
+            RsaVerifyOnly.fromConfig(jwsConfig).get
           case "RS256" =>
             Rsa.fromConfig(jwsConfig).get
+          case "ES256" if !jwsConfig.hasPath("ec-private-key") =>
+            EcdsaVerifyOnly.fromConfig(jwsConfig).get
+          case "ES256" =>
+            Ecdsa.fromConfig(jwsConfig).get
+          case "EDDSA" if !jwsConfig.hasPath("ed25519-private-key") =>
+            EdDsaVerifyOnly.fromConfig(jwsConfig).get
+          case "EDDSA" =>
+            EdDsa.fromConfig(jwsConfig).get
           case oth =>
-            throw new IllegalArgumentException(s"Unsupported JWS alg '$oth'. Supported algorithms are: HS256, RS256")
+            throw new IllegalArgumentException(
+              s"Unsupported JWS alg '$oth'. Supported algorithms are: HS256, RS256, ES256, EdDSA")
         }
       },
       jwt = {
@@ -113,7 +198,11 @@ object SessionConfig {
           expirationTimeout = claimsConfig.getDurationSecondsIfExists("exp-timeout").orElse(sessionMaxAgeSeconds),
           notBeforeOffset = claimsConfig.getDurationSecondsIfExists("nbf-offset"),
           includeIssuedAt = claimsConfig.getBooleanIfExists("include-iat").getOrElse(false),
-          includeRandomJwtId = claimsConfig.getBooleanIfExists("include-jti").getOrElse(false))
+          includeRandomJwtId = claimsConfig.getBooleanIfExists("include-jti").getOrElse(false),
+          jwtIdGenerator = claimsConfig
+            .getStringIfExists("jti-generator")
+            .map(JwtIdGenerator.fromValue)
+            .getOrElse(JwtIdGenerator.Ulid))
       },
       sessionCookieConfig = CookieConfig(
         name = scopedConfig.getString("cookie.name"),
@@ -129,6 +218,14 @@ object SessionConfig {
       ),
       sessionMaxAgeSeconds = sessionMaxAgeSeconds,
       sessionEncryptData = scopedConfig.getBoolean("encrypt-data"),
+      sessionEncryption = SessionEncryption.fromValue(scopedConfig.getString("encryption")),
+      sessionTokenFormat = SessionTokenFormat.fromValue(scopedConfig.getString("token-format")),
+      verifiedSessionCacheMaxSize = scopedConfig.getOptionalLong("verified-session-cache.max-size").map(_.toInt),
+      sessionMaxTokenLength = scopedConfig.getOptionalLong("max-token-length").map(_.toInt),
+      sessionCompression = scopedConfig.getOptionalLong("compression.threshold").map { threshold =>
+        SessionCompression(threshold.toInt, scopedConfig.getString("compression.dictionary"))
+      },
+      sessionTouchReissueThreshold = scopedConfig.getOptionalDouble("touch-reissue-threshold"),
       csrfCookieConfig = CookieConfig(
         name = csrfConfig.getString("cookie.name"),
         domain = csrfConfig.getOptionalString("cookie.domain"),
@@ -152,8 +249,23 @@ object SessionConfig {
       ),
       refreshTokenMaxAgeSeconds = refreshTokenConfig.getDuration("max-age", TimeUnit.SECONDS),
       removeUsedRefreshTokenAfter = refreshTokenConfig.getDuration("remove-used-token-after", TimeUnit.SECONDS),
+      refreshTokenMaxTokenLength = refreshTokenConfig.getOptionalLong("max-token-length").map(_.toInt),
       tokenMigrationV0_5_2Enabled = tokenMigrationConfig.getBoolean("v0-5-2.enabled"),
-      tokenMigrationV0_5_3Enabled = tokenMigrationConfig.getBoolean("v0-5-3.enabled")
+      tokenMigrationV0_5_3Enabled = tokenMigrationConfig.getBoolean("v0-5-3.enabled"),
+      keyRing = {
+        val keyRingConfig = scopedConfig.getConfig("key-ring")
+        keyRingConfig.getOptionalString("active-key-id").map { activeKeyId =>
+          val keysConfig = keyRingConfig.getConfig("keys")
+          val keys = keysConfig.root().keySet().toArray(Array.empty[String]).toList.sorted.map { id =>
+            SessionKey(id, keysConfig.getString(id))
+          }
+          val active = keys
+            .find(_.id == activeKeyId)
+            .getOrElse(throw new IllegalArgumentException(
+              s"akka.http.session.key-ring.keys must contain the active key '$activeKeyId'"))
+          SessionKeyRing(active, keys.filterNot(_ == active))
+        }
+      }
     )
   }
 
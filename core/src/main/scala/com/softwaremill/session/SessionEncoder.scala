@@ -1,14 +1,44 @@
 package com.softwaremill.session
 
+import java.nio.charset.StandardCharsets.{US_ASCII, UTF_8}
+import java.security.MessageDigest
+import java.util
+
 import scala.util.Try
 
 trait SessionEncoder[T] {
   def encode(t: T, nowMillis: Long, config: SessionConfig): String
   def decode(s: String, config: SessionConfig): Try[DecodeResult[T]]
+
+  /**
+    * Like `decode`, but may fail with an [[ExpiredSessionException]] if the session has expired at `nowMillis`, so
+    * that the signature of an expired token doesn't need to be verified (if the expiry can be read before). Unless
+    * overridden, the session is fully decoded, and the caller has to check the expiry.
+    */
+  def decode(s: String, nowMillis: Long, config: SessionConfig): Try[DecodeResult[T]] = decode(s, config)
 }
 
 object SessionEncoder {
 
+  /**
+    * The time passed to `decode` by encoders which implement `decode(s, config)` using `decode(s, nowMillis, config)`:
+    * no session has expired before then.
+    */
+  private[session] val NoExpiryCheck = Long.MinValue
+
+  /**
+    * Expiry dates are only checked if sessions are configured to expire.
+    */
+  private[session] def isExpired(expires: Option[Long], nowMillis: Long, config: SessionConfig): Boolean =
+    config.sessionMaxAgeSeconds.isDefined && expires.exists(nowMillis > _)
+
+  /**
+    * Encoders check the expiry before verifying the signature, so that expired tokens are rejected cheaply. The expiry
+    * isn't authenticated yet then, but a forged one can only make the token be rejected earlier.
+    */
+  private[session] def checkNotExpired(expires: Option[Long], nowMillis: Long, config: SessionConfig): Unit =
+    if (isExpired(expires, nowMillis, config)) throw new ExpiredSessionException
+
   /**
     * Default low-priority implicit encoder. If you wish to use another one, provide an implicit encoder in a
     * higher-priority implicit scope, e.g. as an implicit value declared next to `SessionManager`.
@@ -19,66 +49,337 @@ object SessionEncoder {
 case class DecodeResult[T](t: T, expires: Option[Long], signatureMatches: Boolean, isLegacy: Boolean)
 
 /**
+  * Encodes sessions as `[keyId.]signature-[expiry-]data`, where the data is optionally encrypted. The key id is only
+  * present if a [[SessionKeyRing]] is configured.
+  *
+  * When using [[SessionEncryption.AesGcm]] encryption, sessions are encoded as `[keyId.]encrypted`, where the
+  * encrypted data (`[expiry-]data`) is authenticated, so that no separate signature is needed.
+  *
+  * If [[SessionTokenFormat.Compact]] is configured, sessions are encoded as `1~[keyId.]header~data` instead, see
+  * [[SessionTokenFormat.Compact]]. The format of a token is recognized up front when decoding, so tokens in all formats
+  * are accepted.
+  *
+  * If [[SessionConfig.sessionCompression]] is configured, large sessions are compressed before being signed and
+  * encrypted. Compressed data which isn't encrypted is base64url-encoded.
+  *
+  * Forged and expired tokens are rejected as early as possible: when decoding, the structure of the token is checked
+  * first, then the expiry (if it's not encrypted), then the signature, and only then the data is decrypted (unless
+  * it's needed to verify the signature) and deserialized. Hence, a forged token fails to decode, instead of yielding
+  * a result whose signature doesn't match.
+  *
   * @param serializer Must create cookie-safe strings (only with allowed characters).
   */
 class BasicSessionEncoder[T](implicit serializer: SessionSerializer[T, String]) extends SessionEncoder[T] {
+  import BasicSessionEncoder._
+  import SessionEncoder.{checkNotExpired, NoExpiryCheck}
 
   override def encode(t: T, nowMillis: Long, config: SessionConfig) = {
-    // adding an "x" so that the string is never empty, even if there's no data
-    val serialized = "x" + serializer.serialize(t)
+    val serialized = serializer.serialize(t)
+    val expiry = config.sessionMaxAgeSeconds.fold(NoExpiry)(maxAge => nowMillis + maxAge * 1000L)
+
+    if (config.sessionTokenFormat == SessionTokenFormat.Compact) encodeCompact(serialized, expiry, config)
+    else encodeLegacy(serialized, expiry, config)
+  }
 
-    val withExpiry = config.sessionMaxAgeSeconds.fold(serialized) { maxAge =>
-      val expiry = nowMillis + maxAge * 1000L
-      s"$expiry-$serialized"
+  private def encodeLegacy(serialized: String, expiry: Long, config: SessionConfig): String = {
+    // encrypted data may be binary
+    val binary = config.sessionEncryptData
+    val compressed = compress(serialized, binary, config)
+    val data = compressed.fold(new Data(expiry, serialized)) { c =>
+      new Data(expiry, if (binary) "" else SessionUtil.toBase64Url(c), compressed = true)
     }
+    def dataBytes = compressed.filter(_ => binary).fold(data.toBytes)(data.toBytesFollowedBy)
+    val (keyId, key) = config.sessionSigningKey
+    val keyIdLength = keyId.fold(0)(_.length + 1)
 
-    val encrypted = if (config.sessionEncryptData) Crypto.encrypt_AES(withExpiry, config.serverSecret) else withExpiry
+    // the token is assembled in a single buffer, and materialized as a string only once
+    val token = if (useAesGcm(config)) {
+      val encrypted = key.aesGcm.encrypt(dataBytes)
+      val token = new Array[Char](keyIdLength + Codec.base64UrlLength(encrypted.length))
+      Codec.writeBase64Url(encrypted, token, writeKeyId(keyId, token))
+      token
+    } else {
+      val signatureLength = Codec.hexLength(key.hmacSHA1.macLength)
+      val dataOffset = keyIdLength + signatureLength + 1
 
-    s"${Crypto.sign_HmacSHA1_hex(withExpiry, config.serverSecret)}-$encrypted"
+      val (token, signature) = if (config.sessionEncryptData) {
+        val signed = dataBytes
+        val encrypted = Crypto.encrypt_AES(signed, key.aes)
+        val token = new Array[Char](dataOffset + Codec.hexLength(encrypted.length))
+        Codec.writeHex(encrypted, token, dataOffset)
+        (token, key.hmacSHA1.sign(signed))
+      } else {
+        val token = new Array[Char](dataOffset + data.length)
+        data.write(token, dataOffset)
+        (token, key.hmacSHA1.sign(Codec.encodeUtf8(token, dataOffset, token.length)))
+      }
+
+      Codec.writeHex(signature, token, writeKeyId(keyId, token))
+      token(dataOffset - 1) = '-'
+      token
+    }
+
+    new String(token)
   }
 
-  override def decode(s: String, config: SessionConfig) = {
-    def extractExpiry(data: String): (Option[Long], String) = {
-      config.sessionMaxAgeSeconds.fold((Option.empty[Long], data)) { _ =>
-        val splitted = data.split("-", 2)
-        (Some(splitted(0).toLong), splitted(1))
-      }
+  override def decode(s: String, config: SessionConfig) = decode(s, NoExpiryCheck, config)
+
+  override def decode(s: String, nowMillis: Long, config: SessionConfig) =
+    if (s.length > 1 && s.charAt(1) == VersionSeparator) decodeCompact(s, nowMillis, config)
+    else if (useAesGcm(config)) decodeAesGcm(s, nowMillis, config)
+    else decodeSigned(s, nowMillis, config)
+
+  private def encodeCompact(serialized: String, expiry: Long, config: SessionConfig): String = {
+    val (keyId, key) = config.sessionSigningKey
+    val encrypt = config.sessionEncryptData
+    val compressed = compress(serialized, binary = encrypt, config)
+    val flags = (if (expiry == NoExpiry) 0 else FlagExpiry) | (if (encrypt) FlagEncrypted else 0) |
+      (if (compressed.isDefined) FlagCompressed else 0)
+    val headerLength = compactHeaderLength(flags)
+    val header = new Array[Byte](headerLength)
+    header(0) = flags.toByte
+    if (expiry != NoExpiry) Codec.writeLong(expiry, header, 1)
+    val unsignedLength = if (encrypt) headerLength else headerLength - CompactSignatureLength
+
+    val encrypted =
+      if (encrypt)
+        key.aesGcm.encrypt(compressed.getOrElse(Codec.encodeUtf8(serialized, 0, serialized.length)), header)
+      else null
+    val data = if (encrypt) null else compressed.fold(serialized)(SessionUtil.toBase64Url)
+    if (!encrypt) {
+      val signature = key.hmacSHA256.sign(header, unsignedLength, Codec.encodeUtf8(data, 0, data.length))
+      System.arraycopy(signature, 0, header, unsignedLength, CompactSignatureLength)
     }
 
-    def verifySignature(tokenSignature: String, expectedValue: String) = {
-      SessionUtil.constantTimeEquals(tokenSignature, Crypto.sign_HmacSHA1_hex(expectedValue, config.serverSecret))
+    val keyIdLength = keyId.fold(0)(_.length + 1)
+    val dataOffset = 2 + keyIdLength + Codec.base64UrlLength(headerLength) + 1
+    val token =
+      new Array[Char](dataOffset + (if (encrypt) Codec.base64UrlLength(encrypted.length) else data.length))
+    token(0) = CompactVersion
+    token(1) = VersionSeparator
+    keyId.foreach { id =>
+      id.getChars(0, id.length, token, 2)
+      token(2 + id.length) = '.'
     }
+    Codec.writeBase64Url(header, token, 2 + keyIdLength)
+    token(dataOffset - 1) = VersionSeparator
+    if (encrypt) Codec.writeBase64Url(encrypted, token, dataOffset)
+    else data.getChars(0, data.length, token, dataOffset)
+    new String(token)
+  }
 
+  private def decodeCompact(s: String, nowMillis: Long, config: SessionConfig): Try[DecodeResult[T]] =
     Try {
-      val splitted = s.split("-", 2)
+      if (s.charAt(0) != CompactVersion)
+        throw new CorruptSessionException(s"Unsupported session token version '${s.charAt(0)}'")
+
+      // neither key ids nor base64url contain '~' or '.'
+      val headerEnd = s.indexOf(VersionSeparator, 2)
+      if (headerEnd == -1) throw new CorruptSessionException("Missing session data")
+      val dot = s.lastIndexOf('.', headerEnd)
+      val key = config.sessionVerificationKey(if (dot == -1) None else Some(s.substring(2, dot)))
+
+      val header = Codec.parseBase64Url(s, if (dot == -1) 2 else dot + 1, headerEnd)
+      if (header.isEmpty || header.length != compactHeaderLength(header(0)))
+        throw new CorruptSessionException("Invalid session token header")
+      val flags = header(0)
+      val hasExpiry = (flags & FlagExpiry) != 0
+      // the expiry can't be removed, as it's authenticated, but a token could have been issued without one
+      if (!hasExpiry && config.sessionMaxAgeSeconds.isDefined)
+        throw new CorruptSessionException("Missing session expiry")
+      val expiry = if (hasExpiry) Some(Codec.readLong(header, 1)) else None
+      checkNotExpired(expiry, nowMillis, config)
+
+      val compressed = (flags & FlagCompressed) != 0
+      val serialized = if ((flags & FlagEncrypted) != 0) {
+        // decryption fails if the data or the header has been tampered with
+        val decrypted = key.aesGcm.decrypt(Codec.parseBase64Url(s, headerEnd + 1, s.length), header)
+        if (compressed) decompress(decrypted, 0, decrypted.length, config) else new String(decrypted, UTF_8)
+      } else {
+        val unsignedLength = header.length - CompactSignatureLength
+        val signature = key.hmacSHA256.sign(header, unsignedLength, Codec.encodeUtf8(s, headerEnd + 1, s.length))
+        if (!MessageDigest.isEqual(util.Arrays.copyOfRange(header, unsignedLength, header.length),
+                                   util.Arrays.copyOf(signature, CompactSignatureLength)))
+          throw new CorruptSessionException("Corrupt signature")
+        if (compressed) {
+          val deflated = Codec.parseBase64Url(s, headerEnd + 1, s.length)
+          decompress(deflated, 0, deflated.length, config)
+        } else s.substring(headerEnd + 1)
+      }
+
+      serializer.deserialize(serialized).map { deserialized =>
+        DecodeResult(deserialized, expiry, signatureMatches = true, isLegacy = false)
+      }
+    }.flatten
+
+  /**
+    * The compressed session, if it's large enough, and compressing it makes the token shorter. Unless the compressed
+    * data is `binary`, it's base64url-encoded.
+    */
+  private def compress(serialized: String, binary: Boolean, config: SessionConfig): Option[Array[Byte]] =
+    config.sessionCompression.filter(serialized.length >= _.threshold).flatMap { compression =>
+      val bytes = Codec.encodeUtf8(serialized, 0, serialized.length)
+      val compressed = SessionCompression.deflate(bytes, compression.dictionaryBytes)
+      val compressedLength = if (binary) compressed.length else Codec.base64UrlLength(compressed.length)
+      if (compressedLength < bytes.length) Some(compressed) else None
+    }
+
+  private def decompress(data: Array[Byte], from: Int, until: Int, config: SessionConfig): String =
+    new String(SessionCompression.inflate(data, from, until, SessionCompression.dictionary(config)), UTF_8)
+
+  private def useAesGcm(config: SessionConfig) =
+    config.sessionEncryptData && config.sessionEncryption == SessionEncryption.AesGcm
+
+  private def writeKeyId(keyId: Option[String], dest: Array[Char]): Int = keyId.fold(0) { id =>
+    id.getChars(0, id.length, dest, 0)
+    dest(id.length) = '.'
+    id.length + 1
+  }
+
+  /**
+    * @return The index at which the (`x`-prefixed) serialized data starts, and the expiry, if enabled.
+    */
+  private def extractExpiry(data: Array[Byte], config: SessionConfig): (Int, Option[Long]) = {
+    if (config.sessionMaxAgeSeconds.isDefined) {
+      val dash = Codec.indexOf(data, '-', 0)
+      (dash + 1, Some(Codec.parseDecimal(data, 0, dash)))
+    } else (0, None)
+  }
+
+  /**
+    * @param binary If the data has been encrypted, compressed data isn't base64url-encoded.
+    */
+  private def deserialize(data: Array[Byte],
+                          serializedStart: Int,
+                          v0_5_2: Boolean,
+                          binary: Boolean,
+                          config: SessionConfig): Try[T] = Try {
+    // skipping the "x" (or "z") prefix
+    val from = serializedStart + 1
+    if (from > data.length) throw new IllegalArgumentException("Missing session data")
+    if (data(serializedStart) == CompressedPrefix) {
+      if (binary) decompress(data, from, data.length, config)
+      else {
+        val deflated = Codec.parseBase64Url(new String(data, from, data.length - from, US_ASCII), 0, data.length - from)
+        decompress(deflated, 0, deflated.length, config)
+      }
+    } else new String(data, from, data.length - from, UTF_8)
+  }.flatMap(str => if (v0_5_2) serializer.deserializeV0_5_2(str) else serializer.deserialize(str))
+
+  private def decodeAesGcm(s: String, nowMillis: Long, config: SessionConfig): Try[DecodeResult[T]] =
+    Try {
+      val dot = s.indexOf('.')
+      val key = config.sessionVerificationKey(if (dot == -1) None else Some(s.substring(0, dot)))
+      // decryption fails if the data has been tampered with, hence if it succeeds, the "signature" matches
+      val decrypted = key.aesGcm.decrypt(Codec.parseBase64Url(s, dot + 1, s.length))
+      val (serializedStart, expiry) = extractExpiry(decrypted, config)
+      checkNotExpired(expiry, nowMillis, config)
+
+      deserialize(decrypted, serializedStart, v0_5_2 = false, binary = true, config).map { deserialized =>
+        DecodeResult(deserialized, expiry, signatureMatches = true, isLegacy = false)
+      }
+    }.flatten
+
+  private def decodeSigned(s: String, nowMillis: Long, config: SessionConfig): Try[DecodeResult[T]] =
+    Try {
+      val dash = s.indexOf('-')
+      if (dash == -1) throw new IllegalArgumentException("Missing session signature")
+      // key ids and hex signatures never contain a '.'
+      val dot = s.lastIndexOf('.', dash)
+      val key = config.sessionVerificationKey(if (dot == -1) None else Some(s.substring(0, dot)))
+      val signature = Codec.parseHex(s, dot + 1, dash)
+
+      // the signature is computed over the unencrypted data, so encrypted data has to be decrypted first; otherwise,
+      // the expiry (if any) is in plain text, and can be checked before the signature
       val decrypted =
-        if (config.sessionEncryptData) Crypto.decrypt_AES(splitted(1), config.serverSecret) else splitted(1)
-      val (expiry, serialized) = extractExpiry(decrypted)
+        if (config.sessionEncryptData) Crypto.decrypt_AES(Codec.parseHex(s, dash + 1, s.length), key.aes)
+        else Codec.encodeUtf8(s, dash + 1, s.length)
+      val (serializedStart, expiry) = extractExpiry(decrypted, config)
+      checkNotExpired(expiry, nowMillis, config)
+
+      def verifySignature(from: Int) =
+        MessageDigest.isEqual(signature, key.hmacSHA1.sign(decrypted, from, decrypted.length - from))
+
+      val signatureMatchesLegacy = if (verifySignature(0)) {
+        false
+      } else if (config.tokenMigrationV0_5_2Enabled && serializedStart > 0 && verifySignature(serializedStart)) {
+        // pre-v0.5.2 tokens with an expiry only signed the data; without an expiry, they were signed in the same way
+        true
+      } else {
+        throw new CorruptSessionException("Corrupt signature")
+      }
 
       val (deserializedResult, deserializedLegacy) = {
-        val deserializedResult = serializer.deserialize(serialized.substring(1))
+        val binary = config.sessionEncryptData
+        val deserializedResult = deserialize(decrypted, serializedStart, v0_5_2 = false, binary, config)
 
         if (deserializedResult.isFailure && config.tokenMigrationV0_5_3Enabled) {
           // Try deserializer assuming pre-v0.5.3.
-          (serializer.deserializeV0_5_2(serialized.substring(1)), true)
+          (deserialize(decrypted, serializedStart, v0_5_2 = true, binary, config), true)
         } else {
           (deserializedResult, false)
         }
       }
 
-      deserializedResult.map { deserialized =>
-        val signatureMatches = verifySignature(splitted(0), decrypted)
+      val isLegacy = signatureMatchesLegacy || deserializedLegacy
+      deserializedResult.map(DecodeResult(_, expiry, signatureMatches = true, isLegacy))
+    }.flatten
+}
 
-        if (!signatureMatches && config.tokenMigrationV0_5_2Enabled) {
-          // Try signature check assuming pre-v0.5.2.
-          val signatureMatchesLegacy = verifySignature(splitted(0), serialized)
-          val isLegacy = signatureMatchesLegacy || deserializedLegacy
+object BasicSessionEncoder {
+  private val NoExpiry = -1L
 
-          DecodeResult(deserialized, expiry, signatureMatchesLegacy, isLegacy)
-        } else {
-          DecodeResult(deserialized, expiry, signatureMatches, isLegacy = deserializedLegacy)
-        }
+  // a version prefix of compact tokens: legacy tokens never contain a `~` before their first `-` or `.`, and the
+  // second character of AES-GCM ones is base64url or part of a key id
+  private val CompactVersion = '1'
+  private val VersionSeparator = '~'
+
+  private val FlagExpiry = 1
+  private val FlagEncrypted = 2
+  private val FlagCompressed = 4
+  // HMAC-SHA256, truncated to 128 bits
+  private val CompactSignatureLength = 16
+
+  /**
+    * The flags byte, the expiry (if present) and the signature (if not encrypted).
+    */
+  private def compactHeaderLength(flags: Int): Int =
+    1 + (if ((flags & FlagExpiry) != 0) 8 else 0) + (if ((flags & FlagEncrypted) != 0) 0 else CompactSignatureLength)
+
+  private val CompressedPrefix = 'z'
+
+  /**
+    * The `[expiry-]x<serialized>` part of a token, which is signed and optionally encrypted. The "x" is added so that
+    * the data is never empty, even if the serialized session is. Compressed data is prefixed with a "z" instead.
+    */
+  private class Data(expiry: Long, serialized: String, compressed: Boolean = false) {
+    val length: Int = (if (expiry == NoExpiry) 0 else Codec.decimalLength(expiry) + 1) + 1 + serialized.length
+
+    def write(dest: Array[Char], offset: Int): Unit = {
+      var i = offset
+      if (expiry != NoExpiry) {
+        i = Codec.writeDecimal(expiry, dest, i)
+        dest(i) = '-'
+        i += 1
       }
-    }.flatten
+      dest(i) = if (compressed) CompressedPrefix else 'x'
+      serialized.getChars(0, serialized.length, dest, i + 1)
+    }
+
+    def toBytes: Array[Byte] = {
+      val chars = new Array[Char](length)
+      write(chars, 0)
+      Codec.encodeUtf8(chars, 0, length)
+    }
+
+    /**
+      * The bytes of the data, followed by the given binary (compressed) data.
+      */
+    def toBytesFollowedBy(binary: Array[Byte]): Array[Byte] = {
+      val bytes = toBytes
+      val withBinary = util.Arrays.copyOf(bytes, bytes.length + binary.length)
+      System.arraycopy(binary, 0, withBinary, bytes.length, binary.length)
+      withBinary
+    }
   }
 }
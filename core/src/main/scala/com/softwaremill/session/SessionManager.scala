@@ -1,6 +1,7 @@
 package com.softwaremill.session
 
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
 import akka.http.scaladsl.server.AuthorizationFailedRejection
 
 import scala.concurrent.duration.Duration
@@ -8,7 +9,7 @@ import scala.concurrent.{ExecutionContext, Future}
 
 import akka.http.scaladsl.model.headers.{RawHeader, HttpCookie}
 
-import scala.util.Try
+import scala.util.{Success, Try}
 
 class SessionManager[T](val config: SessionConfig)(implicit sessionEncoder: SessionEncoder[T]) { manager =>
 
@@ -32,6 +33,13 @@ class SessionManager[T](val config: SessionConfig)(implicit sessionEncoder: Sess
   def nowMillis = System.currentTimeMillis()
 }
 
+object SessionManager {
+  private[session] def isOversized(value: String, maxLength: Option[Int]): Boolean =
+    maxLength.exists(value.length > _)
+
+  private[session] def oversizedToken = new CorruptSessionException("Token too long")
+}
+
 // Partially based on the implementation from Play! [[https://github.com/playframework]]
 // see https://github.com/playframework/playframework/blob/master/framework/src/play/src/main/scala/play/api/mvc/Http.scala
 trait ClientSessionManager[T] {
@@ -60,25 +68,73 @@ trait ClientSessionManager[T] {
 
   def encode(data: T): String = sessionEncoder.encode(data, nowMillis, config)
 
-  def decode(data: String): SessionResult[T] = {
-    sessionEncoder
-      .decode(data, config)
+  /**
+    * Defined if [[SessionConfig.verifiedSessionCacheMaxSize]] is set. Exposes the hit and miss counters.
+    */
+  lazy val verifiedSessionCache: Option[VerifiedSessionCache[T]] =
+    config.verifiedSessionCacheMaxSize.map(new VerifiedSessionCache[T](_))
+
+  private def decodeCached(data: String): Try[DecodeResult[T]] = verifiedSessionCache match {
+    case None => sessionEncoder.decode(data, nowMillis, config)
+    case Some(cache) =>
+      val now = nowMillis
+      cache.get(data, now).map(Success(_)).getOrElse {
+        val decoded = sessionEncoder.decode(data, now, config)
+        decoded.foreach(cache.put(data, _, now))
+        decoded
+      }
+  }
+
+  private val oversizedTokenCount = new LongAdder()
+
+  /**
+    * The number of session tokens rejected because they are longer than [[SessionConfig.sessionMaxTokenLength]].
+    */
+  def oversizedTokens: Long = oversizedTokenCount.sum()
+
+  def decode(data: String): SessionResult[T] = decodeWithExpiry(data)._1
+
+  /**
+    * Same as [[decode]], but also returns the expiry date (in millis) of a successfully decoded session, if the token
+    * carries one.
+    */
+  private[session] def decodeWithExpiry(data: String): (SessionResult[T], Option[Long]) =
+    if (SessionManager.isOversized(data, config.sessionMaxTokenLength)) {
+      oversizedTokenCount.increment()
+      (SessionResult.Corrupt(SessionManager.oversizedToken), None)
+    } else decodeVerified(data)
+
+  private def decodeVerified(data: String): (SessionResult[T], Option[Long]) = {
+    decodeCached(data)
       .map { dr =>
-        val expired = config.sessionMaxAgeSeconds.fold(false)(_ => nowMillis > dr.expires.getOrElse(Long.MaxValue))
-        if (expired) {
-          SessionResult.Expired
+        if (SessionEncoder.isExpired(dr.expires, nowMillis, config)) {
+          (SessionResult.Expired, None)
         } else if (!dr.signatureMatches) {
-          SessionResult.Corrupt(new RuntimeException("Corrupt signature"))
+          (SessionResult.Corrupt(new RuntimeException("Corrupt signature")), None)
         } else if (dr.isLegacy) {
-          SessionResult.DecodedLegacy(dr.t)
+          (SessionResult.DecodedLegacy(dr.t), dr.expires)
         } else {
-          SessionResult.Decoded(dr.t)
+          (SessionResult.Decoded(dr.t), dr.expires)
         }
       }
-      .recover { case t: Exception => SessionResult.Corrupt(t) }
+      .recover {
+        case _: ExpiredSessionException => (SessionResult.Expired, None)
+        case t: Exception               => (SessionResult.Corrupt(t), None)
+      }
       .get
   }
 
+  /**
+    * Whether a touched session, which expires at the given time, should be sent to the client again. Always true,
+    * unless [[SessionConfig.sessionTouchReissueThreshold]] is set: then only if less than that fraction of
+    * [[SessionConfig.sessionMaxAgeSeconds]] remains until the session expires.
+    */
+  private[session] def shouldReissueTouched(expires: Option[Long]): Boolean =
+    (config.sessionTouchReissueThreshold, config.sessionMaxAgeSeconds, expires) match {
+      case (Some(threshold), Some(maxAge), Some(expiry)) => expiry - nowMillis < threshold * maxAge * 1000L
+      case _                                             => true
+    }
+
   def sessionMissingRejection = AuthorizationFailedRejection
 }
 
@@ -104,7 +160,7 @@ trait CsrfManager[T] {
     val splitted = token.split("-", 2)
     (splitted(0), splitted(1))
   }
-  private def generateHmac(t: String): String = Crypto.sign_HmacSHA256_base64_v0_5_2(t, config.serverSecret)
+  private def generateHmac(t: String): String = Crypto.sign_HmacSHA256_base64_v0_5_2(t, config.serverSecretHmacSHA256)
 
   def createCookie() =
     HttpCookie(
@@ -123,6 +179,22 @@ trait RefreshTokenManager[T] {
   def nowMillis: Long
   def storage: RefreshTokenStorage[T]
 
+  private val oversizedTokenCount = new LongAdder()
+
+  /**
+    * The number of refresh tokens rejected because they are longer than [[SessionConfig.refreshTokenMaxTokenLength]].
+    */
+  def oversizedTokens: Long = oversizedTokenCount.sum()
+
+  /**
+    * Oversized tokens are neither split nor hashed, and never reach the storage.
+    */
+  private def withinMaxLength(value: String): Boolean =
+    if (SessionManager.isOversized(value, config.refreshTokenMaxTokenLength)) {
+      oversizedTokenCount.increment()
+      false
+    } else true
+
   def createSelector(): String = SessionUtil.randomString(16)
   def createToken(): String = SessionUtil.randomString(64)
 
@@ -145,15 +217,13 @@ trait RefreshTokenManager[T] {
       .store(
         new RefreshTokenData[T](forSession = session,
                                 selector = selector,
-                                tokenHash = Crypto.hash_SHA256(token),
+                                tokenHashBytes = RefreshTokenHash.of(token),
                                 expires = nowMillis + config.refreshTokenMaxAgeSeconds * 1000L))
       .map(_ => encodeSelectorAndToken(selector, token))
 
-    existing.flatMap(decodeSelectorAndToken).foreach {
+    existing.filter(withinMaxLength).flatMap(decodeSelectorAndToken).foreach {
       case (s, _) =>
-        storage.schedule(Duration(config.removeUsedRefreshTokenAfter, TimeUnit.SECONDS)) {
-          storage.remove(s)
-        }
+        storage.scheduleRemoval(s, Duration(config.removeUsedRefreshTokenAfter, TimeUnit.SECONDS))
     }
 
     storeFuture
@@ -175,27 +245,29 @@ trait RefreshTokenManager[T] {
     RawHeader(name = config.refreshTokenHeaderConfig.sendToClientHeaderName, value = value)
 
   def sessionFromValue(value: String)(implicit ec: ExecutionContext): Future[SessionResult[T]] = {
-    decodeSelectorAndToken(value) match {
-      case Some((selector, token)) =>
-        storage.lookup(selector).flatMap {
-          case Some(lookupResult) =>
-            if (lookupResult.expires < nowMillis) {
-              storage.remove(selector).map(_ => SessionResult.Expired)
-            } else if (!SessionUtil.constantTimeEquals(Crypto.hash_SHA256(token), lookupResult.tokenHash)) {
-              storage.remove(selector).map(_ => SessionResult.Corrupt(new RuntimeException("Corrupt token hash")))
-            } else {
-              Future.successful(SessionResult.CreatedFromToken(lookupResult.createSession()))
-            }
-
-          case None =>
-            Future.successful(SessionResult.TokenNotFound)
-        }
-      case None => Future.successful(SessionResult.Corrupt(new RuntimeException("Cannot decode selector/token")))
-    }
+    if (!withinMaxLength(value)) Future.successful(SessionResult.Corrupt(SessionManager.oversizedToken))
+    else
+      decodeSelectorAndToken(value) match {
+        case Some((selector, token)) =>
+          storage.lookup(selector).flatMap {
+            case Some(lookupResult) =>
+              if (lookupResult.expires < nowMillis) {
+                storage.remove(selector).map(_ => SessionResult.Expired)
+              } else if (!RefreshTokenHash.matches(token, lookupResult.tokenHashBytes)) {
+                storage.remove(selector).map(_ => SessionResult.Corrupt(new RuntimeException("Corrupt token hash")))
+              } else {
+                Future.successful(SessionResult.CreatedFromToken(lookupResult.createSession()))
+              }
+
+            case None =>
+              Future.successful(SessionResult.TokenNotFound)
+          }
+        case None => Future.successful(SessionResult.Corrupt(new RuntimeException("Cannot decode selector/token")))
+      }
   }
 
   def removeToken(value: String): Future[Unit] = {
-    decodeSelectorAndToken(value) match {
+    Some(value).filter(withinMaxLength).flatMap(decodeSelectorAndToken) match {
       case Some((s, _)) => storage.remove(s)
       case None         => Future.successful(())
     }
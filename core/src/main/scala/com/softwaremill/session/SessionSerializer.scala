@@ -1,6 +1,6 @@
 package com.softwaremill.session
 
-import java.net.{URLDecoder, URLEncoder}
+import java.nio.charset.StandardCharsets
 
 import scala.util.Try
 
@@ -26,34 +26,23 @@ class MultiValueSessionSerializer[T](toMap: T => Map[String, String], fromMap: M
 
   import SessionSerializer._
 
-  override def serialize(t: T) =
-    toMap(t)
-      .map { case (k, v) => urlEncode(k) + "~" + urlEncode(v) }
-      .mkString("&")
-
-  override def deserialize(s: String) = {
-    Try {
-      if (s == "") Map.empty[String, String]
-      else {
-        s.split("&")
-          .map(_.split("~", 2))
-          .map(p => urlDecode(p(0)) -> urlDecode(p(1)))
-          .toMap
-      }
-    }.flatMap(fromMap)
+  override def serialize(t: T) = {
+    val sb = new java.lang.StringBuilder
+    var first = true
+    toMap(t).foreach {
+      case (k, v) =>
+        if (!first) sb.append('&')
+        urlEncode(k, sb)
+        sb.append('~')
+        urlEncode(v, sb)
+        first = false
+    }
+    sb.toString
   }
 
-  override def deserializeV0_5_2(s: String) = {
-    Try {
-      if (s == "") Map.empty[String, String]
-      else {
-        s.split("&")
-          .map(_.split("=", 2))
-          .map(p => urlDecode(p(0)) -> urlDecode(p(1)))
-          .toMap
-      }
-    }.flatMap(fromMap)
-  }
+  override def deserialize(s: String) = Try(parseMultiValue(s, '~')).flatMap(fromMap)
+
+  override def deserializeV0_5_2(s: String) = Try(parseMultiValue(s, '=')).flatMap(fromMap)
 }
 
 object SessionSerializer {
@@ -87,6 +76,141 @@ object SessionSerializer {
   implicit def mapToStringSessionSerializer: SessionSerializer[Map[String, String], String] =
     new MultiValueSessionSerializer[Map[String, String]](identity, Try(_))
 
-  private[session] def urlEncode(s: String): String = URLEncoder.encode(s, "UTF-8")
-  private[session] def urlDecode(s: String): String = URLDecoder.decode(s, "UTF-8")
+  private[session] def urlEncode(s: String): String =
+    if (firstUnsafeChar(s) == s.length) s
+    else {
+      val sb = new java.lang.StringBuilder(s.length + 16)
+      urlEncode(s, sb)
+      sb.toString
+    }
+
+  private[session] def urlDecode(s: String): String = urlDecode(s, 0, s.length)
+
+  /**
+    * Appends `s` to `sb`, encoded in the same way as by `URLEncoder.encode(s, "UTF-8")`. Strings which only contain
+    * characters that don't need escaping are appended as-is.
+    */
+  private[session] def urlEncode(s: String, sb: java.lang.StringBuilder): Unit = {
+    val firstUnsafe = firstUnsafeChar(s)
+    sb.append(s, 0, firstUnsafe)
+    var i = firstUnsafe
+    while (i < s.length) {
+      val c = s.charAt(i)
+      if (c < 0x80 && safeChars(c)) sb.append(c)
+      else if (c == ' ') sb.append('+')
+      else if (c < 0x80) appendEscaped(sb, c)
+      else if (c < 0x800) {
+        appendEscaped(sb, 0xc0 | (c >> 6))
+        appendEscaped(sb, 0x80 | (c & 0x3f))
+      } else if (Character.isHighSurrogate(c) && i + 1 < s.length && Character.isLowSurrogate(s.charAt(i + 1))) {
+        val cp = Character.toCodePoint(c, s.charAt(i + 1))
+        appendEscaped(sb, 0xf0 | (cp >> 18))
+        appendEscaped(sb, 0x80 | ((cp >> 12) & 0x3f))
+        appendEscaped(sb, 0x80 | ((cp >> 6) & 0x3f))
+        appendEscaped(sb, 0x80 | (cp & 0x3f))
+        i += 1
+      } else if (Character.isSurrogate(c)) {
+        // unpaired surrogates can't be encoded in UTF-8, and are replaced by URLEncoder
+        appendEscaped(sb, '?')
+      } else {
+        appendEscaped(sb, 0xe0 | (c >> 12))
+        appendEscaped(sb, 0x80 | ((c >> 6) & 0x3f))
+        appendEscaped(sb, 0x80 | (c & 0x3f))
+      }
+      i += 1
+    }
+  }
+
+  /**
+    * Decodes the `[from, until)` fragment of `s` in the same way as `URLDecoder.decode(_, "UTF-8")`. If there's nothing
+    * to decode, the fragment is returned as-is.
+    */
+  private[session] def urlDecode(s: String, from: Int, until: Int): String = {
+    var i = from
+    while (i < until && s.charAt(i) != '%' && s.charAt(i) != '+') i += 1
+
+    if (i == until) s.substring(from, until)
+    else {
+      val sb = new java.lang.StringBuilder(until - from)
+      sb.append(s, from, i)
+      var bytes: Array[Byte] = null
+      while (i < until) {
+        val c = s.charAt(i)
+        if (c == '+') {
+          sb.append(' ')
+          i += 1
+        } else if (c == '%') {
+          // consecutive escaped bytes are decoded together, as they might form a single multi-byte character
+          if (bytes == null) bytes = new Array[Byte]((until - i) / 3)
+          var n = 0
+          var ascii = true
+          while (i < until && s.charAt(i) == '%') {
+            if (i + 2 >= until) throw new IllegalArgumentException("Incomplete escape sequence in a session value")
+            val b = (hexValue(s.charAt(i + 1)) << 4) | hexValue(s.charAt(i + 2))
+            bytes(n) = b.toByte
+            ascii &&= b < 0x80
+            n += 1
+            i += 3
+          }
+          if (ascii) {
+            var j = 0
+            while (j < n) {
+              sb.append(bytes(j).toChar)
+              j += 1
+            }
+          } else sb.append(new String(bytes, 0, n, StandardCharsets.UTF_8))
+        } else {
+          sb.append(c)
+          i += 1
+        }
+      }
+      sb.toString
+    }
+  }
+
+  /**
+    * Parses `&`-separated pairs, in which keys and values are url-encoded and separated with `separator`, in a single
+    * scan. As with `String.split`, trailing empty pairs are ignored. When a key is repeated, the last value is used.
+    */
+  private[session] def parseMultiValue(s: String, separator: Char): Map[String, String] = {
+    var end = s.length
+    while (end > 0 && s.charAt(end - 1) == '&') end -= 1
+
+    val builder = Map.newBuilder[String, String]
+    var start = 0
+    while (start < end) {
+      var pairEnd = s.indexOf('&', start)
+      if (pairEnd == -1 || pairEnd > end) pairEnd = end
+      val separatorIndex = s.indexOf(separator, start)
+      if (separatorIndex == -1 || separatorIndex >= pairEnd)
+        throw new IllegalArgumentException(s"Missing '$separator' in a session value")
+      builder += urlDecode(s, start, separatorIndex) -> urlDecode(s, separatorIndex + 1, pairEnd)
+      start = pairEnd + 1
+    }
+    builder.result()
+  }
+
+  // the characters which aren't escaped by URLEncoder, all of which are also safe in cookies and headers
+  private val safeChars: Array[Boolean] = {
+    val safe = new Array[Boolean](0x80)
+    (('a' to 'z') ++ ('A' to 'Z') ++ ('0' to '9') ++ Seq('-', '_', '.', '*')).foreach(c => safe(c) = true)
+    safe
+  }
+
+  private def firstUnsafeChar(s: String): Int = {
+    var i = 0
+    while (i < s.length && s.charAt(i) < 0x80 && safeChars(s.charAt(i))) i += 1
+    i
+  }
+
+  private val hexDigits = "0123456789ABCDEF"
+
+  private def appendEscaped(sb: java.lang.StringBuilder, b: Int): Unit =
+    sb.append('%').append(hexDigits.charAt((b >> 4) & 0xf)).append(hexDigits.charAt(b & 0xf))
+
+  private def hexValue(c: Char): Int = {
+    val v = Character.digit(c, 16)
+    if (v == -1) throw new IllegalArgumentException(s"Illegal hex character in an escape sequence: $c")
+    v
+  }
 }
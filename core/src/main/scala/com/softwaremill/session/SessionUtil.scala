@@ -1,15 +1,16 @@
 package com.softwaremill.session
 
-import java.math.BigInteger
 import java.util.Base64
-import java.util.concurrent.ThreadLocalRandom
+
+import akka.util.ByteString
 
 object SessionUtil {
-  def randomString(length: Int): String = {
-    // http://stackoverflow.com/questions/41107/how-to-generate-a-random-alpha-numeric-string
-    val random = ThreadLocalRandom.current()
-    new BigInteger(length * 5, random).toString(32) // because 2^5 = 32
-  }
+
+  /**
+    * A random string of exactly `length` chars (digits and lower-case letters), generated using a cryptographically
+    * strong random number generator, with 5 bits of randomness per char.
+    */
+  def randomString(length: Int): String = SecureRandomTokens.base32(length)
 
   /**
     * Utility method for generating a good server secret.
@@ -24,25 +25,32 @@ object SessionUtil {
       false
     } else {
       var equal = 0
-      for (i <- Array.range(0, a.length)) {
+      var i = 0
+      while (i < a.length) {
         equal |= a(i) ^ b(i)
+        i += 1
       }
       equal == 0
     }
   }
 
-  private val HexArray = "0123456789ABCDEF".toCharArray
+  def constantTimeEquals(a: ByteString, b: ByteString): Boolean = {
+    if (a.length != b.length) {
+      false
+    } else {
+      var equal = 0
+      var i = 0
+      while (i < a.length) {
+        equal |= a(i) ^ b(i)
+        i += 1
+      }
+      equal == 0
+    }
+  }
 
   def toHexString(bytes: Array[Byte]): String = {
-    // from https://stackoverflow.com/questions/9655181/how-to-convert-a-byte-array-to-a-hex-string-in-java
-    val hexChars = new Array[Char](bytes.length * 2)
-    var j = 0
-    while (j < bytes.length) {
-      val v = bytes(j) & 0xFF
-      hexChars(j * 2) = HexArray(v >>> 4)
-      hexChars(j * 2 + 1) = HexArray(v & 0x0F)
-      j += 1
-    }
+    val hexChars = new Array[Char](Codec.hexLength(bytes.length))
+    Codec.writeHex(bytes, hexChars, 0)
     new String(hexChars)
   }
 
@@ -67,4 +75,14 @@ object SessionUtil {
   def parseBase64_v0_5_2(s: String): Array[Byte] = {
     Base64.getUrlDecoder.decode(s)
   }
+
+  def toBase64Url(bytes: Array[Byte]): String = {
+    val chars = new Array[Char](Codec.base64UrlLength(bytes.length))
+    Codec.writeBase64Url(bytes, chars, 0)
+    new String(chars)
+  }
+
+  def parseBase64Url(s: String): Array[Byte] = {
+    Codec.parseBase64Url(s, 0, s.length)
+  }
 }
@@ -0,0 +1,182 @@
+package com.softwaremill.session
+
+import java.util.concurrent.ConcurrentLinkedQueue
+
+import akka.actor.ActorSystem
+import org.scalatest.concurrent.Eventually
+import org.scalatest.flatspec.AnyFlatSpec
+import org.scalatest.matchers.should._
+
+import scala.collection.mutable.ArrayBuffer
+import scala.concurrent.duration._
+import scala.concurrent.{Await, ExecutionContext, Future}
+
+class HashedWheelRemovalSchedulerTest extends AnyFlatSpec with Matchers with Eventually {
+
+  def await[R](f: Future[R]): R = Await.result(f, 5.seconds)
+
+  class TestScheduler(tick: FiniteDuration = 1.second,
+                      wheelSize: Int = 8,
+                      removed: ArrayBuffer[Seq[String]] = ArrayBuffer.empty[Seq[String]])
+      extends HashedWheelRemovalScheduler(tick, wheelSize, selectors => { removed += selectors; Future.successful(()) }) {
+    @volatile var now = 1000000L
+    override def nowMillis = now
+
+    def batches: Vector[Seq[String]] = removed.toVector
+  }
+
+  it should "remove tokens which are due together in a single batch" in {
+    val scheduler = new TestScheduler()
+    scheduler.scheduleRemoval("s1", 5.seconds)
+    scheduler.now += 200L
+    scheduler.scheduleRemoval("s2", 4.seconds)
+    scheduler.scheduleRemoval("s3", 10.seconds)
+    scheduler.pending should be(3)
+
+    scheduler.now += 5.seconds.toMillis
+    await(scheduler.runDueRemovals())
+
+    scheduler.batches.map(_.toSet) should be(Vector(Set("s1", "s2")))
+    scheduler.pending should be(1)
+  }
+
+  it should "not remove tokens before they are due" in {
+    val scheduler = new TestScheduler()
+    scheduler.scheduleRemoval("s1", 5.seconds)
+
+    (1 to 4).foreach { _ =>
+      scheduler.now += 1.second.toMillis
+      await(scheduler.runDueRemovals())
+    }
+    scheduler.batches should be(Vector.empty)
+
+    scheduler.now += 1.second.toMillis
+    await(scheduler.runDueRemovals())
+    scheduler.batches should be(Vector(Seq("s1")))
+    scheduler.pending should be(0)
+  }
+
+  it should "remove tokens due after more than one revolution of the wheel" in {
+    val scheduler = new TestScheduler(wheelSize = 4)
+    scheduler.scheduleRemoval("s1", 10.seconds)
+
+    (1 to 9).foreach { _ =>
+      scheduler.now += 1.second.toMillis
+      await(scheduler.runDueRemovals())
+    }
+    scheduler.batches should be(Vector.empty)
+
+    scheduler.now += 1.second.toMillis
+    await(scheduler.runDueRemovals())
+    scheduler.batches should be(Vector(Seq("s1")))
+  }
+
+  it should "remove tokens from the ticks which were missed" in {
+    val scheduler = new TestScheduler()
+    await(scheduler.runDueRemovals())
+    scheduler.scheduleRemoval("s1", 1.second)
+    scheduler.scheduleRemoval("s2", 3.seconds)
+    scheduler.scheduleRemoval("s3", 30.seconds)
+
+    scheduler.now += 20.seconds.toMillis
+    await(scheduler.runDueRemovals())
+
+    scheduler.batches.map(_.toSet) should be(Vector(Set("s1", "s2")))
+    scheduler.pending should be(1)
+  }
+
+  it should "remove tokens from the storage using the Akka scheduler" in {
+    implicit val system: ActorSystem = ActorSystem()
+    import system.dispatcher
+    try {
+      val removed = new ConcurrentLinkedQueue[Seq[String]]()
+      val failures = new ConcurrentLinkedQueue[Throwable]()
+      val storage = new InMemoryRefreshTokenStorage[String] {
+        override lazy val removalScheduler =
+          Some(RefreshTokenRemovalScheduler(this, system.scheduler, failures.add(_), tick = 50.millis))
+        override def logEnabled = false
+        override def log(msg: String) = ()
+        override def removeAll(selectors: Seq[String])(implicit ec: ExecutionContext) = {
+          removed.add(selectors)
+          super.removeAll(selectors)
+        }
+      }
+      try {
+        await(storage.store(RefreshTokenData("session", "s1", "01", Long.MaxValue)))
+        await(storage.store(RefreshTokenData("session", "s2", "01", Long.MaxValue)))
+        storage.scheduleRemoval("s1", 100.millis)
+        storage.scheduleRemoval("s2", 100.millis)
+
+        eventually(timeout(5.seconds)) {
+          storage.storedTokenCount should be(0)
+        }
+        removed.isEmpty should be(false)
+        failures.isEmpty should be(true)
+      } finally storage.removalScheduler.foreach(_.shutdown())
+    } finally await(system.terminate())
+  }
+
+  it should "remove tokens from the javadsl storage using the given scheduler" in {
+    implicit val system: ActorSystem = ActorSystem()
+    import system.dispatcher
+    try {
+      val failures = new ConcurrentLinkedQueue[Throwable]()
+      val storage = new javadsl.InMemoryRefreshTokenStorage[String](
+        Int.MaxValue,
+        s => RefreshTokenRemovalScheduler(s, system.scheduler, failures.add(_), tick = 50.millis)) {
+        override def logEnabled = false
+        override def log(msg: String) = ()
+      }
+      try {
+        await(storage.store(RefreshTokenData("session", "s1", "01", Long.MaxValue)))
+        storage.scheduleRemoval("s1", 100.millis)
+        storage.removalScheduler should not be empty
+
+        eventually(timeout(5.seconds)) {
+          storage.storedTokenCount should be(0)
+        }
+        failures.isEmpty should be(true)
+      } finally storage.removalScheduler.foreach(_.shutdown())
+    } finally await(system.terminate())
+  }
+
+  it should "run removals scheduled concurrently with the ticks" in {
+    val scheduler = new TestScheduler()
+    val ticks = 100
+    val scheduling = Future {
+      (1 to ticks * 10).foreach(i => scheduler.scheduleRemoval(s"s$i", Duration.Zero))
+    }(ExecutionContext.global)
+    (1 to ticks).foreach { _ =>
+      scheduler.now += 1.second.toMillis
+      await(scheduler.runDueRemovals())
+    }
+    await(scheduling)
+
+    scheduler.now += 1.second.toMillis
+    await(scheduler.runDueRemovals())
+    scheduler.pending should be(0)
+    scheduler.batches.flatten.size should be(ticks * 10)
+  }
+
+  it should "report removals which fail" in {
+    implicit val system: ActorSystem = ActorSystem()
+    import system.dispatcher
+    try {
+      val failures = new ConcurrentLinkedQueue[Throwable]()
+      val storage = new InMemoryRefreshTokenStorage[String] {
+        override def logEnabled = false
+        override def log(msg: String) = ()
+        override def removeAll(selectors: Seq[String])(implicit ec: ExecutionContext) =
+          Future.failed(new IllegalStateException("Storage unavailable"))
+      }
+      val scheduler = RefreshTokenRemovalScheduler(storage, system.scheduler, failures.add(_), tick = 50.millis)
+      try {
+        scheduler.scheduleRemoval("s1", 100.millis)
+
+        eventually(timeout(5.seconds)) {
+          failures.peek() shouldBe an[IllegalStateException]
+        }
+      } finally scheduler.shutdown()
+    } finally await(system.terminate())
+  }
+}
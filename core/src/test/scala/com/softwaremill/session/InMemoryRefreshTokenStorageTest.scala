@@ -0,0 +1,145 @@
+package com.softwaremill.session
+
+import java.util.concurrent.{Executors, TimeUnit}
+
+import org.scalatest.concurrent.Eventually
+import org.scalatest.flatspec.AnyFlatSpec
+import org.scalatest.matchers.should._
+
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Future}
+
+class InMemoryRefreshTokenStorageTest extends AnyFlatSpec with Matchers with Eventually {
+
+  def await[R](f: Future[R]): R = Await.result(f, 5.seconds)
+
+  class TestStorage(override val maxSize: Int = Int.MaxValue) extends InMemoryRefreshTokenStorage[String] {
+    var now = 1000L
+    override def nowMillis = now
+    override def logEnabled = false
+    override def log(msg: String) = fail("Messages shouldn't be logged when logging is disabled")
+  }
+
+  def data(selector: String, expires: Long) = RefreshTokenData(selector + "-session", selector, "01", expires)
+
+  it should "store, look up and remove tokens" in {
+    val storage = new TestStorage()
+
+    await(storage.store(data("s1", 2000L)))
+    await(storage.lookup("s1")).map(r => (r.expires, r.createSession())) should be(Some((2000L, "s1-session")))
+    storage.storedTokenCount should be(1)
+    storage.storedToken("s1").map(_.session) should be(Some("s1-session"))
+
+    await(storage.remove("s1"))
+    await(storage.lookup("s1")) should be(None)
+    storage.storedTokenCount should be(0)
+  }
+
+  it should "remove used tokens after the given delay" in {
+    val storage = new TestStorage()
+
+    await(storage.store(data("s1", 2000L)))
+    storage.scheduleRemoval("s1", 200.millis)
+    storage.storedTokenCount should be(1)
+
+    eventually(timeout(5.seconds)) {
+      storage.storedTokenCount should be(0)
+    }
+  }
+
+  it should "run operations scheduled without a delay immediately" in {
+    val storage = new TestStorage()
+
+    await(storage.store(data("s1", 2000L)))
+    storage.schedule(Duration.Zero)(storage.remove("s1"))
+    storage.storedTokenCount should be(0)
+  }
+
+  it should "replace a token stored with the same selector" in {
+    val storage = new TestStorage()
+
+    await(storage.store(data("s1", 2000L)))
+    await(storage.store(data("s1", 3000L)))
+
+    storage.storedTokenCount should be(1)
+    storage.storedToken("s1").map(_.expires) should be(Some(3000L))
+  }
+
+  it should "remove expired tokens when storing new ones" in {
+    val storage = new TestStorage()
+
+    await(storage.store(data("s1", 2000L)))
+    await(storage.store(data("s2", 5000L)))
+    storage.now = 3000L
+    await(storage.store(data("s3", 6000L)))
+
+    storage.store.keySet should be(Set("s2", "s3"))
+    storage.evictedTokens should be(0)
+  }
+
+  it should "never remove the token which is being stored, even if it's expired according to the storage's clock" in {
+    val storage = new TestStorage()
+    storage.now = 10000L
+
+    await(storage.store(data("s1", 2000L)))
+    storage.store.keySet should be(Set("s1"))
+
+    await(storage.store(data("s2", 3000L)))
+    storage.store.keySet should be(Set("s2"))
+  }
+
+  it should "never evict the token which is being stored" in {
+    val storage = new TestStorage(maxSize = 2)
+
+    await(storage.store(data("s1", 4000L)))
+    await(storage.store(data("s2", 3000L)))
+    await(storage.store(data("s3", 2000L)))
+
+    storage.store.keySet should be(Set("s1", "s3"))
+    storage.evictedTokens should be(1)
+  }
+
+  it should "evict the tokens which expire first when the storage is full" in {
+    val storage = new TestStorage(maxSize = 2)
+
+    await(storage.store(data("s1", 4000L)))
+    await(storage.store(data("s2", 2000L)))
+    await(storage.store(data("s3", 3000L)))
+
+    storage.store.keySet should be(Set("s1", "s3"))
+    storage.evictedTokens should be(1)
+  }
+
+  it should "iterate over the stored tokens without copying them" in {
+    val storage = new TestStorage()
+    await(storage.store(data("s1", 2000L)))
+    await(storage.store(data("s2", 3000L)))
+
+    var stored = Set.empty[(String, Long)]
+    storage.foreachStoredToken((selector, s) => stored += selector -> s.expires)
+
+    stored should be(Set("s1" -> 2000L, "s2" -> 3000L))
+  }
+
+  it should "stay bounded when used concurrently" in {
+    val storage = new TestStorage(maxSize = 100)
+    val threads = 8
+    val executor = Executors.newFixedThreadPool(threads)
+    try {
+      (1 to threads).foreach { t =>
+        executor.submit(new Runnable {
+          override def run(): Unit = (1 to 1000).foreach { i =>
+            await(storage.store(data(s"t$t-$i", 2000L + i)))
+            if (i % 3 == 0) await(storage.remove(s"t$t-${i - 1}"))
+          }
+        })
+      }
+    } finally {
+      executor.shutdown()
+      executor.awaitTermination(30, TimeUnit.SECONDS) should be(true)
+    }
+
+    storage.storedTokenCount should be <= 100
+    storage.store.keySet.foreach(selector => await(storage.lookup(selector)) shouldBe defined)
+  }
+}
@@ -1,6 +1,9 @@
 package com.softwaremill.session
 
-import java.security.{KeyPairGenerator, PrivateKey}
+import java.math.BigInteger
+import java.security.interfaces.ECPublicKey
+import java.security.spec.{ECFieldFp, ECGenParameterSpec, ECParameterSpec, ECPoint, EllipticCurve}
+import java.security.{Key, KeyPair, KeyPairGenerator, PrivateKey, PublicKey}
 import java.util.Base64
 
 import com.softwaremill.session.JwsAlgorithm.HmacSHA256
@@ -11,6 +14,7 @@ import matchers.should._
 import org.scalatest.flatspec.AnyFlatSpec
 
 import scala.concurrent.duration._
+import scala.util.Try
 
 class SessionConfigTest extends AnyFlatSpec with Matchers with OptionValues {
 
@@ -60,6 +64,24 @@ class SessionConfigTest extends AnyFlatSpec with Matchers with OptionValues {
     config.jws.alg should equal(JwsAlgorithm.Rsa(privateKey))
   }
 
+  it should "load and parse a verify-only RS256 JWS config" in {
+    val publicKey: PublicKey = {
+      val keyPairGen = KeyPairGenerator.getInstance("RSA")
+      keyPairGen.initialize(2048)
+      keyPairGen.generateKeyPair().getPublic
+    }
+    val encodedPublicKey: String = Base64.getEncoder.encodeToString(publicKey.getEncoded)
+    val fakeConfig = configWith(s"""
+        |akka.http.session.jws {
+        |  alg = "RS256"
+        |  rsa-public-key = "-----BEGIN PUBLIC KEY-----\\n$encodedPublicKey\\n-----END PUBLIC KEY-----"
+        |}
+      """.stripMargin)
+
+    val config = SessionConfig.fromConfig(fakeConfig)
+    config.jws.alg should equal(JwsAlgorithm.RsaVerifyOnly(publicKey))
+  }
+
   it should "fail to load config due to missing RSA private key (alg = RS256)" in {
     val fakeConfig = configWith(s"""
          |akka.http.session.jws {
@@ -98,12 +120,138 @@ class SessionConfigTest extends AnyFlatSpec with Matchers with OptionValues {
     ex.getMessage should equal("Invalid RSA private key")
   }
 
+  def encoded(key: Key): String = Base64.getEncoder.encodeToString(key.getEncoded)
+
+  def ecKeyPair(curve: String): KeyPair = {
+    val keyPairGen = KeyPairGenerator.getInstance("EC")
+    keyPairGen.initialize(new ECGenParameterSpec(curve))
+    keyPairGen.generateKeyPair()
+  }
+
+  it should "load and parse ES256 JWS config" in {
+    val kp = ecKeyPair("secp256r1")
+    val fakeConfig = configWith(s"""
+        |akka.http.session.jws {
+        |  alg = "ES256"
+        |  ec-private-key = "${encoded(kp.getPrivate)}"
+        |  ec-public-key = "${encoded(kp.getPublic)}"
+        |}
+      """.stripMargin)
+
+    val config = SessionConfig.fromConfig(fakeConfig)
+    config.jws.alg should equal(JwsAlgorithm.Ecdsa(kp.getPrivate, kp.getPublic))
+  }
+
+  it should "load and parse a verify-only ES256 JWS config" in {
+    val kp = ecKeyPair("secp256r1")
+    val fakeConfig = configWith(s"""
+        |akka.http.session.jws {
+        |  alg = "ES256"
+        |  ec-public-key = "${encoded(kp.getPublic)}"
+        |}
+      """.stripMargin)
+
+    val config = SessionConfig.fromConfig(fakeConfig)
+    config.jws.alg should equal(JwsAlgorithm.EcdsaVerifyOnly(kp.getPublic))
+  }
+
+  it should "fail to load config due to an EC key on another curve (alg = ES256)" in {
+    val kp = ecKeyPair("secp384r1")
+    val fakeConfig = configWith(s"""
+        |akka.http.session.jws {
+        |  alg = "ES256"
+        |  ec-private-key = "${encoded(kp.getPrivate)}"
+        |  ec-public-key = "${encoded(kp.getPublic)}"
+        |}
+      """.stripMargin)
+    val ex = intercept[IllegalArgumentException] {
+      SessionConfig.fromConfig(fakeConfig)
+    }
+    ex.getMessage should equal("ES256 requires a key on the P-256 curve")
+  }
+
+  it should "reject an EC key on another 256-bit curve (alg = ES256)" in {
+    // secp256k1 keys can't be generated or decoded since Java 16, hence the explicit domain parameters
+    val secp256k1 = new ECParameterSpec(
+      new EllipticCurve(
+        new ECFieldFp(new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEFFFFFC2F", 16)),
+        BigInteger.ZERO,
+        BigInteger.valueOf(7)
+      ),
+      new ECPoint(
+        new BigInteger("79BE667EF9DCBBAC55A06295CE870B07029BFCDB2DCE28D959F2815B16F81798", 16),
+        new BigInteger("483ADA7726A3C4655DA4FBFC0E1108A8FD17B448A68554199C47D08FFB10D4B8", 16)
+      ),
+      new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEBAAEDCE6AF48A03BBFD25E8CD0364141", 16),
+      1
+    )
+    val key = new ECPublicKey {
+      override def getW: ECPoint = secp256k1.getGenerator
+      override def getParams: ECParameterSpec = secp256k1
+      override def getAlgorithm: String = "EC"
+      override def getFormat: String = "X.509"
+      override def getEncoded: Array[Byte] = Array.emptyByteArray
+    }
+
+    val ex = JwsAlgorithm.Ecdsa.checkCurve(key).failed.get
+    ex shouldBe an[IllegalArgumentException]
+    ex.getMessage should equal("ES256 requires a key on the P-256 curve")
+    JwsAlgorithm.Ecdsa.checkCurve(ecKeyPair("secp256r1").getPublic).isSuccess should be(true)
+  }
+
+  it should "fail to load config due to mismatched EC keys (alg = ES256)" in {
+    val fakeConfig = configWith(s"""
+        |akka.http.session.jws {
+        |  alg = "ES256"
+        |  ec-private-key = "${encoded(ecKeyPair("secp256r1").getPrivate)}"
+        |  ec-public-key = "${encoded(ecKeyPair("secp256r1").getPublic)}"
+        |}
+      """.stripMargin)
+    val ex = intercept[IllegalArgumentException] {
+      SessionConfig.fromConfig(fakeConfig)
+    }
+    ex.getMessage should equal("The configured private and public keys don't match")
+  }
+
+  it should "fail to load config due to missing EC public key (alg = ES256)" in {
+    val fakeConfig = configWith(s"""
+        |akka.http.session.jws {
+        |  alg = "ES256"
+        |  ec-private-key = "${encoded(ecKeyPair("secp256r1").getPrivate)}"
+        |}
+      """.stripMargin)
+    val ex = intercept[IllegalArgumentException] {
+      SessionConfig.fromConfig(fakeConfig)
+    }
+    ex.getMessage should equal("akka.http.session.jws.ec-public-key must be defined in order to use alg = ES256")
+  }
+
+  it should "load and parse EdDSA JWS config" in {
+    // Ed25519 is only available since Java 15
+    assume(Try(KeyPairGenerator.getInstance("Ed25519")).isSuccess)
+    val kp = KeyPairGenerator.getInstance("Ed25519").generateKeyPair()
+    val fakeConfig = configWith(s"""
+        |akka.http.session.jws {
+        |  alg = "EdDSA"
+        |  ed25519-private-key = "${encoded(kp.getPrivate)}"
+        |  ed25519-public-key = "${encoded(kp.getPublic)}"
+        |}
+      """.stripMargin)
+
+    val config = SessionConfig.fromConfig(fakeConfig)
+    config.jws.alg should equal(JwsAlgorithm.EdDsa(kp.getPrivate, kp.getPublic))
+
+    val verifyOnlyConfig = SessionConfig.fromConfig(
+      fakeConfig.withoutPath("akka.http.session.jws.ed25519-private-key"))
+    verifyOnlyConfig.jws.alg should equal(JwsAlgorithm.EdDsaVerifyOnly(kp.getPublic))
+  }
+
   it should "fail to load config due to unsupported JWS alg" in {
     val fakeConfig = configWith("""akka.http.session.jws.alg = "UNSUPPORTED1" """)
     val ex = intercept[IllegalArgumentException] {
       SessionConfig.fromConfig(fakeConfig)
     }
-    ex.getMessage should equal(s"Unsupported JWS alg 'UNSUPPORTED1'. Supported algorithms are: HS256, RS256")
+    ex.getMessage should equal(s"Unsupported JWS alg 'UNSUPPORTED1'. Supported algorithms are: HS256, RS256, ES256, EdDSA")
   }
 
   it should "load JWT config" in {
@@ -116,6 +264,7 @@ class SessionConfigTest extends AnyFlatSpec with Matchers with OptionValues {
         |nbf-offset = 5 minutes
         |include-iat = true
         |include-jti = true
+        |jti-generator = "uuid"
         |} """.stripMargin)
     val config = SessionConfig.fromConfig(fakeConfig)
 
@@ -126,6 +275,7 @@ class SessionConfigTest extends AnyFlatSpec with Matchers with OptionValues {
     config.jwt.notBeforeOffset.value should equal(5.minutes.toSeconds)
     config.jwt.includeIssuedAt shouldBe true
     config.jwt.includeRandomJwtId shouldBe true
+    config.jwt.jwtIdGenerator shouldBe JwtIdGenerator.RandomUuid
   }
 
   it should "fallback to empty JWT config (with default exp-timeout) if absent" in {
@@ -139,6 +289,14 @@ class SessionConfigTest extends AnyFlatSpec with Matchers with OptionValues {
     config.jwt.notBeforeOffset should not be defined
     config.jwt.includeIssuedAt shouldBe false
     config.jwt.includeRandomJwtId shouldBe false
+    config.jwt.jwtIdGenerator shouldBe JwtIdGenerator.Ulid
+  }
+
+  it should "fail to load config due to an unsupported jti generator" in {
+    val ex = intercept[IllegalArgumentException] {
+      SessionConfig.fromConfig(configWith("""akka.http.session.jwt.jti-generator = "sequential" """))
+    }
+    ex.getMessage should equal("Unsupported jti generator 'sequential'. Supported values are: ulid, uuid")
   }
 
   it should "fallback to empty JWT config (without default exp-timeout) if absent" in {
@@ -167,4 +325,133 @@ class SessionConfigTest extends AnyFlatSpec with Matchers with OptionValues {
     config.jwt.expirationTimeout.value should equal(10L)
   }
 
+  it should "not define a key ring by default" in {
+    SessionConfig.fromConfig(referenceConfWithSecret(fakeServerSecret)).keyRing should not be defined
+  }
+
+  it should "load the key ring" in {
+    val config = SessionConfig.fromConfig(configWith(
+      s"""akka.http.session.key-ring {
+        |  active-key-id = "k2"
+        |  keys {
+        |    k1 = "${"1" * 64}"
+        |    k2 = "${"2" * 64}"
+        |  }
+        |}""".stripMargin))
+
+    config.keyRing.value should equal(SessionKeyRing(SessionKey("k2", "2" * 64), List(SessionKey("k1", "1" * 64))))
+  }
+
+  it should "fail to load the key ring if the active key is missing" in {
+    val ex = intercept[IllegalArgumentException] {
+      SessionConfig.fromConfig(configWith(
+        s"""akka.http.session.key-ring {
+          |  active-key-id = "k2"
+          |  keys {
+          |    k1 = "${"1" * 64}"
+          |  }
+          |}""".stripMargin))
+    }
+    ex.getMessage should equal("akka.http.session.key-ring.keys must contain the active key 'k2'")
+  }
+
+  it should "use AES session encryption by default" in {
+    SessionConfig.fromConfig(referenceConfWithSecret(fakeServerSecret)).sessionEncryption should equal(
+      SessionEncryption.Aes)
+  }
+
+  it should "load AES-GCM session encryption" in {
+    val config = SessionConfig.fromConfig(configWith("""akka.http.session.encryption = "AES-GCM" """))
+    config.sessionEncryption should equal(SessionEncryption.AesGcm)
+  }
+
+  it should "fail to load config due to unsupported session encryption" in {
+    val ex = intercept[IllegalArgumentException] {
+      SessionConfig.fromConfig(configWith("""akka.http.session.encryption = "DES" """))
+    }
+    ex.getMessage should equal("Unsupported session encryption 'DES'. Supported values are: AES, AES-GCM")
+  }
+
+  it should "load the compact session token format" in {
+    val config = SessionConfig.fromConfig(configWith("""akka.http.session.token-format = "compact" """))
+    config.sessionTokenFormat should equal(SessionTokenFormat.Compact)
+  }
+
+  it should "fail to load config due to unsupported session token format" in {
+    val ex = intercept[IllegalArgumentException] {
+      SessionConfig.fromConfig(configWith("""akka.http.session.token-format = "v2" """))
+    }
+    ex.getMessage should equal("Unsupported session token format 'v2'. Supported values are: legacy, compact")
+  }
+
+  it should "not cache verified sessions by default" in {
+    SessionConfig.fromConfig(referenceConfWithSecret(fakeServerSecret)).verifiedSessionCacheMaxSize should be(None)
+  }
+
+  it should "load the verified session cache size" in {
+    val config = SessionConfig.fromConfig(configWith("akka.http.session.verified-session-cache.max-size = 10000"))
+    config.verifiedSessionCacheMaxSize should be(Some(10000))
+  }
+
+  it should "only limit the length of refresh tokens by default" in {
+    val config = SessionConfig.fromConfig(referenceConfWithSecret(fakeServerSecret))
+    config.sessionMaxTokenLength should be(None)
+    config.refreshTokenMaxTokenLength should be(Some(1024))
+  }
+
+  it should "use the reference.conf defaults when created directly" in {
+    val c = SessionConfig.fromConfig(referenceConfWithSecret(fakeServerSecret))
+    val config = SessionConfig(
+      c.serverSecret,
+      c.jws,
+      c.jwt,
+      c.sessionCookieConfig,
+      c.sessionHeaderConfig,
+      c.sessionMaxAgeSeconds,
+      c.sessionEncryptData,
+      c.csrfCookieConfig,
+      c.csrfSubmittedName,
+      c.refreshTokenCookieConfig,
+      c.refreshTokenHeaderConfig,
+      c.refreshTokenMaxAgeSeconds,
+      c.removeUsedRefreshTokenAfter,
+      c.tokenMigrationV0_5_2Enabled,
+      c.tokenMigrationV0_5_3Enabled
+    )
+    config should be(c)
+  }
+
+  it should "load the token length limits" in {
+    val config = SessionConfig.fromConfig(configWith("""
+        |akka.http.session.max-token-length = 4096
+        |akka.http.session.refresh-token.max-token-length = none""".stripMargin))
+    config.sessionMaxTokenLength should be(Some(4096))
+    config.refreshTokenMaxTokenLength should be(None)
+  }
+
+  it should "re-issue touched sessions on every request by default" in {
+    SessionConfig.fromConfig(referenceConfWithSecret(fakeServerSecret)).sessionTouchReissueThreshold should be(None)
+  }
+
+  it should "load the touch re-issue threshold" in {
+    val config = SessionConfig.fromConfig(configWith("akka.http.session.touch-reissue-threshold = 0.25"))
+    config.sessionTouchReissueThreshold should be(Some(0.25))
+  }
+
+  it should "fail to load config due to an invalid touch re-issue threshold" in {
+    intercept[IllegalArgumentException] {
+      SessionConfig.fromConfig(configWith("akka.http.session.touch-reissue-threshold = 1.5"))
+    }
+  }
+
+  it should "not compress sessions by default" in {
+    SessionConfig.fromConfig(referenceConfWithSecret(fakeServerSecret)).sessionCompression should be(None)
+  }
+
+  it should "load the session compression" in {
+    val config = SessionConfig.fromConfig(configWith("""
+        |akka.http.session.compression.threshold = 1024
+        |akka.http.session.compression.dictionary = "roles=admin" """.stripMargin))
+    config.sessionCompression should be(Some(SessionCompression(1024, "roles=admin")))
+  }
 }
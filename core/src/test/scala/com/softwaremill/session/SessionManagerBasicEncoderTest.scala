@@ -22,6 +22,160 @@ object SessionManagerBasicEncoderTest extends Properties("SessionManagerBasicEnc
     }
   }
 
+  property("encode+decode with AES-GCM encryption") = forAllNoShrink(secretGen) { (secret: String) =>
+    forAll { (useMaxAgeSeconds: Boolean, useKeyRing: Boolean, data: Map[String, String]) =>
+      val config = SessionConfig
+        .default(secret)
+        .copy(sessionEncryptData = true, sessionEncryption = SessionEncryption.AesGcm)
+        .copy(sessionMaxAgeSeconds = if (useMaxAgeSeconds) Some(3600L) else None)
+        .copy(keyRing = if (useKeyRing) Some(SessionKeyRing(SessionKey("k1", secret.reverse))) else None)
+      val manager = new SessionManager[Map[String, String]](config).clientSessionManager
+
+      manager.decode(manager.encode(data)) == SessionResult.Decoded(data)
+    }
+  }
+
+  property("AES-GCM encrypted sessions are shorter and can't be tampered with") = forAllNoShrink(secretGen) {
+    (secret: String) =>
+      forAll { (data: Map[String, String], position: Int) =>
+        val config = SessionConfig.default(secret).copy(sessionEncryptData = true)
+        val configAesGcm = config.copy(sessionEncryption = SessionEncryption.AesGcm)
+        val encoder = new BasicSessionEncoder[Map[String, String]]
+        val now = System.currentTimeMillis()
+
+        val enc = encoder.encode(data, now, configAesGcm)
+        val i = math.abs(position % enc.length)
+        val tampered = enc.updated(i, if (enc(i) == 'A') 'B' else 'A')
+
+        enc.length < encoder.encode(data, now, config).length && encoder.decode(tampered, configAesGcm).isFailure
+      }
+  }
+
+  property("encode+decode compact tokens") = forAllNoShrink(secretGen) { (secret: String) =>
+    forAll { (encrypt: Boolean, useMaxAgeSeconds: Boolean, useKeyRing: Boolean, data: Map[String, String]) =>
+      val config = SessionConfig
+        .default(secret)
+        .copy(sessionEncryptData = encrypt, sessionTokenFormat = SessionTokenFormat.Compact)
+        .copy(sessionMaxAgeSeconds = if (useMaxAgeSeconds) Some(3600L) else None)
+        .copy(keyRing = if (useKeyRing) Some(SessionKeyRing(SessionKey("k1", secret.reverse))) else None)
+      val manager = new SessionManager[Map[String, String]](config).clientSessionManager
+      // tokens in any format are accepted, regardless of the format used for new tokens
+      val legacyManager =
+        new SessionManager[Map[String, String]](config.copy(sessionTokenFormat = SessionTokenFormat.Legacy)).clientSessionManager
+
+      val encoded = manager.encode(data)
+      encoded.startsWith("1~") &&
+      manager.decode(encoded) == SessionResult.Decoded(data) &&
+      legacyManager.decode(encoded) == SessionResult.Decoded(data) &&
+      manager.decode(legacyManager.encode(data)) == SessionResult.Decoded(data)
+    }
+  }
+
+  property("compact tokens are shorter and can't be tampered with") = forAllNoShrink(secretGen) { (secret: String) =>
+    forAll { (encrypt: Boolean, data: Map[String, String], position: Int) =>
+      val config = SessionConfig.default(secret).copy(sessionEncryptData = encrypt)
+      val configCompact = config.copy(sessionTokenFormat = SessionTokenFormat.Compact)
+      val encoder = new BasicSessionEncoder[Map[String, String]]
+      val now = System.currentTimeMillis()
+
+      val enc = encoder.encode(data, now, configCompact)
+      val i = math.abs(position % enc.length)
+      val tampered = enc.updated(i, if (enc(i) == 'A') 'B' else 'A')
+
+      enc.length < encoder.encode(data, now, config).length && encoder.decode(tampered, configCompact).isFailure
+    }
+  }
+
+  val encodingGen: Gen[(SessionTokenFormat, Boolean, SessionEncryption)] = for {
+    format <- Gen.oneOf(SessionTokenFormat.Legacy, SessionTokenFormat.Compact)
+    encrypt <- Gen.oneOf(true, false)
+    encryption <- Gen.oneOf(SessionEncryption.Aes, SessionEncryption.AesGcm)
+  } yield (format, encrypt, encryption)
+
+  property("encode+decode compressed sessions") = forAllNoShrink(secretGen, encodingGen) {
+    case (secret, (format, encrypt, encryption)) =>
+      forAll { (useMaxAgeSeconds: Boolean, data: Map[String, String]) =>
+        val config = SessionConfig
+          .default(secret)
+          .copy(sessionEncryptData = encrypt, sessionEncryption = encryption, sessionTokenFormat = format)
+          .copy(sessionMaxAgeSeconds = if (useMaxAgeSeconds) Some(3600L) else None)
+        val compressedConfig = config.copy(sessionCompression = Some(SessionCompression(0, "roles=admin")))
+        val manager = new SessionManager[Map[String, String]](compressedConfig).clientSessionManager
+        val roles = Map("roles" -> List.fill(20)("admin").mkString(","))
+        val uncompressed = new SessionManager[Map[String, String]](config).clientSessionManager.encode(roles)
+
+        manager.decode(manager.encode(data)) == SessionResult.Decoded(data) &&
+        manager.decode(manager.encode(data ++ roles)) == SessionResult.Decoded(data ++ roles) &&
+        manager.encode(roles).length < uncompressed.length
+      }
+  }
+
+  property("only compresses sessions above the threshold") = forAllNoShrink(secretGen, encodingGen) {
+    case (secret, (format, encrypt, encryption)) =>
+      val config = SessionConfig
+        .default(secret)
+        .copy(sessionEncryptData = encrypt, sessionEncryption = encryption, sessionTokenFormat = format)
+      val encoder = new BasicSessionEncoder[Map[String, String]]
+      val data = Map("roles" -> List.fill(20)("admin").mkString(","))
+      val serializedLength = SessionSerializer.mapToStringSessionSerializer.serialize(data).length
+      def encode(threshold: Int) =
+        encoder.encode(data, 0L, config.copy(sessionCompression = Some(SessionCompression(threshold))))
+
+      encode(serializedLength + 1).length == encoder.encode(data, 0L, config).length &&
+      encode(serializedLength).length < encode(serializedLength + 1).length
+  }
+
+  property("doesn't decode compact tokens with an unknown version or without an expiry") = forAllNoShrink(secretGen) {
+    (secret: String) =>
+      forAll { (data: Map[String, String]) =>
+        val config = SessionConfig.default(secret).copy(sessionTokenFormat = SessionTokenFormat.Compact)
+        val encoder = new BasicSessionEncoder[Map[String, String]]
+
+        val enc = encoder.encode(data, System.currentTimeMillis(), config.copy(sessionMaxAgeSeconds = None))
+
+        encoder.decode(enc, config.copy(sessionMaxAgeSeconds = None)).isSuccess &&
+        encoder.decode(enc, config.copy(sessionMaxAgeSeconds = Some(3600L))).isFailure &&
+        encoder.decode("2" + enc.substring(1), config.copy(sessionMaxAgeSeconds = None)).isFailure
+      }
+  }
+
+  property("decodes sessions using the verified session cache") = forAllNoShrink(secretGen) { (secret: String) =>
+    forAll { (encrypt: Boolean, data: Map[String, String], otherData: Map[String, String]) =>
+      (data != otherData) ==> {
+        val config =
+          SessionConfig.default(secret).copy(sessionEncryptData = encrypt, verifiedSessionCacheMaxSize = Some(1))
+        val manager = new SessionManager[Map[String, String]](config).clientSessionManager
+        val encoded = manager.encode(data)
+        val tampered = encoded.substring(0, encoded.length - 1) + (if (encoded.last == 'A') "B" else "A")
+
+        manager.decode(encoded) == SessionResult.Decoded(data) &&
+        manager.decode(encoded) == SessionResult.Decoded(data) &&
+        manager.decode(tampered).isInstanceOf[SessionResult.Corrupt] &&
+        manager.decode(manager.encode(otherData)) == SessionResult.Decoded(otherData) &&
+        manager.verifiedSessionCache.map(c => (c.hits, c.misses, c.size)) == Some((1L, 3L, 1))
+      }
+    }
+  }
+
+  property("rejects oversized tokens without decoding them") = forAllNoShrink(secretGen) { (secret: String) =>
+    forAll { (data: Map[String, String]) =>
+      val encoder = new BasicSessionEncoder[Map[String, String]]
+      val encoded = encoder.encode(data, 0L, SessionConfig.default(secret))
+      val config = SessionConfig.default(secret).copy(sessionMaxTokenLength = Some(encoded.length - 1))
+      var decoded = 0
+      val manager = new SessionManager[Map[String, String]](config)(new BasicSessionEncoder[Map[String, String]] {
+        override def decode(s: String, nowMillis: Long, config: SessionConfig) = {
+          decoded += 1
+          super.decode(s, nowMillis, config)
+        }
+      }).clientSessionManager
+
+      manager.decode(encoded).isInstanceOf[SessionResult.Corrupt] &&
+      manager.oversizedTokens == 1L &&
+      decoded == 0
+    }
+  }
+
   property("doesn't decode expired session") = forAllNoShrink(secretGen) { (secret: String) =>
     forAll { (encrypt: Boolean, data: Map[String, String]) =>
       val config = SessionConfig
@@ -39,6 +193,29 @@ object SessionManagerBasicEncoderTest extends Properties("SessionManagerBasicEnc
     }
   }
 
+  property("rejects expired sessions before verifying the signature") = forAllNoShrink(secretGen) { (secret: String) =>
+    forAll { (encrypt: Boolean, compact: Boolean, data: Map[String, String]) =>
+      val config = SessionConfig
+        .default(secret)
+        .copy(sessionEncryptData = encrypt,
+              sessionMaxAgeSeconds = Some(20L),
+              sessionTokenFormat = if (compact) SessionTokenFormat.Compact else SessionTokenFormat.Legacy)
+      val encoder = new BasicSessionEncoder[Map[String, String]]
+      val now = 8172L * 1000L
+      val encoded = encoder.encode(data, now, config)
+      // a different key, as if the token was forged: the expiry is checked first, unless it's encrypted
+      val otherKeyConfig = config.copy(serverSecret = secret.reverse)
+
+      val expired = encoder.decode(encoded, now + 600L * 1000L, otherKeyConfig)
+      val expiryVisible = compact || !encrypt
+      (expired.failed.toOption.exists(_.isInstanceOf[ExpiredSessionException]) == expiryVisible) &&
+      encoder.decode(encoded, now + 600L * 1000L, config).failed.toOption.exists(
+        _.isInstanceOf[ExpiredSessionException]) &&
+      encoder.decode(encoded, now + 1000L, config).map(_.t) == Success(data) &&
+      encoder.decode(encoded, now + 1000L, otherKeyConfig).isFailure
+    }
+  }
+
   property("doesn't decode session with tampered expiry") = forAllNoShrink(secretGen) { (secret: String) =>
     forAll { (data: Map[String, String], now: Long, delta: Int) =>
       (delta >= 0) ==> {
@@ -49,8 +226,10 @@ object SessionManagerBasicEncoderTest extends Properties("SessionManagerBasicEnc
         val Array(sig, exp, payload) = enc.split("-", 3)
         val tampered = s"$sig-${exp.toLong + delta}-$payload"
 
-        // the signature should only match if we didn't add anything to the expiry date
-        encoder.decode(tampered, config).map(_.signatureMatches) == Success(delta == 0L)
+        // the signature should only match if we didn't add anything to the expiry date; otherwise, decoding fails
+        val decoded = encoder.decode(tampered, config)
+        if (delta == 0L) decoded.map(_.signatureMatches) == Success(true)
+        else decoded.failed.toOption.exists(_.isInstanceOf[CorruptSessionException])
       }
     }
   }
@@ -100,4 +279,41 @@ object SessionManagerBasicEncoderTest extends Properties("SessionManagerBasicEnc
       }
     }
   }
+
+  property("decodes sessions signed with any key from the key ring") = forAllNoShrink(secretGen, secretGen) {
+    (secret1: String, secret2: String) =>
+      forAll { (encrypt: Boolean, data: Map[String, String]) =>
+        val config = SessionConfig.default(secret1).copy(sessionEncryptData = encrypt)
+        val k1 = SessionKey("k1", secret1)
+        val k2 = SessionKey("k2", secret2)
+        val managerK1 = new SessionManager[Map[String, String]](config.copy(keyRing = Some(SessionKeyRing(k1))))
+        val managerK2 = new SessionManager[Map[String, String]](
+          config.copy(keyRing = Some(SessionKeyRing(k2, verifyOnly = List(k1)))))
+        val managerNoRing = new SessionManager[Map[String, String]](config)
+
+        val encodedK1 = managerK1.clientSessionManager.encode(data)
+        val encodedNoRing = managerNoRing.clientSessionManager.encode(data)
+
+        encodedK1.startsWith("k1.") &&
+        managerK2.clientSessionManager.decode(encodedK1) == SessionResult.Decoded(data) &&
+        managerK2.clientSessionManager.decode(encodedNoRing) == SessionResult.Decoded(data) &&
+        managerK2.clientSessionManager.decode(managerK2.clientSessionManager.encode(data)) == SessionResult.Decoded(data)
+      }
+  }
+
+  property("doesn't decode sessions signed with a key which is not in the key ring") = forAllNoShrink(secretGen) {
+    (secret: String) =>
+      forAll { (data: Map[String, String]) =>
+        val config = SessionConfig.default(secret)
+        val k1 = SessionKey("k1", secret.reverse)
+        val k2 = SessionKey("k2", secret)
+        val managerK1 = new SessionManager[Map[String, String]](config.copy(keyRing = Some(SessionKeyRing(k1))))
+        val managerK2 = new SessionManager[Map[String, String]](config.copy(keyRing = Some(SessionKeyRing(k2))))
+
+        managerK2.clientSessionManager.decode(managerK1.clientSessionManager.encode(data)) match {
+          case _: SessionResult.Corrupt => true
+          case _                        => false
+        }
+      }
+  }
 }
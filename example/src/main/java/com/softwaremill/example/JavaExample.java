@@ -42,6 +42,11 @@ public class JavaExample extends HttpSessionAwareDirectives<MyJavaSession> {
 
     // in-memory refresh token storage
     private static final RefreshTokenStorage<MyJavaSession> REFRESH_TOKEN_STORAGE = new InMemoryRefreshTokenStorage<MyJavaSession>() {
+        @Override
+        public boolean logEnabled() {
+            return LOGGER.isInfoEnabled();
+        }
+
         @Override
         public void log(String msg) {
             LOGGER.info(msg);
@@ -25,6 +25,7 @@ object Example extends App with StrictLogging {
     "c05ll3lesrinf39t7mc5h6un6r0c69lgfno69dsak3vabeqamouq4328cuaekros401ajdpkh60rrtpd8ro24rbuqmgtnd1ebag6ljnb65i8a55d482ok7o0nch0bfbe")
   implicit val sessionManager = new SessionManager[MyScalaSession](sessionConfig)
   implicit val refreshTokenStorage = new InMemoryRefreshTokenStorage[MyScalaSession] {
+    override def logEnabled = logger.underlying.isInfoEnabled
     def log(msg: String) = logger.info(msg)
   }
 
@@ -6,7 +6,7 @@ class JWTSessionManagerScala {
 
   case class SessionData(value: String)
 
-  implicit val serializer = JValueSessionSerializer.caseClass[SessionData]
+  implicit val serializer = JValueSessionSerializer.derived[SessionData]
   implicit val encoder = new JwtSessionEncoder[SessionData]
   implicit val manager = new SessionManager(SessionConfig.fromConfig())
 
@@ -55,6 +55,12 @@ public abstract class HttpSessionAwareDirectivesTest extends JUnitRouteTest {
     private static final RefreshTokenStorage<String> REFRESH_TOKEN_STORAGE = new InMemoryRefreshTokenStorage<String>() {
         private Logger logger = Logger.getLogger("TokenStorage");
 
+        // expired tokens are removed using the same clock as the tests' managers
+        @Override
+        public long nowMillis() {
+            return 3028L * 1000L;
+        }
+
         @Override
         public void log(String msg) {
             logger.info(msg);
@@ -0,0 +1,53 @@
+package com.softwaremill.session
+
+import scala.language.experimental.macros
+import scala.reflect.macros.blackbox
+
+trait JValueSessionSerializerDerivation {
+
+  /**
+    * Generates a serializer of the case class `T` to a `JObject`, which accesses and constructs the case class directly,
+    * without reflection or json4s `Formats`. Each field is serialized using an implicit [[JValueSessionSerializer]];
+    * nested case classes need a derived serializer of their own.
+    */
+  def derived[T]: JValueSessionSerializer[T] = macro JValueSessionSerializerMacros.derived[T]
+}
+
+object JValueSessionSerializerMacros {
+  def derived[T: c.WeakTypeTag](c: blackbox.Context): c.Expr[JValueSessionSerializer[T]] = {
+    import c.universe._
+
+    val tpe = weakTypeOf[T].dealias
+    val sym = tpe.typeSymbol
+    if (!sym.isClass || !sym.asClass.isCaseClass || sym.isAbstract || sym.isModuleClass)
+      c.abort(c.enclosingPosition, s"A JValueSessionSerializer can only be derived for case classes, not for $tpe")
+
+    val params = sym.asClass.primaryConstructor.asMethod.paramLists.headOption.getOrElse(Nil)
+    val fields = params.map { param =>
+      val name = param.name.toTermName
+      val fieldType = tpe.member(name).typeSignatureIn(tpe).finalResultType
+      val serializerName = TermName(c.freshName("serializer"))
+      // the companion object is a part of the implicit scope, so the instances defined there are found without imports
+      val serializerType = tq"_root_.com.softwaremill.session.JValueSessionSerializer[$fieldType]"
+      val serializer = q"_root_.scala.Predef.implicitly[$serializerType]"
+      (name, name.decodedName.toString, serializerName, q"private[this] val $serializerName = $serializer")
+    }
+
+    val Fields = q"_root_.com.softwaremill.session.JValueSessionSerializer.DerivedFields"
+    val written = fields.foldRight[Tree](q"_root_.scala.Nil") {
+      case ((name, key, serializer, _), tail) => q"$Fields.write($key, $serializer.serialize(t.$name), $tail)"
+    }
+    val read = fields.map { case (_, key, serializer, _) => q"$Fields.read(fields, $key, $serializer)" }
+
+    c.Expr[JValueSessionSerializer[T]](q"""
+      new _root_.com.softwaremill.session.JValueSessionSerializer[$tpe] {
+        ..${fields.map(_._4)}
+
+        override def serialize(t: $tpe): _root_.org.json4s.JValue = _root_.org.json4s.JObject($written)
+
+        override def deserialize(r: _root_.org.json4s.JValue): _root_.scala.util.Try[$tpe] =
+          $Fields.readObject(r)(fields => new $tpe(..$read))
+      }
+    """)
+  }
+}
@@ -4,34 +4,83 @@ import org.json4s._
 
 import scala.util.{Success, Failure, Try}
 
-object JValueSessionSerializer {
-  implicit def stringToJValueSessionSerializer: SessionSerializer[String, JValue] =
-    new SessionSerializer[String, JValue] {
+/**
+  * A [[SessionSerializer]] to json4s values, which can be derived for case classes at compile time, using
+  * `JValueSessionSerializer.derived[T]` (or `derives JValueSessionSerializer` in Scala 3).
+  */
+trait JValueSessionSerializer[T] extends SessionSerializer[T, JValue]
+
+object JValueSessionSerializer extends JValueSessionSerializerDerivation {
+  implicit def stringToJValueSessionSerializer: JValueSessionSerializer[String] =
+    new JValueSessionSerializer[String] {
       override def serialize(t: String) = JString(t)
       override def deserialize(s: JValue) = failIfNoMatch(s) { case JString(v) => v }
     }
 
-  implicit def intToJValueSessionSerializer: SessionSerializer[Int, JValue] = new SessionSerializer[Int, JValue] {
+  implicit def intToJValueSessionSerializer: JValueSessionSerializer[Int] = new JValueSessionSerializer[Int] {
     override def serialize(t: Int) = JInt(t)
     override def deserialize(s: JValue) = failIfNoMatch(s) { case JInt(v) => v.intValue }
   }
 
-  implicit def longToJValueSessionSerializer: SessionSerializer[Long, JValue] = new SessionSerializer[Long, JValue] {
+  implicit def longToJValueSessionSerializer: JValueSessionSerializer[Long] = new JValueSessionSerializer[Long] {
     override def serialize(t: Long) = JInt(t)
     override def deserialize(s: JValue) = failIfNoMatch(s) { case JInt(v) => v.longValue }
   }
 
-  implicit def floatToJValueSessionSerializer: SessionSerializer[Float, JValue] = new SessionSerializer[Float, JValue] {
+  implicit def floatToJValueSessionSerializer: JValueSessionSerializer[Float] = new JValueSessionSerializer[Float] {
     override def serialize(t: Float) = JDouble(t)
     override def deserialize(s: JValue) = failIfNoMatch(s) { case JDouble(v) => v.toFloat }
   }
 
-  implicit def doubleToJValueSessionSerializer: SessionSerializer[Double, JValue] =
-    new SessionSerializer[Double, JValue] {
+  implicit def doubleToJValueSessionSerializer: JValueSessionSerializer[Double] =
+    new JValueSessionSerializer[Double] {
       override def serialize(t: Double) = JDouble(t)
       override def deserialize(s: JValue) = failIfNoMatch(s) { case JDouble(v) => v }
     }
 
+  implicit def booleanToJValueSessionSerializer: JValueSessionSerializer[Boolean] =
+    new JValueSessionSerializer[Boolean] {
+      override def serialize(t: Boolean) = JBool(t)
+      override def deserialize(s: JValue) = failIfNoMatch(s) { case JBool(v) => v }
+    }
+
+  /**
+    * As with `Extraction.decompose`, undefined values are omitted from objects.
+    */
+  implicit def optionToJValueSessionSerializer[T](
+      implicit s: JValueSessionSerializer[T]): JValueSessionSerializer[Option[T]] =
+    new JValueSessionSerializer[Option[T]] {
+      override def serialize(t: Option[T]) = t.fold[JValue](JNothing)(s.serialize)
+      override def deserialize(r: JValue) = r match {
+        case JNothing | JNull => Success(None)
+        case v                => s.deserialize(v).map(Some(_))
+      }
+    }
+
+  implicit def listToJValueSessionSerializer[T](
+      implicit s: JValueSessionSerializer[T]): JValueSessionSerializer[List[T]] =
+    new JValueSessionSerializer[List[T]] {
+      override def serialize(t: List[T]) = JArray(t.map(s.serialize))
+      override def deserialize(r: JValue) = r match {
+        case JArray(items) => Try(items.map(s.deserialize(_).get))
+        case _             => cannotDeserialize(r)
+      }
+    }
+
+  implicit def mapToJValueSessionSerializer[T](
+      implicit s: JValueSessionSerializer[T]): JValueSessionSerializer[Map[String, T]] =
+    new JValueSessionSerializer[Map[String, T]] {
+      override def serialize(t: Map[String, T]) = JObject(t.map { case (k, v) => k -> s.serialize(v) }.toList)
+      override def deserialize(r: JValue) = r match {
+        case JObject(fields) => Try(fields.map { case (k, v) => k -> s.deserialize(v).get }.toMap)
+        case _               => cannotDeserialize(r)
+      }
+    }
+
+  /**
+    * Uses json4s reflection to (de)serialize the case class on each request. Prefer [[derived]], which generates the
+    * field accesses at compile time, and produces the same JSON for fields of the supported types.
+    */
   def caseClass[T <: Product: Manifest](implicit formats: Formats = DefaultFormats): SessionSerializer[T, JValue] =
     new SessionSerializer[T, JValue] {
       override def serialize(t: T) = Extraction.decompose(t)
@@ -39,6 +88,33 @@ object JValueSessionSerializer {
     }
 
   private def failIfNoMatch[T](s: JValue)(pf: PartialFunction[JValue, T]): Try[T] = {
-    pf.lift(s).fold[Try[T]](Failure(new RuntimeException(s"Cannot deserialize $s")))(Success(_))
+    pf.lift(s).fold[Try[T]](cannotDeserialize(s))(Success(_))
+  }
+
+  private def cannotDeserialize[T](s: JValue): Try[T] = Failure(new RuntimeException(s"Cannot deserialize $s"))
+
+  /**
+    * Used by the code generated by [[derived]], to write the fields of a case class to a `JObject`, and read them back.
+    */
+  object DerivedFields {
+    def write(name: String, value: JValue, tail: List[JField]): List[JField] =
+      if (value == JNothing) tail else (name, value) :: tail
+
+    def read[T](fields: List[JField], name: String, s: JValueSessionSerializer[T]): T = {
+      var rest = fields
+      var value: JValue = JNothing
+      while (rest.nonEmpty) {
+        if (rest.head._1 == name) {
+          value = rest.head._2
+          rest = Nil
+        } else rest = rest.tail
+      }
+      s.deserialize(value).get
+    }
+
+    def readObject[T](r: JValue)(read: List[JField] => T): Try[T] = r match {
+      case JObject(fields) => Try(read(fields))
+      case _               => cannotDeserialize(r)
+    }
   }
 }
@@ -0,0 +1,342 @@
+package com.softwaremill.session
+
+import java.nio.charset.StandardCharsets.UTF_8
+
+import com.fasterxml.jackson.core.{JsonFactory, JsonParser, JsonToken}
+import org.json4s._
+import org.json4s.jackson.JsonMethods._
+
+import scala.collection.mutable.ListBuffer
+import scala.util.{Success, Try}
+
+/**
+  * The registered claims included in a JWT's payload, besides the session data.
+  *
+  * @param exp, nbf, iat NumericDates: seconds since the epoch.
+  */
+case class JwtClaims(iss: Option[String],
+                     sub: Option[String],
+                     aud: Option[String],
+                     exp: Option[Long],
+                     nbf: Option[Long],
+                     iat: Option[Long],
+                     jti: Option[String])
+
+/**
+  * The fields of a JWT's header which are needed to decode the token.
+  *
+  * @param zip The algorithm with which the payload is compressed, if any.
+  */
+case class JwtHeader(kid: Option[String], zip: Option[String])
+
+/**
+  * A decoded JWT payload. Only the top-level fields are considered. The claims are read eagerly, while the session
+  * data is only converted to a `JValue` when it's first needed.
+  */
+final class JwtPayload(val claims: JwtClaims, readData: () => Try[JValue]) {
+  lazy val data: Try[JValue] = readData()
+}
+
+/**
+  * Converts JWT headers and payloads to and from (UTF-8 encoded) JSON. The session data is represented as a json4s
+  * `JValue`, as produced and consumed by the `SessionSerializer`.
+  */
+trait JwtJsonCodec {
+
+  /**
+    * `{"alg":...,"typ":"JWT"}`, with additional `kid` and `zip` fields if the key id and the compression are defined.
+    */
+  def encodeHeader(alg: String, keyId: Option[String], zip: Option[String] = None): Array[Byte]
+
+  def decodeHeader(header: Array[Byte]): Try[JwtHeader]
+
+  /**
+    * `{"data":...}`, followed by the defined claims.
+    */
+  def encodePayload(data: JValue, claims: JwtClaims): Array[Byte]
+
+  /**
+    * Prepares encoding payloads which share the static claims (`iss`, `sub` and `aud`) of the given ones. The returned
+    * function encodes a payload, given the data and the other claims of a token. Unless overridden, the whole payload
+    * is encoded on each call.
+    */
+  def payloadTemplate(staticClaims: JwtClaims): (JValue, JwtClaims) => Array[Byte] = { (data, claims) =>
+    encodePayload(data, claims.copy(iss = staticClaims.iss, sub = staticClaims.sub, aud = staticClaims.aud))
+  }
+
+  def decodePayload(payload: Array[Byte]): Try[JwtPayload]
+
+  /**
+    * The `exp` claim of the payload, if it can be found cheaply. Used to reject expired tokens before their signature
+    * is verified, so it shouldn't read (or validate) the whole payload, which might be forged. Unless overridden, the
+    * expiry is never peeked, and is only checked once the payload is decoded.
+    */
+  def peekExpiry(payload: Array[Byte]): Option[Long] = None
+
+  def encodeValue(value: JValue): Array[Byte]
+
+  def decodeValue(json: Array[Byte]): Try[JValue]
+}
+
+object JwtJsonCodec {
+
+  /**
+    * Creates and renders json4s documents, and parses the JSON into documents.
+    */
+  object Json4s extends JwtJsonCodec {
+
+    override def encodeHeader(alg: String, keyId: Option[String], zip: Option[String]): Array[Byte] = {
+      val kid = keyId.map(id => "kid" -> JString(id)).toList
+      val compression = zip.map(z => "zip" -> JString(z)).toList
+      encodeValue(JObject(("alg" -> JString(alg)) :: ("typ" -> JString("JWT")) :: kid ++ compression))
+    }
+
+    override def decodeHeader(header: Array[Byte]): Try[JwtHeader] =
+      decodeValue(header).map { h =>
+        def stringField(key: String) = h \ key match {
+          case JString(v) => Some(v)
+          case _          => None
+        }
+        JwtHeader(stringField("kid"), stringField("zip"))
+      }
+
+    override def encodePayload(data: JValue, claims: JwtClaims): Array[Byte] = {
+      def stringClaim(key: String, value: Option[String]) = value.map(key -> JString(_)).toList
+      def numericDateClaim(key: String, value: Option[Long]) = value.map(key -> JInt(_)).toList
+
+      encodeValue(
+        JObject(
+          ("data" -> data) ::
+            stringClaim("iss", claims.iss) ++
+            stringClaim("sub", claims.sub) ++
+            stringClaim("aud", claims.aud) ++
+            numericDateClaim("exp", claims.exp) ++
+            numericDateClaim("nbf", claims.nbf) ++
+            numericDateClaim("iat", claims.iat) ++
+            stringClaim("jti", claims.jti)))
+    }
+
+    override def decodePayload(payload: Array[Byte]): Try[JwtPayload] =
+      decodeValue(payload).map { p =>
+        def stringClaim(key: String) = p \ key match {
+          case JString(v) => Some(v)
+          case _          => None
+        }
+        def numericDateClaim(key: String) = p \ key match {
+          case JInt(v) => Some(v.longValue)
+          case _       => None
+        }
+
+        val claims = JwtClaims(stringClaim("iss"),
+                               stringClaim("sub"),
+                               stringClaim("aud"),
+                               numericDateClaim("exp"),
+                               numericDateClaim("nbf"),
+                               numericDateClaim("iat"),
+                               stringClaim("jti"))
+        new JwtPayload(claims, () => Success(p \ "data"))
+      }
+
+    override def encodeValue(value: JValue): Array[Byte] = compact(render(value)).getBytes(UTF_8)
+
+    override def decodeValue(json: Array[Byte]): Try[JValue] = Try(parse(new String(json, UTF_8)))
+  }
+
+  /**
+    * Writes the JSON directly into a byte buffer, and reads it using Jackson's streaming parser, without creating
+    * json4s documents for the header and the claims. Only the session data is converted to and from a `JValue`.
+    *
+    * The output is the same as the one of [[Json4s]]. When reading, only the top-level fields of the header and the
+    * payload are considered.
+    */
+  object Streaming extends JwtJsonCodec {
+    private val factory = new JsonFactory()
+
+    /**
+      * Enough for the claims, preceded by session data with a few dozen values.
+      */
+    val PeekExpiryMaxTokens = 64
+
+    override def encodeHeader(alg: String, keyId: Option[String], zip: Option[String]): Array[Byte] =
+      new JsonByteWriter(64)
+        .startObject()
+        .stringField("alg", alg)
+        .stringField("typ", "JWT")
+        .stringField("kid", keyId)
+        .stringField("zip", zip)
+        .endObject()
+        .toByteArray
+
+    override def decodeHeader(header: Array[Byte]): Try[JwtHeader] = withParser(header) { parser =>
+      var kid, zip: Option[String] = None
+      def stringField() =
+        if (parser.currentToken() == JsonToken.VALUE_STRING) Some(parser.getText)
+        else {
+          parser.skipChildren()
+          None
+        }
+
+      forEachField(parser) {
+        case "kid" => kid = stringField()
+        case "zip" => zip = stringField()
+        case _     => parser.skipChildren()
+      }
+      JwtHeader(kid, zip)
+    }
+
+    override def encodePayload(data: JValue, claims: JwtClaims): Array[Byte] =
+      encodePayload(data, encodeStaticClaims(claims), claims)
+
+    /**
+      * The static claims are encoded (and escaped) once.
+      */
+    override def payloadTemplate(staticClaims: JwtClaims): (JValue, JwtClaims) => Array[Byte] = {
+      val encodedStaticClaims = encodeStaticClaims(staticClaims)
+      (data, claims) => encodePayload(data, encodedStaticClaims, claims)
+    }
+
+    private def encodeStaticClaims(claims: JwtClaims): Array[Byte] =
+      new JsonByteWriter(64)
+        .stringField("iss", claims.iss)
+        .stringField("sub", claims.sub)
+        .stringField("aud", claims.aud)
+        .toByteArray
+
+    private def encodePayload(data: JValue, encodedStaticClaims: Array[Byte], claims: JwtClaims): Array[Byte] = {
+      val writer = new JsonByteWriter().startObject()
+      if (data != JNothing) writer.fieldName("data").value(data)
+      writer
+        .encodedFields(encodedStaticClaims)
+        .longField("exp", claims.exp)
+        .longField("nbf", claims.nbf)
+        .longField("iat", claims.iat)
+        .stringField("jti", claims.jti)
+        .endObject()
+        .toByteArray
+    }
+
+    /**
+      * If the data is an object or an array, it's skipped (but validated) when reading the claims, and parsed again,
+      * starting at its offset in the payload, only when needed.
+      */
+    override def decodePayload(payload: Array[Byte]): Try[JwtPayload] = withParser(payload) { parser =>
+      var iss, sub, aud, jti: Option[String] = None
+      var exp, nbf, iat: Option[Long] = None
+      var data: JValue = JNothing
+      var dataOffset = -1L
+
+      def stringClaim() = if (parser.currentToken() == JsonToken.VALUE_STRING) Some(parser.getText) else None
+      def numericDateClaim() =
+        if (parser.currentToken() == JsonToken.VALUE_NUMBER_INT) Some(parser.getBigIntegerValue.longValue) else None
+
+      forEachField(parser) {
+        case "data" if parser.currentToken().isStructStart =>
+          dataOffset = parser.getTokenLocation.getByteOffset
+          parser.skipChildren()
+        case "data" => data = readValue(parser)
+        case "iss" => iss = stringClaim()
+        case "sub" => sub = stringClaim()
+        case "aud" => aud = stringClaim()
+        case "exp" => exp = numericDateClaim()
+        case "nbf" => nbf = numericDateClaim()
+        case "iat" => iat = numericDateClaim()
+        case "jti" => jti = stringClaim()
+        case _     => parser.skipChildren()
+      }
+
+      val claims = JwtClaims(iss, sub, aud, exp, nbf, iat, jti)
+      new JwtPayload(claims, () => if (dataOffset == -1L) Success(data) else readValueAt(payload, dataOffset.toInt))
+    }
+
+    /**
+      * Scans the top-level fields of the payload until `exp` is found, but gives up after reading
+      * [[PeekExpiryMaxTokens]] JSON tokens, e.g. if the session data, which precedes the claims, is large.
+      */
+    override def peekExpiry(payload: Array[Byte]): Option[Long] =
+      withParser(payload) { parser =>
+        var remainingTokens = PeekExpiryMaxTokens
+        def next(): JsonToken =
+          if (remainingTokens == 0) null
+          else {
+            remainingTokens -= 1
+            parser.nextToken()
+          }
+        // false if the whole value can't be read
+        def skipValue(): Boolean = {
+          var depth = if (parser.currentToken().isStructStart) 1 else 0
+          while (depth > 0 && next() != null) {
+            if (parser.currentToken().isStructStart) depth += 1
+            else if (parser.currentToken().isStructEnd) depth -= 1
+          }
+          depth == 0
+        }
+
+        var exp: Option[Long] = None
+        var scanning = next() == JsonToken.START_OBJECT
+        while (scanning && next() == JsonToken.FIELD_NAME) {
+          val name = parser.getCurrentName
+          val value = next()
+          if (value == null) scanning = false
+          else if (name == "exp") {
+            if (value == JsonToken.VALUE_NUMBER_INT) exp = Some(parser.getBigIntegerValue.longValue)
+            scanning = false
+          } else scanning = skipValue()
+        }
+        exp
+      }.toOption.flatten
+
+    override def encodeValue(value: JValue): Array[Byte] = new JsonByteWriter().value(value).toByteArray
+
+    override def decodeValue(json: Array[Byte]): Try[JValue] = readValueAt(json, 0)
+
+    private def readValueAt(json: Array[Byte], offset: Int): Try[JValue] = withParser(json, offset) { parser =>
+      parser.nextToken()
+      readValue(parser)
+    }
+
+    private def withParser[R](json: Array[Byte], offset: Int = 0)(f: JsonParser => R): Try[R] = Try {
+      val parser = factory.createParser(json, offset, json.length - offset)
+      try f(parser)
+      finally parser.close()
+    }
+
+    /**
+      * Moves the parser to the value of each top-level field of the object, and calls `f` with the field's name. `f`
+      * must consume the whole value (or skip it).
+      */
+    private def forEachField(parser: JsonParser)(f: String => Unit): Unit = {
+      if (parser.nextToken() != JsonToken.START_OBJECT) throw new IllegalArgumentException("Expected a JSON object")
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        val name = parser.getCurrentName
+        parser.nextToken()
+        f(name)
+      }
+    }
+
+    /**
+      * Reads the value at the current token, like json4s' `parse` does: integers become `JInt`s, and other numbers
+      * become `JDouble`s.
+      */
+    private def readValue(parser: JsonParser): JValue = parser.currentToken() match {
+      case JsonToken.START_OBJECT =>
+        val fields = ListBuffer[JField]()
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          val name = parser.getCurrentName
+          parser.nextToken()
+          fields += name -> readValue(parser)
+        }
+        JObject(fields.toList)
+      case JsonToken.START_ARRAY =>
+        val items = ListBuffer[JValue]()
+        while (parser.nextToken() != JsonToken.END_ARRAY) items += readValue(parser)
+        JArray(items.toList)
+      case JsonToken.VALUE_STRING       => JString(parser.getText)
+      case JsonToken.VALUE_NUMBER_INT   => JInt(BigInt(parser.getBigIntegerValue))
+      case JsonToken.VALUE_NUMBER_FLOAT => JDouble(parser.getDoubleValue)
+      case JsonToken.VALUE_TRUE         => JBool.True
+      case JsonToken.VALUE_FALSE        => JBool.False
+      case JsonToken.VALUE_NULL         => JNull
+      case other                        => throw new IllegalArgumentException(s"Unexpected JSON token: $other")
+    }
+  }
+}
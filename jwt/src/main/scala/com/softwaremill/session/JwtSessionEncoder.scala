@@ -1,135 +1,285 @@
 package com.softwaremill.session
 
-import java.util.{Base64, UUID}
+import java.nio.charset.StandardCharsets.US_ASCII
+
 import org.json4s._
-import org.json4s.jackson.JsonMethods._
-import scala.util.Try
 
+import scala.util.{Failure, Success, Try}
+
+/**
+  * @param formats Its `emptyValueStrategy` determines if empty values in the serialized sessions are skipped or
+  *                preserved.
+  */
 class JwtSessionEncoder[T](implicit serializer: SessionSerializer[T, JValue], formats: Formats = DefaultFormats)
     extends SessionEncoder[T] {
 
+  /**
+    * Converts the header and the payload to and from JSON. Override to use a different codec, e.g.
+    * [[JwtJsonCodec.Json4s]].
+    */
+  protected def jsonCodec: JwtJsonCodec = JwtJsonCodec.Streaming
+
   override def encode(t: T, nowMillis: Long, config: SessionConfig) = {
-    val h = encode(createHeader(config))
-    val p = encode(createPayload(t, nowMillis, config))
-    val base = s"$h.$p"
-    val signature = config.jws.alg.sign(base)
+    val base = encodeBase(t, nowMillis, config)
+    val signature = jwsAlgorithm(config.sessionSigningKey._2, config).sign(base)
 
-    s"$base.$signature"
+    s"${new String(base, US_ASCII)}.$signature"
   }
 
   // Legacy encoder function for testing migrations.
   def encodeV0_5_2(t: T, nowMillis: Long, config: SessionConfig) = {
-    val h = encode(createHeader(config))
-    val p = encode(createPayload(t, nowMillis, config))
-    val base = s"$h.$p"
-    val signature = Crypto.sign_HmacSHA256_base64_v0_5_2(base, config.serverSecret)
+    val base = new String(encodeBase(t, nowMillis, config), US_ASCII)
+    val signature = Crypto.sign_HmacSHA256_base64_v0_5_2(base, config.serverSecretHmacSHA256)
 
     s"$base.$signature"
   }
 
-  override def decode(s: String, config: SessionConfig) =
+  /**
+    * The parts of tokens which only depend on the config: the encoded header segments (followed by a dot), of tokens
+    * with plain and compressed payloads, and the static claims, which are encoded once.
+    */
+  private final class Template(val config: SessionConfig) {
+    private val keyId = config.sessionSigningKey._1
+
+    private def headerSegment(zip: Option[String]): Array[Byte] = {
+      val header = jsonCodec.encodeHeader(config.jws.alg.value, keyId, zip)
+      val segment = new Array[Byte](Codec.base64UrlLength(header.length) + 1)
+      segment(Codec.writeBase64Url(header, segment, 0)) = '.'
+      segment
+    }
+
+    val headerSegment: Array[Byte] = headerSegment(None)
+    val compressedHeaderSegment: Array[Byte] = headerSegment(Some(JwtSessionEncoder.Deflate))
+
+    private val encodedHeader = new String(headerSegment, 0, headerSegment.length - 1, US_ASCII)
+    private val encodedCompressedHeader =
+      new String(compressedHeaderSegment, 0, compressedHeaderSegment.length - 1, US_ASCII)
+
+    /**
+      * The header, if it's one of the headers encoded using this config, so that it doesn't need to be parsed.
+      */
+    def knownHeader(encoded: String): Option[JwtHeader] =
+      if (encoded == encodedHeader) Some(JwtHeader(keyId, None))
+      else if (encoded == encodedCompressedHeader) Some(JwtHeader(keyId, Some(JwtSessionEncoder.Deflate)))
+      else None
+
+    private val staticClaims =
+      JwtClaims(iss = config.jwt.issuer, sub = config.jwt.subject, aud = config.jwt.audience, None, None, None, None)
+    private val encodeTemplatePayload = jsonCodec.payloadTemplate(staticClaims)
+
+    def encodePayload(data: JValue, claims: JwtClaims): Array[Byte] =
+      if (claims.iss == staticClaims.iss && claims.sub == staticClaims.sub && claims.aud == staticClaims.aud) {
+        encodeTemplatePayload(data, claims)
+      } else {
+        // `createClaims` is overridden, and the static claims don't come from the config
+        jsonCodec.encodePayload(data, claims)
+      }
+  }
+
+  // an encoder is usually used with a single config, so only the last used template is kept
+  @volatile private var lastTemplate: Template = _
+
+  private def template(config: SessionConfig): Template = {
+    val cached = lastTemplate
+    if (cached != null && (cached.config eq config)) cached
+    else {
+      val created = new Template(config)
+      lastTemplate = created
+      created
+    }
+  }
+
+  /**
+    * The JWS signing input: the ASCII bytes of the encoded header and payload, separated by a dot. If compression is
+    * enabled, large payloads are compressed using DEFLATE, as indicated by the `zip` header. The preset dictionary
+    * isn't used, so that other libraries can decompress the payload.
+    */
+  private def encodeBase(t: T, nowMillis: Long, config: SessionConfig): Array[Byte] = {
+    val tmpl = template(config)
+    val json = tmpl.encodePayload(createData(t, config), createClaims(nowMillis, config))
+    val compressed = config.sessionCompression
+      .filter(json.length >= _.threshold)
+      .map(_ => SessionCompression.deflate(json, SessionCompression.NoDictionary))
+      .filter(_.length < json.length)
+
+    val headerSegment = if (compressed.isDefined) tmpl.compressedHeaderSegment else tmpl.headerSegment
+    val payload = compressed.getOrElse(json)
+    val base = java.util.Arrays.copyOf(headerSegment, headerSegment.length + Codec.base64UrlLength(payload.length))
+    Codec.writeBase64Url(payload, base, headerSegment.length)
+    base
+  }
+
+  override def decode(s: String, config: SessionConfig) = decode(s, SessionEncoder.NoExpiryCheck, config)
+
+  /**
+    * Forged and expired tokens are rejected as early as possible: the structure of the token is checked first, then
+    * the expiry is peeked at (see [[JwtJsonCodec.peekExpiry]]), and only then the signature. The payload is only
+    * inflated and parsed once the signature is verified, and the session data is decrypted and deserialized last.
+    * Hence, a forged token fails to decode, instead of yielding a result whose signature doesn't match.
+    */
+  override def decode(s: String, nowMillis: Long, config: SessionConfig) =
     Try {
       val sCleaned = if (s.startsWith("Bearer")) s.substring(7).trim else s
       val List(h, p, signature) = sCleaned.split("\\.").toList
+      // the signing input, without the signature
+      val base = sCleaned.substring(0, h.length + 1 + p.length)
+      val header = template(config).knownHeader(h).getOrElse(extractHeader(h))
+      val key = config.sessionVerificationKey(if (config.keyRing.isDefined) header.kid else None)
 
-      val (decodedValue, decodedLegacy) = {
-        val decodedValue = decode(p)
+      // pre-v0.5.3 signatures are padded, and current ones never are, so only one of them needs to be computed
+      val legacySignature = config.tokenMigrationV0_5_3Enabled && signature.endsWith("=")
+      def verifySignature(): Unit = {
+        val signatureMatches =
+          if (legacySignature) {
+            SessionUtil.constantTimeEquals(signature, Crypto.sign_HmacSHA256_base64_v0_5_2(base, key.hmacSHA256))
+          } else jwsAlgorithm(key, config).verify(base, signature)
+        if (!signatureMatches) throw new CorruptSessionException("Corrupt signature")
+      }
+
+      val payloadBytes = decodeBase64(p)
+      // compressed payloads would have to be inflated first
+      if (header.zip.isEmpty) {
+        val peekedExp = payloadBytes.toOption.flatMap(jsonCodec.peekExpiry).map(_ * 1000L)
+        SessionEncoder.checkNotExpired(peekedExp, nowMillis, config)
+      }
+      verifySignature()
+
+      val (decodedPayload, decodedLegacy) = {
+        val decodedPayload = payloadBytes.flatMap(decompress(_, header)).flatMap(jsonCodec.decodePayload)
 
-        if (decodedValue.isFailure && config.tokenMigrationV0_5_3Enabled) {
+        if (decodedPayload.isFailure && config.tokenMigrationV0_5_3Enabled) {
           // Try decoding assuming pre-v0.5.3.
-          (decodeV0_5_2(p), true)
+          (decodeBase64V0_5_2(p).flatMap(decompress(_, header)).flatMap(jsonCodec.decodePayload), true)
         } else {
-          (decodedValue, false)
+          (decodedPayload, false)
         }
       }
 
-      for {
-        jv <- decodedValue
-        (t, exp) <- extractPayload(jv, config)
-      } yield {
-        val signatureMatches =
-          SessionUtil.constantTimeEquals(signature, config.jws.alg.sign(s"$h.$p"))
-
-        if (!signatureMatches && config.tokenMigrationV0_5_3Enabled) {
-          // Try signature check assuming pre-v0.5.3.
-          val signatureMatchesLegacy =
-            SessionUtil.constantTimeEquals(signature,
-                                           Crypto.sign_HmacSHA256_base64_v0_5_2(s"$h.$p", config.serverSecret))
+      decodedPayload.flatMap { payload =>
+        val exp = payload.claims.exp.map(_ * 1000L)
+        SessionEncoder.checkNotExpired(exp, nowMillis, config)
 
-          val isLegacy = signatureMatchesLegacy || decodedLegacy
-          DecodeResult(t, exp, signatureMatchesLegacy, isLegacy = isLegacy)
-        } else {
-          DecodeResult(t, exp, signatureMatches, isLegacy = decodedLegacy)
-        }
+        payload.data
+          .flatMap(extractData(_, key, config))
+          .map(DecodeResult(_, exp, signatureMatches = true, isLegacy = legacySignature || decodedLegacy))
       }
     }.flatten
 
-  protected def createHeader(config: SessionConfig): JValue = JObject("alg" -> JString(config.jws.alg.value), "typ" -> JString("JWT"))
+  /**
+    * When a key ring is used, HS256 signatures are computed using the session key, identified by the `kid` header.
+    * Other algorithms use their own keys.
+    */
+  protected def jwsAlgorithm(key: SessionKey, config: SessionConfig): JwsAlgorithm = config.jws.alg match {
+    case _: JwsAlgorithm.HmacSHA256 if config.keyRing.isDefined => key.jwsHmacSHA256
+    case alg                                                      => alg
+  }
 
-  protected def createPayload(t: T, nowMillis: Long, config: SessionConfig): JValue = {
-    val registeredClaims: List[(String, JValue)] = {
-      def numericDateClaimFromTimeout(key: String, numericDate: Option[Long]): Option[(String, JInt)] =
-        numericDate.map(timeout => key -> JInt((nowMillis / 1000L) + timeout))
+  /**
+    * Headers which can't be decoded are treated as empty, as only the signature determines if a token is valid.
+    */
+  protected def extractHeader(header: String): JwtHeader =
+    decodeBase64(header).flatMap(jsonCodec.decodeHeader).getOrElse(JwtHeader(None, None))
 
-      def stringClaim(key: String, value: Option[String]): Option[(String, JString)] =
-        value.map(key -> JString(_))
+  private def decompress(payload: Array[Byte], header: JwtHeader): Try[Array[Byte]] = header.zip match {
+    case None                           => Success(payload)
+    case Some(JwtSessionEncoder.Deflate) =>
+      Try(SessionCompression.inflate(payload, 0, payload.length, SessionCompression.NoDictionary))
+    case Some(other) => Failure(new CorruptSessionException(s"Unsupported JWT compression '$other'"))
+  }
 
-      import config.jwt._
-      val iss = stringClaim("iss", issuer).toList
-      val sub = stringClaim("sub", subject).toList
-      val aud = stringClaim("aud", audience).toList
+  protected def createClaims(nowMillis: Long, config: SessionConfig): JwtClaims = {
+    def numericDateFromTimeout(timeout: Option[Long]): Option[Long] = timeout.map(nowMillis / 1000L + _)
 
+    import config.jwt._
+    JwtClaims(
+      iss = issuer,
+      sub = subject,
+      aud = audience,
       // 'exp', 'nbf' and 'iat' must be a "NumericDate",
       // see https://tools.ietf.org/html/rfc7519#page-9
       // and https://tools.ietf.org/html/rfc7519#page-6
-      val exp = numericDateClaimFromTimeout("exp", expirationTimeout).toList
-      val nbf = numericDateClaimFromTimeout("nbf", notBeforeOffset).toList
-      val iat = if (includeIssuedAt) numericDateClaimFromTimeout("iat", Some(0L)).toList else Nil
-
+      exp = numericDateFromTimeout(expirationTimeout),
+      nbf = numericDateFromTimeout(notBeforeOffset),
+      iat = if (includeIssuedAt) numericDateFromTimeout(Some(0L)) else None,
       // 'jti' must be unique per token,
       // collisions MUST be prevented even among values produced by different issuers,
       // see https://tools.ietf.org/html/rfc7519#page-10
-      val jti = if (includeRandomJwtId) {
-        stringClaim("jti", Some(issuer.map(_ + "-").getOrElse("") + UUID.randomUUID().toString)).toList
-      } else Nil
-
-      iss ++ sub ++ aud ++ exp ++ nbf ++ iat ++ jti
-    }
+      jti =
+        if (includeRandomJwtId) Some(issuer.map(_ + "-").getOrElse("") + jwtIdGenerator.generate(nowMillis)) else None
+    )
+  }
 
-    val serialized = serializer.serialize(t)
-    val data = if (config.sessionEncryptData) {
+  /**
+    * Empty values in the serialized session are skipped or preserved (as `null`s), as configured by the `formats`'
+    * `emptyValueStrategy`.
+    */
+  protected def createData(t: T, config: SessionConfig): JValue = {
+    val serialized = formats.emptyValueStrategy.replaceEmpty(serializer.serialize(t))
+    if (config.sessionEncryptData) {
       val serializedWrapped = JObject("v" -> serialized) // just in case `serialized` was a json value, not a json object
-      JString(Crypto.encrypt_AES(compact(render(serializedWrapped)), config.serverSecret))
+      JString(encryptData(jsonCodec.encodeValue(serializedWrapped), config.sessionSigningKey._2, config))
     } else serialized
-
-    JObject(("data" -> data) :: registeredClaims)
   }
 
-  protected def extractPayload(p: JValue, config: SessionConfig): Try[(T, Option[Long])] = {
-    val exp = p \\ "exp" match {
-      case JInt(e) => Some(e.longValue * 1000L)
-      case _       => None
-    }
-
-    val rawData = p \\ "data"
+  protected def extractData(rawData: JValue, key: SessionKey, config: SessionConfig): Try[T] = {
     val data = if (config.sessionEncryptData) {
       rawData match {
-        case JString(s) => parse(Crypto.decrypt_AES(s, config.serverSecret)) \\ "v"
-        case _          => rawData
+        case JString(s) => jsonCodec.decodeValue(decryptData(s, key, config)).map(_ \ "v")
+        case _          => Try(rawData)
       }
-    } else rawData
-
-    val t = serializer.deserialize(data)
+    } else Try(rawData)
 
-    t.map((_, exp))
+    data.flatMap(serializer.deserialize)
   }
 
-  protected def encode(jv: JValue): String =
-    Base64.getUrlEncoder.withoutPadding().encodeToString(compact(render(jv)).getBytes("utf-8"))
-  protected def decode(s: String): Try[JValue] = Try {
-    parse(new String(Base64.getUrlDecoder.decode(s), "utf-8"))
-  }
-  protected def decodeV0_5_2(s: String): Try[JValue] = Try {
-    parse(new String(SessionUtil.parseBase64_v0_5_2(s), "utf-8"))
-  }
+  private def encryptData(data: Array[Byte], key: SessionKey, config: SessionConfig): String =
+    config.sessionEncryption match {
+      case SessionEncryption.Aes    => Crypto.encrypt_AES(new String(data, "utf-8"), key.secret)
+      case SessionEncryption.AesGcm => SessionUtil.toBase64Url(key.aesGcm.encrypt(data))
+    }
+
+  private def decryptData(data: String, key: SessionKey, config: SessionConfig): Array[Byte] =
+    config.sessionEncryption match {
+      case SessionEncryption.Aes    => Crypto.decrypt_AES(data, key.secret).getBytes("utf-8")
+      case SessionEncryption.AesGcm => key.aesGcm.decrypt(SessionUtil.parseBase64Url(data))
+    }
+
+  private def decodeBase64(s: String): Try[Array[Byte]] = Try(SessionUtil.parseBase64Url(s))
+  private def decodeBase64V0_5_2(s: String): Try[Array[Byte]] = Try(SessionUtil.parseBase64_v0_5_2(s))
+
+  // Encoding and decoding no longer go through the JValue-based methods below, so they are final: overriding them would
+  // have no effect. They're kept for subclasses which call them.
+
+  @deprecated("override jsonCodec instead", "0.7.2")
+  protected final def createHeader(config: SessionConfig): JValue =
+    jsonCodec.decodeValue(jsonCodec.encodeHeader(config.jws.alg.value, config.sessionSigningKey._1)).get
+
+  @deprecated("override createClaims and createData instead", "0.7.2")
+  protected final def createPayload(t: T, nowMillis: Long, config: SessionConfig): JValue =
+    jsonCodec.decodeValue(jsonCodec.encodePayload(createData(t, config), createClaims(nowMillis, config))).get
+
+  @deprecated("override extractData instead", "0.7.2")
+  protected final def extractPayload(p: JValue, config: SessionConfig): Try[(T, Option[Long])] =
+    jsonCodec.decodePayload(jsonCodec.encodeValue(p)).flatMap { payload =>
+      payload.data
+        .flatMap(extractData(_, config.sessionSigningKey._2, config))
+        .map((_, payload.claims.exp.map(_ * 1000L)))
+    }
+
+  @deprecated("override jsonCodec instead", "0.7.2")
+  protected final def encode(jv: JValue): String = SessionUtil.toBase64Url(jsonCodec.encodeValue(jv))
+
+  @deprecated("override jsonCodec instead", "0.7.2")
+  protected final def decode(s: String): Try[JValue] = decodeBase64(s).flatMap(jsonCodec.decodeValue)
+
+  @deprecated("override jsonCodec instead", "0.7.2")
+  protected final def decodeV0_5_2(s: String): Try[JValue] = decodeBase64V0_5_2(s).flatMap(jsonCodec.decodeValue)
+}
+
+object JwtSessionEncoder {
+
+  /**
+    * The `zip` header value of payloads compressed using DEFLATE.
+    */
+  private val Deflate = "DEF"
 }
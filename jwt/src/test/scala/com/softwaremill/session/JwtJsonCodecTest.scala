@@ -0,0 +1,120 @@
+package com.softwaremill.session
+
+import java.nio.charset.StandardCharsets.UTF_8
+
+import org.json4s._
+import org.json4s.jackson.JsonMethods._
+import org.scalatest.flatspec.AnyFlatSpec
+import org.scalatest.matchers.should.Matchers
+
+class JwtJsonCodecTest extends AnyFlatSpec with Matchers {
+  val values: List[JValue] = List(
+    JString("username"),
+    JString("quote \" backslash \\ slash / tab \t newline \n controls \u0000 \u001f \u007f"),
+    JString("non-ASCII: żółw, 日本語, emoji 😀"),
+    JString(""),
+    JInt(BigInt("123456789012345678901234567890")),
+    JInt(-42),
+    JLong(Long.MinValue),
+    JDouble(1.5),
+    JDouble(1e-10),
+    JDecimal(BigDecimal("12.50")),
+    JBool(true),
+    JBool(false),
+    JNull,
+    JNothing,
+    JArray(List(JInt(1), JNothing, JString("a"), JArray(Nil), JObject())),
+    JObject("v" -> JString("x"), "skipped" -> JNothing, "data" -> JObject("exp" -> JInt(1), "l" -> JArray(List(JNull))))
+  )
+
+  values.foreach { jv =>
+    it should s"encode ${compact(render(jv))} like json4s" in {
+      new String(JwtJsonCodec.Streaming.encodeValue(jv), UTF_8) should be(compact(render(jv)))
+    }
+  }
+
+  val claims = JwtClaims(Some("iss\"uer"), Some("sub"), None, Some(1447416197L), None, Some(1447416190L), Some("id"))
+
+  it should "encode headers and payloads like json4s" in {
+    for (keyId <- List(None, Some("k1")); zip <- List(None, Some("DEF"))) {
+      JwtJsonCodec.Streaming.encodeHeader("HS256", keyId, zip) should be(
+        JwtJsonCodec.Json4s.encodeHeader("HS256", keyId, zip))
+    }
+    values.foreach { data =>
+      JwtJsonCodec.Streaming.encodePayload(data, claims) should be(JwtJsonCodec.Json4s.encodePayload(data, claims))
+    }
+  }
+
+  it should "encode payloads using a template like json4s" in {
+    val encode = JwtJsonCodec.Streaming.payloadTemplate(claims)
+    values.foreach { data =>
+      encode(data, claims) should be(JwtJsonCodec.Json4s.encodePayload(data, claims))
+    }
+  }
+
+  List("json4s" -> JwtJsonCodec.Json4s, "streaming" -> JwtJsonCodec.Streaming).foreach { case (name, codec) =>
+    it should s"decode the payload encoded by the $name codec" in {
+      val withoutClaims = JwtClaims(None, None, None, None, None, None, None)
+      List(
+        JObject("name" -> JString("john"), "age" -> JInt(30), "ratio" -> JDouble(0.5)),
+        JArray(List(JInt(1), JString("a"))),
+        JString("username"),
+        JInt(12345)
+      ).foreach { data =>
+        List(claims, withoutClaims).foreach { c =>
+          val decoded = codec.decodePayload(codec.encodePayload(data, c)).get
+          decoded.claims should be(c)
+          decoded.data.get should be(data)
+        }
+      }
+    }
+
+    it should s"decode the header encoded by the $name codec" in {
+      codec.decodeHeader(codec.encodeHeader("RS256", Some("k1"), Some("DEF"))).get should be(
+        JwtHeader(Some("k1"), Some("DEF")))
+      codec.decodeHeader(codec.encodeHeader("RS256", None)).get should be(JwtHeader(None, None))
+      codec.decodeHeader("""{"kid":{"zip":"DEF"},"alg":"HS256"}""".getBytes(UTF_8)).get should be(JwtHeader(None, None))
+    }
+
+    it should s"not decode invalid JSON using the $name codec" in {
+      List("", "{", "{\"data\":}", "[1,2", "{\"data\":1", "{\"data\":[1,}}", "{\"data\":\"abc}").foreach { json =>
+        codec.decodePayload(json.getBytes(UTF_8)).isFailure should be(true)
+      }
+    }
+
+    it should s"only read the top-level claims and data using the $name codec" in {
+      val payload = """{"data":{"exp":1,"data":"inner"},"other":{"exp":2},"iat":3}""".getBytes(UTF_8)
+
+      val decoded = codec.decodePayload(payload).get
+      decoded.claims.exp should be(None)
+      decoded.claims.iat should be(Some(3L))
+      decoded.data.get should be(JObject("exp" -> JInt(1), "data" -> JString("inner")))
+    }
+
+    it should s"decode a payload without data using the $name codec" in {
+      codec.decodePayload("""{"exp":3}""".getBytes(UTF_8)).get.data.get should be(JNothing)
+    }
+  }
+  it should "peek at the top-level expiry of a payload" in {
+    val codec = JwtJsonCodec.Streaming
+    def peek(json: String) = codec.peekExpiry(json.getBytes(UTF_8))
+
+    peek(new String(codec.encodePayload(JObject("name" -> JString("john"), "age" -> JInt(30)), claims), UTF_8)) should
+      be(Some(1447416197L))
+    peek("""{"data":{"exp":1,"l":[{"exp":2}]},"other":[3],"exp":4}""") should be(Some(4L))
+    peek("""{"data":"john","iat":3}""") should be(None)
+    peek("""{"exp":"soon"}""") should be(None)
+  }
+
+  it should "give up peeking at the expiry after a bounded number of tokens" in {
+    val data = compact(render(JArray(List.fill(1000)(JInt(1)))))
+    JwtJsonCodec.Streaming.peekExpiry(s"""{"data":$data,"exp":4}""".getBytes(UTF_8)) should be(None)
+    JwtJsonCodec.Json4s.peekExpiry("""{"exp":4}""".getBytes(UTF_8)) should be(None)
+  }
+
+  it should "not peek at the expiry of invalid JSON" in {
+    List("", "{", "[1]", "{\"data\":}", "{\"data\":[1,}},\"exp\":4}", "{\"exp\":").foreach { json =>
+      JwtJsonCodec.Streaming.peekExpiry(json.getBytes(UTF_8)) should be(None)
+    }
+  }
+}
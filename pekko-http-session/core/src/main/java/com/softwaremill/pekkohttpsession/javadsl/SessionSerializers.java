@@ -9,6 +9,7 @@ import scala.compat.java8.JFunction0;
 import scala.compat.java8.JFunction1;
 import scala.util.Try;
 
+import java.lang.invoke.MethodHandles;
 import java.util.Map;
 
 /**
@@ -28,6 +29,32 @@ public final class SessionSerializers {
             Try.apply((JFunction0<Map<String, String>>) () -> JavaConverters.mapAsJavaMapConverter(v1).asJava())
     );
 
+    /**
+     * Creates a serializer for a Java bean or record, which stores each property as a separate value (as
+     * {@link MultiValueSessionSerializer} does). Properties of type {@code String}, primitives (and their wrappers) and
+     * enums are supported; {@code null} values are omitted.
+     *
+     * A bean needs a public no-argument constructor, and a public getter and setter for each property. A record is
+     * created using its canonical constructor.
+     *
+     * The properties are discovered once, when the serializer is created (which should be done at startup, e.g. in a
+     * static field). Serializing and deserializing sessions then calls the getters, setters and constructors directly,
+     * without reflection.
+     *
+     * @throws IllegalArgumentException if the class, or the type of one of its properties, isn't supported.
+     */
+    public static <T> SessionSerializer<T, String> generate(Class<T> type) {
+        return GeneratedSessionSerializers.generate(type, MethodHandles.lookup());
+    }
+
+    /**
+     * Same as {@link #generate(Class)}, but the getters, setters and constructors are accessed using the given lookup;
+     * pass {@code MethodHandles.lookup()} to generate serializers for classes which aren't public.
+     */
+    public static <T> SessionSerializer<T, String> generate(Class<T> type, MethodHandles.Lookup lookup) {
+        return GeneratedSessionSerializers.generate(type, lookup);
+    }
+
     private SessionSerializers() {
     }
 
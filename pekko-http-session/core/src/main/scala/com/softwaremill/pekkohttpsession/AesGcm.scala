@@ -0,0 +1,67 @@
+package com.softwaremill.pekkohttpsession
+
+import java.nio.charset.StandardCharsets.UTF_8
+
+import javax.crypto.Cipher
+import javax.crypto.spec.{GCMParameterSpec, SecretKeySpec}
+
+/**
+  * Authenticated encryption using AES-GCM. The key is set up once, and each thread reuses its own `Cipher` instance.
+  * A random IV is generated for every encryption and prepended to the cipher text (which ends with the authentication
+  * tag), so decryption both decrypts and verifies the data in a single pass.
+  */
+final class AesGcm(key: Array[Byte]) {
+  import AesGcm._
+
+  private val keySpec = new SecretKeySpec(key, "AES")
+
+  private val perThread = new ThreadLocal[Cipher] {
+    override def initialValue(): Cipher = Cipher.getInstance("AES/GCM/NoPadding")
+  }
+
+  def encrypt(plaintext: Array[Byte]): Array[Byte] = encrypt(plaintext, EmptyAad)
+
+  /**
+    * @param aad Additional data, which isn't encrypted (nor included in the result), but is authenticated.
+    */
+  def encrypt(plaintext: Array[Byte], aad: Array[Byte]): Array[Byte] = {
+    val iv = new Array[Byte](IvLength)
+    SecureRandomTokens.nextBytes(iv)
+
+    val cipher = perThread.get()
+    cipher.init(Cipher.ENCRYPT_MODE, keySpec, new GCMParameterSpec(TagLengthBits, iv))
+    cipher.updateAAD(aad)
+    val result = new Array[Byte](IvLength + cipher.getOutputSize(plaintext.length))
+    System.arraycopy(iv, 0, result, 0, IvLength)
+    cipher.doFinal(plaintext, 0, plaintext.length, result, IvLength)
+    result
+  }
+
+  def decrypt(data: Array[Byte]): Array[Byte] = decrypt(data, EmptyAad)
+
+  /**
+    * @throws javax.crypto.AEADBadTagException If the data or the additional data has been tampered with, or if the
+    *                                          data was encrypted using another key.
+    */
+  def decrypt(data: Array[Byte], aad: Array[Byte]): Array[Byte] = {
+    if (data.length < IvLength + TagLengthBits / 8) throw new IllegalArgumentException("Encrypted data is too short")
+
+    val cipher = perThread.get()
+    cipher.init(Cipher.DECRYPT_MODE, keySpec, new GCMParameterSpec(TagLengthBits, data, 0, IvLength))
+    cipher.updateAAD(aad)
+    cipher.doFinal(data, IvLength, data.length - IvLength)
+  }
+}
+
+object AesGcm {
+  private val EmptyAad = new Array[Byte](0)
+  private val IvLength = 12
+  private val TagLengthBits = 128
+
+  /**
+    * Derives a 256-bit AES key from the secret, using HMAC-SHA256 with a fixed label, so that the key doesn't
+    * directly depend on the first bytes of the secret.
+    */
+  def fromSecret(secret: String): AesGcm =
+    new AesGcm(KeyedMac.hmacSHA256(secret).sign("AES-GCM session encryption key".getBytes(UTF_8)))
+}
@@ -0,0 +1,131 @@
+package com.softwaremill.pekkohttpsession
+
+import java.security.MessageDigest
+import java.util
+
+import scala.util.Try
+
+/**
+  * Encodes sessions serialized to bytes (e.g. using a [[BinarySessionSerializer]]) as `2~[keyId.]data`, where `2` is
+  * the version of the format, and the data is base64url-encoded once, as a whole. The data is a flags byte, an
+  * optional 8-byte expiry, and the serialized session, followed by its HMAC-SHA256 signature (truncated to 128 bits).
+  * If [[SessionConfig.sessionEncryptData]] is enabled, the serialized session is encrypted using AES-GCM instead,
+  * authenticating the flags and the expiry as well. [[SessionConfig.sessionCompression]] is supported, while
+  * [[SessionConfig.sessionTokenFormat]] doesn't apply.
+  *
+  * As with the other encoders, forged and expired tokens are rejected before the data is decrypted and deserialized.
+  */
+class BinarySessionEncoder[T](implicit serializer: SessionSerializer[T, Array[Byte]]) extends SessionEncoder[T] {
+  import BinarySessionEncoder._
+  import SessionEncoder.{checkNotExpired, NoExpiryCheck}
+
+  override def encode(t: T, nowMillis: Long, config: SessionConfig): String = {
+    val serialized = serializer.serialize(t)
+    val (keyId, key) = config.sessionSigningKey
+    val expiry = config.sessionMaxAgeSeconds.map(nowMillis + _ * 1000L)
+    val compressed = config.sessionCompression
+      .filter(serialized.length >= _.threshold)
+      .map(c => SessionCompression.deflate(serialized, c.dictionaryBytes))
+      .filter(_.length < serialized.length)
+    val data = compressed.getOrElse(serialized)
+    val encrypt = config.sessionEncryptData
+
+    val headerLength = 1 + (if (expiry.isDefined) 8 else 0)
+    val flags = (if (expiry.isDefined) FlagExpiry else 0) | (if (encrypt) FlagEncrypted else 0) |
+      (if (compressed.isDefined) FlagCompressed else 0)
+    def writeHeader(dest: Array[Byte]): Unit = {
+      dest(0) = flags.toByte
+      expiry.foreach(Codec.writeLong(_, dest, 1))
+    }
+
+    val bytes = if (encrypt) {
+      val header = new Array[Byte](headerLength)
+      writeHeader(header)
+      val encrypted = key.aesGcm.encrypt(data, header)
+      val bytes = util.Arrays.copyOf(header, headerLength + encrypted.length)
+      System.arraycopy(encrypted, 0, bytes, headerLength, encrypted.length)
+      bytes
+    } else {
+      val signedLength = headerLength + data.length
+      val bytes = new Array[Byte](signedLength + SignatureLength)
+      writeHeader(bytes)
+      System.arraycopy(data, 0, bytes, headerLength, data.length)
+      System.arraycopy(key.hmacSHA256.sign(bytes, 0, signedLength), 0, bytes, signedLength, SignatureLength)
+      bytes
+    }
+
+    val dataOffset = 2 + keyId.fold(0)(_.length + 1)
+    val token = new Array[Char](dataOffset + Codec.base64UrlLength(bytes.length))
+    token(0) = Version
+    token(1) = VersionSeparator
+    keyId.foreach { id =>
+      id.getChars(0, id.length, token, 2)
+      token(2 + id.length) = '.'
+    }
+    Codec.writeBase64Url(bytes, token, dataOffset)
+    new String(token)
+  }
+
+  override def decode(s: String, config: SessionConfig): Try[DecodeResult[T]] = decode(s, NoExpiryCheck, config)
+
+  override def decode(s: String, nowMillis: Long, config: SessionConfig): Try[DecodeResult[T]] =
+    Try {
+      if (s.length < 2 || s.charAt(0) != Version || s.charAt(1) != VersionSeparator)
+        throw new CorruptSessionException("Unsupported session token format")
+
+      // neither key ids nor base64url contain a '.'
+      val dot = s.indexOf('.', 2)
+      val key = config.sessionVerificationKey(if (dot == -1) None else Some(s.substring(2, dot)))
+      val bytes = Codec.parseBase64Url(s, if (dot == -1) 2 else dot + 1, s.length)
+
+      val flags = if (bytes.isEmpty) -1 else bytes(0).toInt
+      if (flags < 0 || (flags & ~KnownFlags) != 0) throw new CorruptSessionException("Invalid session token header")
+      val hasExpiry = (flags & FlagExpiry) != 0
+      val encrypted = (flags & FlagEncrypted) != 0
+      val headerLength = 1 + (if (hasExpiry) 8 else 0)
+      if (bytes.length < headerLength + (if (encrypted) 0 else SignatureLength))
+        throw new CorruptSessionException("Invalid session token header")
+
+      // the expiry can't be removed, as it's authenticated, but a token could have been issued without one
+      if (!hasExpiry && config.sessionMaxAgeSeconds.isDefined)
+        throw new CorruptSessionException("Missing session expiry")
+      val expiry = if (hasExpiry) Some(Codec.readLong(bytes, 1)) else None
+      checkNotExpired(expiry, nowMillis, config)
+
+      val data = if (encrypted) {
+        // decryption fails if the data or the header has been tampered with
+        key.aesGcm.decrypt(util.Arrays.copyOfRange(bytes, headerLength, bytes.length),
+                           util.Arrays.copyOf(bytes, headerLength))
+      } else {
+        val signedLength = bytes.length - SignatureLength
+        val signature = key.hmacSHA256.sign(bytes, 0, signedLength)
+        if (!MessageDigest.isEqual(util.Arrays.copyOfRange(bytes, signedLength, bytes.length),
+                                   util.Arrays.copyOf(signature, SignatureLength)))
+          throw new CorruptSessionException("Corrupt signature")
+        util.Arrays.copyOfRange(bytes, headerLength, signedLength)
+      }
+
+      val serialized =
+        if ((flags & FlagCompressed) != 0)
+          SessionCompression.inflate(data, 0, data.length, SessionCompression.dictionary(config))
+        else data
+
+      serializer.deserialize(serialized).map { deserialized =>
+        DecodeResult(deserialized, expiry, signatureMatches = true, isLegacy = false)
+      }
+    }.flatten
+}
+
+object BinarySessionEncoder {
+  // legacy and compact tokens never start with "2~"
+  private val Version = '2'
+  private val VersionSeparator = '~'
+
+  private val FlagExpiry = 1
+  private val FlagEncrypted = 2
+  private val FlagCompressed = 4
+  private val KnownFlags = FlagExpiry | FlagEncrypted | FlagCompressed
+
+  // HMAC-SHA256, truncated to 128 bits
+  private val SignatureLength = 16
+}
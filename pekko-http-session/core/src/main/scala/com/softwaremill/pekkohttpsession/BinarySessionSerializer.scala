@@ -0,0 +1,295 @@
+package com.softwaremill.pekkohttpsession
+
+import java.nio.charset.StandardCharsets.UTF_8
+import java.util
+
+import scala.collection.mutable.ListBuffer
+import scala.util.Try
+
+/**
+  * Serializes sessions to a compact binary form, to be used with a [[BinarySessionEncoder]]. Serializers are composed
+  * by writing and reading the values one after another, without any field names or separators: integers are
+  * variable-length, strings, sequences and maps are prefixed with their (variable-length) size.
+  *
+  * For example, a case class can be serialized as a tuple of its fields:
+  * {{{
+  * implicit val serializer: BinarySessionSerializer[UserSession] =
+  *   BinarySessionSerializer
+  *     .tuple3[String, Long, Option[String]]
+  *     .xmap({ case (name, id, email) => UserSession(name, id, email) }, u => (u.name, u.id, u.email))
+  * }}}
+  *
+  * As the format doesn't describe itself, changing a serializer invalidates existing sessions. New fields can only be
+  * added at the end, using [[BinarySessionSerializer.optionalTrailing]].
+  */
+trait BinarySessionSerializer[T] extends SessionSerializer[T, Array[Byte]] {
+  import BinarySessionSerializer._
+
+  def write(t: T, out: Writer): Unit
+  def read(in: Reader): T
+
+  override def serialize(t: T): Array[Byte] = {
+    val out = new Writer
+    write(t, out)
+    out.toByteArray
+  }
+
+  override def deserialize(r: Array[Byte]): Try[T] = Try {
+    val in = new Reader(r)
+    val t = read(in)
+    if (in.remaining != 0) throw new IllegalArgumentException("Unexpected session data")
+    t
+  }
+
+  def xmap[U](f: T => U, g: U => T): BinarySessionSerializer[U] = {
+    val self = this
+    new BinarySessionSerializer[U] {
+      override def write(u: U, out: Writer): Unit = self.write(g(u), out)
+      override def read(in: Reader): U = f(self.read(in))
+    }
+  }
+}
+
+object BinarySessionSerializer {
+
+  /**
+    * A growable byte buffer, to which values are appended.
+    */
+  final class Writer(initialSize: Int = 64) {
+    private var buffer = new Array[Byte](initialSize)
+    private var length = 0
+
+    private def ensureCapacity(extra: Int): Unit =
+      if (length + extra > buffer.length)
+        buffer = util.Arrays.copyOf(buffer, math.max(buffer.length * 2, length + extra))
+
+    def writeByte(b: Int): Unit = {
+      ensureCapacity(1)
+      buffer(length) = b.toByte
+      length += 1
+    }
+
+    def writeBytes(bytes: Array[Byte]): Unit = {
+      ensureCapacity(bytes.length)
+      System.arraycopy(bytes, 0, buffer, length, bytes.length)
+      length += bytes.length
+    }
+
+    /**
+      * Unsigned LEB128: 7 bits per byte, the highest bit set on all bytes but the last one.
+      */
+    def writeVarLong(value: Long): Unit = {
+      ensureCapacity(10)
+      var v = value
+      while ((v & ~0x7FL) != 0) {
+        buffer(length) = ((v & 0x7F) | 0x80).toByte
+        length += 1
+        v >>>= 7
+      }
+      buffer(length) = v.toByte
+      length += 1
+    }
+
+    /**
+      * Zig-zag encoded, so that small negative values are short as well.
+      */
+    def writeSignedVarLong(value: Long): Unit = writeVarLong((value << 1) ^ (value >> 63))
+
+    def writeFixedLong(value: Long): Unit = {
+      ensureCapacity(8)
+      length = Codec.writeLong(value, buffer, length)
+    }
+
+    def writeString(s: String): Unit = {
+      val bytes = s.getBytes(UTF_8)
+      writeVarLong(bytes.length.toLong)
+      writeBytes(bytes)
+    }
+
+    def toByteArray: Array[Byte] = util.Arrays.copyOf(buffer, length)
+  }
+
+  /**
+    * Reads the values from the given bytes, in the order in which they have been written.
+    */
+  final class Reader(bytes: Array[Byte]) {
+    private var position = 0
+
+    def remaining: Int = bytes.length - position
+
+    private def ensureAvailable(count: Int): Unit =
+      if (count < 0 || count > remaining) throw new IllegalArgumentException("Truncated session data")
+
+    def readByte(): Int = {
+      ensureAvailable(1)
+      position += 1
+      bytes(position - 1) & 0xFF
+    }
+
+    def readBytes(count: Int): Array[Byte] = {
+      ensureAvailable(count)
+      position += count
+      util.Arrays.copyOfRange(bytes, position - count, position)
+    }
+
+    def readVarLong(): Long = {
+      var result = 0L
+      var shift = 0
+      var b = 0x80
+      while ((b & 0x80) != 0) {
+        if (shift > 63) throw new IllegalArgumentException("Invalid variable-length number")
+        b = readByte()
+        result |= (b & 0x7FL) << shift
+        shift += 7
+      }
+      result
+    }
+
+    def readSignedVarLong(): Long = {
+      val v = readVarLong()
+      (v >>> 1) ^ -(v & 1)
+    }
+
+    def readFixedLong(): Long = {
+      ensureAvailable(8)
+      position += 8
+      Codec.readLong(bytes, position - 8)
+    }
+
+    /**
+      * A size or a length, which can't be larger than the remaining data.
+      */
+    def readSize(): Int = {
+      val size = readVarLong()
+      if (size < 0 || size > remaining) throw new IllegalArgumentException("Truncated session data")
+      size.toInt
+    }
+
+    def readString(): String = {
+      val length = readSize()
+      position += length
+      new String(bytes, position - length, length, UTF_8)
+    }
+  }
+
+  def apply[T](implicit serializer: BinarySessionSerializer[T]): BinarySessionSerializer[T] = serializer
+
+  def instance[T](w: (T, Writer) => Unit, r: Reader => T): BinarySessionSerializer[T] =
+    new BinarySessionSerializer[T] {
+      override def write(t: T, out: Writer): Unit = w(t, out)
+      override def read(in: Reader): T = r(in)
+    }
+
+  implicit val boolean: BinarySessionSerializer[Boolean] =
+    instance[Boolean]((b, out) => out.writeByte(if (b) 1 else 0), { in =>
+      in.readByte() match {
+        case 0     => false
+        case 1     => true
+        case other => throw new IllegalArgumentException(s"Invalid boolean: $other")
+      }
+    })
+
+  implicit val int: BinarySessionSerializer[Int] =
+    instance[Int]((i, out) => out.writeSignedVarLong(i.toLong), { in =>
+      val l = in.readSignedVarLong()
+      if (l.toInt != l) throw new IllegalArgumentException("Int out of range")
+      l.toInt
+    })
+
+  implicit val long: BinarySessionSerializer[Long] =
+    instance[Long]((l, out) => out.writeSignedVarLong(l), _.readSignedVarLong())
+
+  implicit val double: BinarySessionSerializer[Double] =
+    instance[Double]((d, out) => out.writeFixedLong(java.lang.Double.doubleToLongBits(d)),
+                     in => java.lang.Double.longBitsToDouble(in.readFixedLong()))
+
+  implicit val string: BinarySessionSerializer[String] =
+    instance[String]((s, out) => out.writeString(s), _.readString())
+
+  implicit val bytes: BinarySessionSerializer[Array[Byte]] =
+    instance[Array[Byte]]({ (b, out) =>
+      out.writeVarLong(b.length.toLong)
+      out.writeBytes(b)
+    }, in => in.readBytes(in.readSize()))
+
+  /**
+    * A presence byte, followed by the value, if it's defined.
+    */
+  implicit def option[T](implicit s: BinarySessionSerializer[T]): BinarySessionSerializer[Option[T]] =
+    instance({ (o, out) =>
+      out.writeByte(if (o.isDefined) 1 else 0)
+      o.foreach(s.write(_, out))
+    }, in => if (boolean.read(in)) Some(s.read(in)) else None)
+
+  /**
+    * Like [[option]], but an undefined value at the end of the data may be omitted. Hence, a field serialized using
+    * this serializer can be added at the end of an existing serializer, without invalidating existing sessions.
+    */
+  def optionalTrailing[T](implicit s: BinarySessionSerializer[T]): BinarySessionSerializer[Option[T]] =
+    instance((o, out) => option(s).write(o, out), in => if (in.remaining == 0) None else option(s).read(in))
+
+  implicit def list[T](implicit s: BinarySessionSerializer[T]): BinarySessionSerializer[List[T]] =
+    instance({ (l, out) =>
+      out.writeVarLong(l.size.toLong)
+      l.foreach(s.write(_, out))
+    }, { in =>
+      // each element takes at least one byte
+      var count = in.readSize()
+      val result = ListBuffer[T]()
+      while (count > 0) {
+        result += s.read(in)
+        count -= 1
+      }
+      result.toList
+    })
+
+  implicit def vector[T](implicit s: BinarySessionSerializer[T]): BinarySessionSerializer[Vector[T]] =
+    list(s).xmap(_.toVector, _.toList)
+
+  implicit def set[T](implicit s: BinarySessionSerializer[T]): BinarySessionSerializer[Set[T]] =
+    list(s).xmap(_.toSet, _.toList)
+
+  implicit def map[K, V](implicit k: BinarySessionSerializer[K],
+                         v: BinarySessionSerializer[V]): BinarySessionSerializer[Map[K, V]] =
+    list(tuple2(k, v)).xmap(_.toMap, _.toList)
+
+  implicit def tuple2[A, B](implicit a: BinarySessionSerializer[A],
+                            b: BinarySessionSerializer[B]): BinarySessionSerializer[(A, B)] =
+    instance({ (t, out) =>
+      a.write(t._1, out)
+      b.write(t._2, out)
+    }, in => (a.read(in), b.read(in)))
+
+  implicit def tuple3[A, B, C](implicit a: BinarySessionSerializer[A],
+                               b: BinarySessionSerializer[B],
+                               c: BinarySessionSerializer[C]): BinarySessionSerializer[(A, B, C)] =
+    instance({ (t, out) =>
+      a.write(t._1, out)
+      b.write(t._2, out)
+      c.write(t._3, out)
+    }, in => (a.read(in), b.read(in), c.read(in)))
+
+  implicit def tuple4[A, B, C, D](implicit a: BinarySessionSerializer[A],
+                                  b: BinarySessionSerializer[B],
+                                  c: BinarySessionSerializer[C],
+                                  d: BinarySessionSerializer[D]): BinarySessionSerializer[(A, B, C, D)] =
+    instance({ (t, out) =>
+      a.write(t._1, out)
+      b.write(t._2, out)
+      c.write(t._3, out)
+      d.write(t._4, out)
+    }, in => (a.read(in), b.read(in), c.read(in), d.read(in)))
+
+  implicit def tuple5[A, B, C, D, E](implicit a: BinarySessionSerializer[A],
+                                     b: BinarySessionSerializer[B],
+                                     c: BinarySessionSerializer[C],
+                                     d: BinarySessionSerializer[D],
+                                     e: BinarySessionSerializer[E]): BinarySessionSerializer[(A, B, C, D, E)] =
+    instance({ (t, out) =>
+      a.write(t._1, out)
+      b.write(t._2, out)
+      c.write(t._3, out)
+      d.write(t._4, out)
+      e.write(t._5, out)
+    }, in => (a.read(in), b.read(in), c.read(in), d.read(in), e.read(in)))
+}
@@ -0,0 +1,274 @@
+package com.softwaremill.pekkohttpsession
+
+import java.nio.charset.StandardCharsets.UTF_8
+
+/**
+  * Low-level helpers used when encoding and decoding tokens. They work directly on byte and char arrays (and on ranges
+  * of strings), so that a token can be assembled in a single buffer and materialized as a `String` only once, and so
+  * that decoding doesn't need to split the token or go through intermediate strings.
+  */
+private[pekkohttpsession] object Codec {
+  private val HexDigits = "0123456789ABCDEF".toCharArray
+
+  private val Base64UrlDigits = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray
+  private val Base64UrlValues: Array[Int] = {
+    val values = Array.fill(128)(-1)
+    Base64UrlDigits.indices.foreach(i => values(Base64UrlDigits(i).toInt) = i)
+    values
+  }
+
+  def hexLength(bytesLength: Int): Int = bytesLength * 2
+
+  /**
+    * Writes the bytes as upper-case hex digits into `dest`, starting at `offset`.
+    * @return The offset right after the last written char.
+    */
+  def writeHex(bytes: Array[Byte], dest: Array[Char], offset: Int): Int = {
+    var i = 0
+    var j = offset
+    while (i < bytes.length) {
+      val v = bytes(i) & 0xFF
+      dest(j) = HexDigits(v >>> 4)
+      dest(j + 1) = HexDigits(v & 0x0F)
+      i += 1
+      j += 2
+    }
+    j
+  }
+
+  /**
+    * @throws IllegalArgumentException If the `[from, until)` range of `s` isn't a valid hex string.
+    */
+  def parseHex(s: String, from: Int, until: Int): Array[Byte] = {
+    if (from > until || ((until - from) & 1) != 0) throw new IllegalArgumentException("Invalid hex string length")
+
+    val result = new Array[Byte]((until - from) / 2)
+    var i = from
+    var j = 0
+    while (i < until) {
+      val hi = Character.digit(s.charAt(i), 16)
+      val lo = Character.digit(s.charAt(i + 1), 16)
+      if (hi == -1 || lo == -1) throw new IllegalArgumentException("Invalid hex string")
+      result(j) = ((hi << 4) | lo).toByte
+      i += 2
+      j += 1
+    }
+    result
+  }
+
+  /**
+    * The length of the unpadded base64url encoding of the given number of bytes.
+    */
+  def base64UrlLength(bytesLength: Int): Int = (bytesLength * 4 + 2) / 3
+
+  /**
+    * Writes the bytes using unpadded base64url encoding into `dest`, starting at `offset`.
+    * @return The offset right after the last written char.
+    */
+  def writeBase64Url(bytes: Array[Byte], dest: Array[Char], offset: Int): Int = {
+    var i = 0
+    var j = offset
+    while (i + 2 < bytes.length) {
+      val v = ((bytes(i) & 0xFF) << 16) | ((bytes(i + 1) & 0xFF) << 8) | (bytes(i + 2) & 0xFF)
+      dest(j) = Base64UrlDigits(v >>> 18)
+      dest(j + 1) = Base64UrlDigits((v >>> 12) & 0x3F)
+      dest(j + 2) = Base64UrlDigits((v >>> 6) & 0x3F)
+      dest(j + 3) = Base64UrlDigits(v & 0x3F)
+      i += 3
+      j += 4
+    }
+    bytes.length - i match {
+      case 1 =>
+        val v = bytes(i) & 0xFF
+        dest(j) = Base64UrlDigits(v >>> 2)
+        dest(j + 1) = Base64UrlDigits((v << 4) & 0x3F)
+        j += 2
+      case 2 =>
+        val v = ((bytes(i) & 0xFF) << 8) | (bytes(i + 1) & 0xFF)
+        dest(j) = Base64UrlDigits(v >>> 10)
+        dest(j + 1) = Base64UrlDigits((v >>> 4) & 0x3F)
+        dest(j + 2) = Base64UrlDigits((v << 2) & 0x3F)
+        j += 3
+      case _ =>
+    }
+    j
+  }
+
+  /**
+    * Writes the bytes using unpadded base64url encoding into `dest`, as ASCII bytes, starting at `offset`.
+    * @return The offset right after the last written byte.
+    */
+  def writeBase64Url(bytes: Array[Byte], dest: Array[Byte], offset: Int): Int = {
+    var i = 0
+    var j = offset
+    while (i + 2 < bytes.length) {
+      val v = ((bytes(i) & 0xFF) << 16) | ((bytes(i + 1) & 0xFF) << 8) | (bytes(i + 2) & 0xFF)
+      dest(j) = Base64UrlDigits(v >>> 18).toByte
+      dest(j + 1) = Base64UrlDigits((v >>> 12) & 0x3F).toByte
+      dest(j + 2) = Base64UrlDigits((v >>> 6) & 0x3F).toByte
+      dest(j + 3) = Base64UrlDigits(v & 0x3F).toByte
+      i += 3
+      j += 4
+    }
+    bytes.length - i match {
+      case 1 =>
+        val v = bytes(i) & 0xFF
+        dest(j) = Base64UrlDigits(v >>> 2).toByte
+        dest(j + 1) = Base64UrlDigits((v << 4) & 0x3F).toByte
+        j += 2
+      case 2 =>
+        val v = ((bytes(i) & 0xFF) << 8) | (bytes(i + 1) & 0xFF)
+        dest(j) = Base64UrlDigits(v >>> 10).toByte
+        dest(j + 1) = Base64UrlDigits((v >>> 4) & 0x3F).toByte
+        dest(j + 2) = Base64UrlDigits((v << 2) & 0x3F).toByte
+        j += 3
+      case _ =>
+    }
+    j
+  }
+
+  /**
+    * @throws IllegalArgumentException If the `[from, until)` range of `s` isn't valid, canonical, unpadded base64url.
+    */
+  def parseBase64Url(s: String, from: Int, until: Int): Array[Byte] = {
+    val length = until - from
+    if (length < 0 || length % 4 == 1) throw new IllegalArgumentException("Invalid base64url string length")
+
+    def value(i: Int): Int = {
+      val c = s.charAt(i)
+      val v = if (c < 128) Base64UrlValues(c.toInt) else -1
+      if (v == -1) throw new IllegalArgumentException("Invalid base64url string")
+      v
+    }
+
+    val result = new Array[Byte](length * 3 / 4)
+    var i = from
+    var j = 0
+    while (i + 3 < until) {
+      val v = (value(i) << 18) | (value(i + 1) << 12) | (value(i + 2) << 6) | value(i + 3)
+      result(j) = (v >>> 16).toByte
+      result(j + 1) = (v >>> 8).toByte
+      result(j + 2) = v.toByte
+      i += 4
+      j += 3
+    }
+    // the unused bits of the last char must be zero, so that each value has exactly one encoding
+    until - i match {
+      case 2 =>
+        val v = (value(i) << 6) | value(i + 1)
+        if ((v & 0x0F) != 0) throw new IllegalArgumentException("Invalid base64url string")
+        result(j) = (v >>> 4).toByte
+      case 3 =>
+        val v = (value(i) << 12) | (value(i + 1) << 6) | value(i + 2)
+        if ((v & 0x03) != 0) throw new IllegalArgumentException("Invalid base64url string")
+        result(j) = (v >>> 10).toByte
+        result(j + 1) = (v >>> 2).toByte
+      case _ =>
+    }
+    result
+  }
+
+  /**
+    * The number of decimal digits of a non-negative number.
+    */
+  def decimalLength(value: Long): Int = {
+    var length = 1
+    var v = value / 10
+    while (v != 0) {
+      length += 1
+      v /= 10
+    }
+    length
+  }
+
+  /**
+    * Writes the decimal digits of a non-negative number into `dest`, starting at `offset`.
+    * @return The offset right after the last written char.
+    */
+  def writeDecimal(value: Long, dest: Array[Char], offset: Int): Int = {
+    val end = offset + decimalLength(value)
+    var v = value
+    var j = end - 1
+    while (j >= offset) {
+      dest(j) = ('0' + (v % 10)).toChar
+      v /= 10
+      j -= 1
+    }
+    end
+  }
+
+  /**
+    * Parses the ASCII decimal digits in the `[from, until)` range of `bytes` as a non-negative number.
+    * @throws NumberFormatException If the range is empty, contains anything but digits, or overflows a `Long`.
+    */
+  def parseDecimal(bytes: Array[Byte], from: Int, until: Int): Long = {
+    if (from >= until) throw new NumberFormatException("Empty number")
+
+    var result = 0L
+    var i = from
+    while (i < until) {
+      val d = bytes(i) - '0'
+      if (d < 0 || d > 9) throw new NumberFormatException("Invalid number")
+      if (result > (Long.MaxValue - d) / 10) throw new NumberFormatException("Number too large")
+      result = result * 10 + d
+      i += 1
+    }
+    result
+  }
+
+  def writeLong(value: Long, dest: Array[Byte], offset: Int): Int = {
+    var i = 0
+    while (i < 8) {
+      dest(offset + i) = (value >>> (56 - 8 * i)).toByte
+      i += 1
+    }
+    offset + 8
+  }
+
+  def readLong(bytes: Array[Byte], offset: Int): Long = {
+    var result = 0L
+    var i = 0
+    while (i < 8) {
+      result = (result << 8) | (bytes(offset + i) & 0xFF)
+      i += 1
+    }
+    result
+  }
+
+  def indexOf(bytes: Array[Byte], b: Byte, from: Int): Int = {
+    var i = from
+    while (i < bytes.length && bytes(i) != b) i += 1
+    if (i == bytes.length) -1 else i
+  }
+
+  /**
+    * UTF-8 encodes the `[from, until)` range of `chars`. Tokens are (almost) always ASCII, in which case the bytes
+    * are copied directly, without creating an intermediate string.
+    */
+  def encodeUtf8(chars: Array[Char], from: Int, until: Int): Array[Byte] = {
+    val result = new Array[Byte](until - from)
+    var i = from
+    while (i < until) {
+      val c = chars(i)
+      if (c >= 0x80) return new String(chars, from, until - from).getBytes(UTF_8)
+      result(i - from) = c.toByte
+      i += 1
+    }
+    result
+  }
+
+  /**
+    * UTF-8 encodes the `[from, until)` range of `s`, copying ASCII chars directly, as above.
+    */
+  def encodeUtf8(s: String, from: Int, until: Int): Array[Byte] = {
+    val result = new Array[Byte](until - from)
+    var i = from
+    while (i < until) {
+      val c = s.charAt(i)
+      if (c >= 0x80) return s.substring(from, until).getBytes(UTF_8)
+      result(i - from) = c.toByte
+      i += 1
+    }
+    result
+  }
+}
@@ -0,0 +1,89 @@
+package com.softwaremill.pekkohttpsession
+
+import java.util.UUID
+
+/**
+  * Generates the values of the `jti` (JWT ID) claim, which must be unique per token. A custom generator can be set
+  * using `SessionConfig.jwt.jwtIdGenerator`.
+  */
+trait JwtIdGenerator {
+
+  /**
+    * @param nowMillis The time at which the token is issued.
+    */
+  def generate(nowMillis: Long): String
+}
+
+object JwtIdGenerator {
+
+  /**
+    * Generates ULIDs (see https://github.com/ulid/spec): 26 chars, encoding a 48-bit millisecond timestamp, followed
+    * by 80 random bits, using Crockford's base32. The ids sort by the time at which they were issued, so stores of
+    * used or revoked ids can be bucketed by time, and expired ranges can be dropped cheaply.
+    *
+    * Each thread has its own state: ids generated by a thread within the same millisecond are ordered, as the random
+    * part is incremented, instead of being generated again. Threads never contend with each other.
+    */
+  object Ulid extends JwtIdGenerator {
+    private val Digits = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray
+    private val Length = 26
+    private val RandomBytes = 10
+
+    private final class State {
+      val bytes = new Array[Byte](RandomBytes)
+      var lastMillis: Long = -1L
+      // the 80 random bits: the upper 16 in `hi`, the lower 64 in `lo`
+      var hi: Long = 0L
+      var lo: Long = 0L
+    }
+
+    private val perThread = new ThreadLocal[State] {
+      override def initialValue(): State = new State
+    }
+
+    override def generate(nowMillis: Long): String = {
+      val state = perThread.get()
+      if (nowMillis > state.lastMillis) {
+        state.lastMillis = nowMillis
+        SecureRandomTokens.nextBytes(state.bytes)
+        state.hi = ((state.bytes(0) & 0xFFL) << 8) | (state.bytes(1) & 0xFFL)
+        state.lo = Codec.readLong(state.bytes, 2)
+      } else {
+        // the same millisecond (or the clock went back): keep the last timestamp, so that the ids remain ordered
+        state.lo += 1
+        if (state.lo == 0L) state.hi = (state.hi + 1) & 0xFFFF
+      }
+
+      val chars = new Array[Char](Length)
+      var i = 0
+      while (i < 10) {
+        chars(i) = Digits(((state.lastMillis >>> (45 - 5 * i)) & 0x1F).toInt)
+        i += 1
+      }
+      while (i < Length) {
+        val shift = 5 * (Length - 1 - i)
+        val bits =
+          if (shift >= 64) state.hi >>> (shift - 64)
+          else if (shift == 0) state.lo
+          else (state.lo >>> shift) | (state.hi << (64 - shift))
+        chars(i) = Digits((bits & 0x1F).toInt)
+        i += 1
+      }
+      new String(chars)
+    }
+  }
+
+  /**
+    * Generates random UUIDs, as done before ULIDs were introduced. All threads share a single random number generator.
+    */
+  object RandomUuid extends JwtIdGenerator {
+    override def generate(nowMillis: Long): String = UUID.randomUUID().toString
+  }
+
+  def fromValue(value: String): JwtIdGenerator = value.toLowerCase match {
+    case "ulid" => Ulid
+    case "uuid" => RandomUuid
+    case oth =>
+      throw new IllegalArgumentException(s"Unsupported jti generator '$oth'. Supported values are: ulid, uuid")
+  }
+}
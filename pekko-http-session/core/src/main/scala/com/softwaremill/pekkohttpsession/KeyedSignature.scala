@@ -0,0 +1,61 @@
+package com.softwaremill.pekkohttpsession
+
+import java.security.{PrivateKey, PublicKey, Signature, SignatureException}
+
+/**
+  * A signature engine which is initialized with a key once, when created. Each thread gets its own, already initialized
+  * `Signature` instance, so that signing or verifying doesn't require a provider lookup or a key setup on every call.
+  *
+  * An engine created using [[KeyedSignature.forSigning]] can only sign, one created using
+  * [[KeyedSignature.forVerification]] can only verify.
+  */
+final class KeyedSignature private (val algorithm: String, initialize: Signature => Unit) {
+
+  private val perThread = new ThreadLocal[Signature] {
+    override def initialValue(): Signature = {
+      val signature = Signature.getInstance(algorithm)
+      initialize(signature)
+      signature
+    }
+  }
+
+  /**
+    * `sign` resets the engine to the state right after initialization, so the thread-local instance can be reused
+    * right away.
+    */
+  def sign(message: Array[Byte]): Array[Byte] = withEngine { engine =>
+    engine.update(message)
+    engine.sign()
+  }
+
+  /**
+    * @return `false` also if the signature is malformed.
+    */
+  def verify(message: Array[Byte], signature: Array[Byte]): Boolean =
+    try withEngine { engine =>
+      engine.update(message)
+      engine.verify(signature)
+    } catch { case _: SignatureException => false }
+
+  /**
+    * If the engine fails, it might be left in an intermediate state, so it's discarded, and a new one is created on
+    * the next call.
+    */
+  private def withEngine[R](f: Signature => R): R = {
+    val engine = perThread.get()
+    try f(engine)
+    catch {
+      case e: Exception =>
+        perThread.remove()
+        throw e
+    }
+  }
+}
+
+object KeyedSignature {
+  def forSigning(algorithm: String, privateKey: PrivateKey): KeyedSignature =
+    new KeyedSignature(algorithm, _.initSign(privateKey))
+
+  def forVerification(algorithm: String, publicKey: PublicKey): KeyedSignature =
+    new KeyedSignature(algorithm, _.initVerify(publicKey))
+}
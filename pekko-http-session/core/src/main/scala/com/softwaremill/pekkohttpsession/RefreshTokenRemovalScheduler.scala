@@ -0,0 +1,132 @@
+package com.softwaremill.pekkohttpsession
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.locks.ReentrantReadWriteLock
+
+import org.apache.pekko.actor.{Cancellable, Scheduler}
+
+import scala.concurrent.duration._
+import scala.concurrent.{ExecutionContext, Future}
+import scala.util.control.NonFatal
+
+/**
+  * Removes used refresh tokens from a [[RefreshTokenStorage]] after a delay, so that concurrent requests using the old
+  * token can still be served (see [[SessionConfig.removeUsedRefreshTokenAfter]]). Use it in a storage by overriding
+  * [[RefreshTokenStorage.scheduleRemoval]].
+  */
+trait RefreshTokenRemovalScheduler {
+  def scheduleRemoval(selector: String, after: FiniteDuration): Unit
+
+  /**
+    * Stops running the scheduled removals.
+    */
+  def shutdown(): Unit
+}
+
+object RefreshTokenRemovalScheduler {
+
+  /**
+    * A [[HashedWheelRemovalScheduler]], ticked by the given Pekko scheduler (e.g. `system.scheduler`): there's a single
+    * timer, regardless of the number of scheduled removals. Tokens which are due are removed from the storage using a
+    * single [[RefreshTokenStorage.removeAll]] call per tick.
+    *
+    * @param onFailure Called if removing the tokens which are due fails. These tokens aren't removed again, so they
+    *                  stay valid until they expire: the failure should be logged.
+    */
+  def apply(storage: RefreshTokenStorage[_],
+            scheduler: Scheduler,
+            onFailure: Throwable => Unit,
+            tick: FiniteDuration = 1.second,
+            wheelSize: Int = 512)(implicit ec: ExecutionContext): RefreshTokenRemovalScheduler =
+    new HashedWheelRemovalScheduler(tick, wheelSize, storage.removeAll(_)) {
+      private val timer: Cancellable = scheduler.scheduleWithFixedDelay(tick, tick) { () =>
+        // an exception thrown by the task would stop the timer
+        try runDueRemovals().failed.foreach(onFailure)
+        catch { case NonFatal(e) => onFailure(e) }
+      }
+      override def shutdown(): Unit = timer.cancel()
+    }
+}
+
+/**
+  * Keeps the scheduled removals in a hashed timing wheel: a ring of `wheelSize` buckets, each covering one `tick`. A
+  * removal is added to the bucket of the tick in which it's due (wrapping around the ring); [[runDueRemovals]] should
+  * be called every tick, and removes all tokens which are due from the buckets of the ticks which passed since it was
+  * last called, in a single batch. Removals are run at most a tick late.
+  *
+  * Scheduling a removal is thread-safe and only adds an entry to a bucket, so memory use is proportional to the number
+  * of pending removals. Removals can be scheduled concurrently, but not while the buckets of a tick are being scanned,
+  * as a removal added to a bucket which has just been scanned would only be run a full revolution of the wheel later.
+  */
+class HashedWheelRemovalScheduler(tick: FiniteDuration, wheelSize: Int, removeAll: Seq[String] => Future[Unit])
+    extends RefreshTokenRemovalScheduler {
+  require(tick.toMillis > 0, "The tick must be at least 1 millisecond long!")
+  require(wheelSize > 0, "The wheel size must be positive!")
+
+  private case class Pending(selector: String, deadline: Long)
+
+  private val tickMillis = tick.toMillis
+  private val wheel = Array.fill(wheelSize)(new ConcurrentLinkedQueue[Pending]())
+  private val pendingCount = new LongAdder()
+  // guards adding to the buckets (shared) against scanning them (exclusive)
+  private val lock = new ReentrantReadWriteLock()
+  private var lastTick: Long = -1L
+
+  def nowMillis: Long = System.currentTimeMillis()
+
+  private def bucket(tick: Long): Int = Math.floorMod(tick, wheelSize.toLong).toInt
+
+  /**
+    * The number of scheduled removals which haven't been run yet.
+    */
+  def pending: Long = pendingCount.sum()
+
+  override def scheduleRemoval(selector: String, after: FiniteDuration): Unit = {
+    val deadline = nowMillis + after.toMillis
+    lock.readLock().lock()
+    try {
+      // the first tick which starts at or after the deadline, but never one which has already been processed
+      val dueTick = math.max((deadline + tickMillis - 1) / tickMillis, lastTick + 1)
+      wheel(bucket(dueTick)).add(Pending(selector, deadline))
+      pendingCount.increment()
+    } finally lock.readLock().unlock()
+  }
+
+  override def shutdown(): Unit = ()
+
+  /**
+    * Removes the tokens which are due, using a single `removeAll` call. If none are due, the storage isn't called.
+    */
+  def runDueRemovals(): Future[Unit] = {
+    lock.writeLock().lock()
+    val selectors =
+      try dueSelectors(nowMillis)
+      finally lock.writeLock().unlock()
+    if (selectors.isEmpty) Future.successful(()) else removeAll(selectors)
+  }
+
+  private def dueSelectors(now: Long): Vector[String] = {
+    val currentTick = now / tickMillis
+    // at most one revolution of the wheel needs to be processed, as each bucket is checked for all due removals
+    val firstTick = if (lastTick < 0) currentTick - wheelSize + 1 else math.max(lastTick + 1, currentTick - wheelSize + 1)
+    lastTick = currentTick
+
+    val due = Vector.newBuilder[String]
+    var t = firstTick
+    while (t <= currentTick) {
+      val it = wheel(bucket(t)).iterator()
+      while (it.hasNext) {
+        val p = it.next()
+        // entries due in later revolutions of the wheel stay in the bucket
+        if (p.deadline <= now) {
+          it.remove()
+          pendingCount.decrement()
+          due += p.selector
+        }
+      }
+      t += 1
+    }
+    due.result()
+  }
+}
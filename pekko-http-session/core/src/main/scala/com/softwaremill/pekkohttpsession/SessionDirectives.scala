@@ -71,20 +71,38 @@ trait SessionDirectives extends OneOffSessionDirectives with RefreshableSessionD
   /**
     * Sets the session cookie again with the same data. Useful when using the [[SessionConfig.sessionMaxAgeSeconds]]
     * option, as it sets the expiry date anew.
+    *
+    * If [[SessionConfig.sessionTouchReissueThreshold]] is set, the session is only set again when it's close to
+    * expiring.
     */
   def touchOptionalSession[T](sc: SessionContinuity[T], st: GetSessionTransport): Directive1[Option[T]] = {
-    optionalSession(sc, st).flatMap { d =>
-      d.fold(pass)(s => setOneOffSessionSameTransport(sc, st, s)) & provide(d)
+    sessionWithExpiry(sc, st).flatMap {
+      case (result, expires) =>
+        val d = result.toOption
+        d.filter(_ => sc.clientSessionManager.shouldReissueTouched(expires))
+          .fold(pass)(s => setOneOffSessionSameTransport(sc, st, s)) & provide(d)
     }
   }
 
   /**
     * Sets the session cookie again with the same data. Useful when using the [[SessionConfig.sessionMaxAgeSeconds]]
     * option, as it sets the expiry date anew.
+    *
+    * If [[SessionConfig.sessionTouchReissueThreshold]] is set, the session is only set again when it's close to
+    * expiring.
     */
   def touchRequiredSession[T](sc: SessionContinuity[T], st: GetSessionTransport): Directive1[T] = {
-    requiredSession(sc, st).flatMap { d =>
-      setOneOffSessionSameTransport(sc, st, d) & provide(d)
+    touchOptionalSession(sc, st).flatMap {
+      case None       => reject(sc.clientSessionManager.sessionMissingRejection)
+      case Some(data) => provide(data)
+    }
+  }
+
+  private def sessionWithExpiry[T](sc: SessionContinuity[T],
+                                   st: GetSessionTransport): Directive1[(SessionResult[T], Option[Long])] = {
+    sc match {
+      case _: OneOff[T]      => oneOffSessionWithExpiry(sc, st)
+      case r: Refreshable[T] => refreshableSessionWithExpiry(r, st)
     }
   }
 
@@ -146,14 +164,22 @@ trait OneOffSessionDirectives {
     }
 
   private[pekkohttpsession] def oneOffSession[T](sc: SessionContinuity[T],
-                                        st: GetSessionTransport): Directive1[SessionResult[T]] = {
+                                        st: GetSessionTransport): Directive1[SessionResult[T]] =
+    oneOffSessionWithExpiry(sc, st).map(_._1)
+
+  /**
+    * Same as [[oneOffSession]], but also provides the expiry date of a decoded session, if known.
+    */
+  private[pekkohttpsession] def oneOffSessionWithExpiry[T](
+      sc: SessionContinuity[T],
+      st: GetSessionTransport): Directive1[(SessionResult[T], Option[Long])] = {
     read(sc, st).flatMap {
-      case None => provide(SessionResult.NoSession)
+      case None => provide((SessionResult.NoSession, None))
       case Some((v, setSt)) => {
-        sc.clientSessionManager.decode(v) match {
-          case s: SessionResult.DecodedLegacy[T] =>
-            setOneOffSession(sc, setSt, s.session) & provide(s: SessionResult[T])
-          case s => provide(s)
+        sc.clientSessionManager.decodeWithExpiry(v) match {
+          case r @ (s: SessionResult.DecodedLegacy[T], _) =>
+            setOneOffSession(sc, setSt, s.session) & provide(r)
+          case r => provide(r)
         }
       }
     }
@@ -192,21 +218,30 @@ trait RefreshableSessionDirectives { this: OneOffSessionDirectives =>
     }
 
   private[pekkohttpsession] def refreshableSession[T](sc: Refreshable[T],
-                                             st: GetSessionTransport): Directive1[SessionResult[T]] = {
+                                             st: GetSessionTransport): Directive1[SessionResult[T]] =
+    refreshableSessionWithExpiry(sc, st).map(_._1)
+
+  /**
+    * Same as [[refreshableSession]], but also provides the expiry date of a decoded session, if known. The expiry of
+    * sessions created from a refresh token is unknown.
+    */
+  private[pekkohttpsession] def refreshableSessionWithExpiry[T](
+      sc: Refreshable[T],
+      st: GetSessionTransport): Directive1[(SessionResult[T], Option[Long])] = {
     import sc.ec
-    oneOffSession(sc, st).flatMap {
-      case SessionResult.NoSession | SessionResult.Expired =>
+    oneOffSessionWithExpiry(sc, st).flatMap {
+      case (SessionResult.NoSession | SessionResult.Expired, _) =>
         read(sc, st).flatMap {
-          case None => provide(SessionResult.NoSession)
+          case None => provide((SessionResult.NoSession, None))
           case Some((v, setSt)) =>
             onSuccess(sc.refreshTokenManager.sessionFromValue(v))
               .flatMap {
                 case s @ SessionResult.CreatedFromToken(session) =>
-                  setRefreshableSession(sc, setSt, session) & provide(s: SessionResult[T])
-                case s => provide(s)
+                  setRefreshableSession(sc, setSt, session) & provide((s: SessionResult[T], Option.empty[Long]))
+                case s => provide((s, Option.empty[Long]))
               }
         }
-      case s => provide(s)
+      case r => provide(r)
     }
   }
 
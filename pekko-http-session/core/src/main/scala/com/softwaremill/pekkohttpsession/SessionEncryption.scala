@@ -0,0 +1,35 @@
+package com.softwaremill.pekkohttpsession
+
+/**
+  * How session data is encrypted, when [[SessionConfig.sessionEncryptData]] is enabled.
+  */
+sealed trait SessionEncryption {
+  def value: String
+}
+
+object SessionEncryption {
+
+  /**
+    * The data is signed using HMAC-SHA1 and separately encrypted using AES, with a key truncated from the secret.
+    * The encrypted data is hex-encoded.
+    */
+  case object Aes extends SessionEncryption {
+    override val value: String = "AES"
+  }
+
+  /**
+    * The data is encrypted and authenticated in a single pass using AES-GCM, with a key derived from the secret.
+    * The result is base64url-encoded, which makes tokens roughly half as long as with [[Aes]].
+    */
+  case object AesGcm extends SessionEncryption {
+    override val value: String = "AES-GCM"
+  }
+
+  def fromValue(value: String): SessionEncryption = value.toUpperCase match {
+    case Aes.value    => Aes
+    case AesGcm.value => AesGcm
+    case oth =>
+      throw new IllegalArgumentException(
+        s"Unsupported session encryption '$oth'. Supported values are: ${Aes.value}, ${AesGcm.value}")
+  }
+}
@@ -0,0 +1,40 @@
+package com.softwaremill.pekkohttpsession
+
+import javax.crypto.spec.SecretKeySpec
+
+/**
+  * A secret used to sign and encrypt sessions. The `id` of a key from a [[SessionKeyRing]] is embedded in the tokens
+  * signed with it, so that the right key can be picked when decoding.
+  */
+case class SessionKey(id: String, secret: String) {
+  private[pekkohttpsession] lazy val hmacSHA1: KeyedMac = KeyedMac.hmacSHA1(secret)
+  private[pekkohttpsession] lazy val hmacSHA256: KeyedMac = KeyedMac.hmacSHA256(secret)
+  private[pekkohttpsession] lazy val jwsHmacSHA256: JwsAlgorithm.HmacSHA256 = JwsAlgorithm.HmacSHA256(secret)
+  private[pekkohttpsession] lazy val aesGcm: AesGcm = AesGcm.fromSecret(secret)
+  private[pekkohttpsession] lazy val aes: SecretKeySpec = Crypto.aesKey(secret)
+}
+
+/**
+  * Allows rotating the secret used for sessions without invalidating existing ones. New sessions are always signed
+  * (and optionally encrypted) using the `active` key. Sessions signed with any of the `verifyOnly` keys are still
+  * accepted; the key is looked up using the id embedded in the token, so each token is verified only once.
+  *
+  * Sessions without a key id (created before the key ring was configured) are verified using
+  * [[SessionConfig.serverSecret]].
+  */
+case class SessionKeyRing(active: SessionKey, verifyOnly: List[SessionKey] = Nil) {
+  private val keysById: Map[String, SessionKey] = (active :: verifyOnly).map(k => k.id -> k).toMap
+
+  require(keysById.size == verifyOnly.size + 1, "Session key ids must be unique!")
+  keysById.values.foreach { key =>
+    require(SessionKeyRing.ValidKeyId.pattern.matcher(key.id).matches(),
+            s"Session key id '${key.id}' must be non-empty and may only contain letters, digits and '_'!")
+    require(key.secret.length >= 64, s"Secret of session key '${key.id}' must be at least 64 characters long!")
+  }
+
+  def key(id: String): Option[SessionKey] = keysById.get(id)
+}
+
+object SessionKeyRing {
+  private val ValidKeyId = "[A-Za-z0-9_]+".r
+}
@@ -0,0 +1,38 @@
+package com.softwaremill.pekkohttpsession
+
+/**
+  * The format of the tokens created by [[BasicSessionEncoder]]. Tokens in any of the formats can always be decoded,
+  * regardless of the configured one, so switching formats doesn't invalidate existing sessions.
+  */
+sealed trait SessionTokenFormat {
+  def value: String
+}
+
+object SessionTokenFormat {
+
+  /**
+    * `[keyId.]signature-[expiry-]data`, with a hex-encoded HMAC-SHA1 signature and a decimal expiry. When
+    * [[SessionEncryption.AesGcm]] encryption is used, `[keyId.]encrypted`.
+    */
+  case object Legacy extends SessionTokenFormat {
+    override val value: String = "legacy"
+  }
+
+  /**
+    * `1~[keyId.]header~data`, where `1` is the version of the format, which lets the decoder pick the right code path
+    * up front. The header is a base64url-encoded binary value: a flags byte, an optional 8-byte expiry and, unless the
+    * data is encrypted, an HMAC-SHA256 signature (truncated to 128 bits) of the header and the data. Encrypted data is
+    * always encrypted using AES-GCM, authenticating the header as well, and is base64url-encoded.
+    */
+  case object Compact extends SessionTokenFormat {
+    override val value: String = "compact"
+  }
+
+  def fromValue(value: String): SessionTokenFormat = value.toLowerCase match {
+    case Legacy.value  => Legacy
+    case Compact.value => Compact
+    case oth =>
+      throw new IllegalArgumentException(
+        s"Unsupported session token format '$oth'. Supported values are: ${Legacy.value}, ${Compact.value}")
+  }
+}
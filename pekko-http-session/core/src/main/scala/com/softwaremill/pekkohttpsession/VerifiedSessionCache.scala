@@ -0,0 +1,75 @@
+package com.softwaremill.pekkohttpsession
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.{AtomicInteger, AtomicReferenceArray, LongAdder}
+
+/**
+  * A concurrent, size-bounded cache of successfully verified sessions, keyed by the exact token sent by the client.
+  * A client usually sends the same token on many requests, and a cache hit skips verifying, decrypting and
+  * deserializing the session.
+  *
+  * When the cache is full, entries are evicted using the CLOCK algorithm: each entry gets a "second chance" if it has
+  * been read since the clock hand last passed it.
+  *
+  * Cached sessions are shared between requests, so the session values should be immutable.
+  */
+final class VerifiedSessionCache[T](val maxSize: Int) {
+  require(maxSize > 0, "The maximum size of the verified session cache must be positive!")
+
+  private final class Entry(val token: String, val result: DecodeResult[T]) {
+    @volatile var referenced: Boolean = false
+  }
+
+  private val entries = new ConcurrentHashMap[String, Entry]()
+  private val clock = new AtomicReferenceArray[Entry](maxSize)
+  private val hand = new AtomicInteger()
+
+  private val hitCount = new LongAdder()
+  private val missCount = new LongAdder()
+
+  /**
+    * The cached result is returned even if the session has expired, so that it doesn't need to be decoded again
+    * just to find that out, but the entry is removed.
+    */
+  def get(token: String, nowMillis: Long): Option[DecodeResult[T]] = {
+    val entry = entries.get(token)
+    if (entry == null) {
+      missCount.increment()
+      None
+    } else {
+      if (isExpired(entry.result, nowMillis)) entries.remove(token, entry)
+      else if (!entry.referenced) entry.referenced = true
+
+      hitCount.increment()
+      Some(entry.result)
+    }
+  }
+
+  /**
+    * Only results with a matching signature, which haven't expired yet, are cached.
+    */
+  def put(token: String, result: DecodeResult[T], nowMillis: Long): Unit = {
+    if (result.signatureMatches && !isExpired(result, nowMillis)) {
+      val entry = new Entry(token, result)
+      if (entries.putIfAbsent(token, entry) == null) {
+        var placed = false
+        while (!placed) {
+          val i = Math.floorMod(hand.getAndIncrement(), maxSize)
+          val current = clock.get(i)
+          if (current != null && current.referenced) {
+            current.referenced = false
+          } else if (clock.compareAndSet(i, current, entry)) {
+            if (current != null) entries.remove(current.token, current)
+            placed = true
+          }
+        }
+      }
+    }
+  }
+
+  private def isExpired(result: DecodeResult[T], nowMillis: Long) = result.expires.exists(nowMillis > _)
+
+  def hits: Long = hitCount.sum()
+  def misses: Long = missCount.sum()
+  def size: Int = entries.size()
+}
@@ -0,0 +1,55 @@
+package com.softwaremill.pekkohttpsession
+
+import java.nio.charset.StandardCharsets.UTF_8
+import java.util.Base64
+
+import org.scalacheck.{Gen, Prop, Properties}
+
+object CodecTest extends Properties("Codec") {
+
+  import Prop._
+
+  property("hex round trip") = forAll { (bytes: Array[Byte]) =>
+    val hex = SessionUtil.toHexString(bytes)
+    Codec.parseHex(hex, 0, hex.length).sameElements(bytes) && hex == hex.toUpperCase
+  }
+
+  property("parse hex from the middle of a string") = forAll { (bytes: Array[Byte], prefix: String) =>
+    val s = s"$prefix${SessionUtil.toHexString(bytes)}-"
+    Codec.parseHex(s, prefix.length, s.length - 1).sameElements(bytes)
+  }
+
+  property("base64url matches the JDK encoder") = forAll { (bytes: Array[Byte]) =>
+    SessionUtil.toBase64Url(bytes) == Base64.getUrlEncoder.withoutPadding().encodeToString(bytes)
+  }
+
+  property("base64url written as ASCII bytes matches the JDK encoder") = forAll { (bytes: Array[Byte], prefix: Byte) =>
+    val dest = new Array[Byte](1 + Codec.base64UrlLength(bytes.length))
+    dest(0) = prefix
+    Codec.writeBase64Url(bytes, dest, 1) == dest.length &&
+    dest.sameElements(prefix +: Base64.getUrlEncoder.withoutPadding().encode(bytes))
+  }
+
+  property("base64url round trip") = forAll { (bytes: Array[Byte]) =>
+    SessionUtil.parseBase64Url(SessionUtil.toBase64Url(bytes)).sameElements(bytes)
+  }
+
+  val invalidGen = Gen.oneOf("0", "0G=", "zz!", "=", "A", "AB=", "a+b/", "AG", "ABC")
+
+  property("reject invalid hex and base64url") = forAll(invalidGen) { (s: String) =>
+    Prop.throws(classOf[IllegalArgumentException])(Codec.parseHex(s, 0, s.length)) &&
+    Prop.throws(classOf[IllegalArgumentException])(Codec.parseBase64Url(s, 0, s.length))
+  }
+
+  property("decimal round trip") = forAll(Gen.choose(0L, Long.MaxValue)) { (value: Long) =>
+    val chars = new Array[Char](Codec.decimalLength(value))
+    Codec.writeDecimal(value, chars, 0)
+    val bytes = new String(chars).getBytes(UTF_8)
+    new String(chars) == value.toString && Codec.parseDecimal(bytes, 0, bytes.length) == value
+  }
+
+  property("encode UTF-8 like String.getBytes") = forAll { (s: String) =>
+    Codec.encodeUtf8(s, 0, s.length).sameElements(s.getBytes(UTF_8)) &&
+    Codec.encodeUtf8(s.toCharArray, 0, s.length).sameElements(s.getBytes(UTF_8))
+  }
+}
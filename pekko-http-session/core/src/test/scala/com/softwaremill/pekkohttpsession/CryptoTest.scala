@@ -0,0 +1,61 @@
+package com.softwaremill.pekkohttpsession
+
+import java.security.{KeyPairGenerator, Signature}
+
+import org.scalacheck.{Gen, Prop, Properties}
+
+object CryptoTest extends Properties("Crypto") {
+
+  import Prop._
+
+  val secretGen = Gen.choose(64, 256).flatMap(size => Gen.listOfN(size, Gen.alphaNumChar).map(_.mkString))
+
+  property("keyed HMAC SHA1 matches one-off HMAC SHA1") = forAllNoShrink(secretGen) { (secret: String) =>
+    val mac = KeyedMac.hmacSHA1(secret)
+    forAll { (message: String) =>
+      Crypto.sign_HmacSHA1_hex(message, mac) == Crypto.sign_HmacSHA1_hex(message, secret)
+    }
+  }
+
+  property("keyed HMAC SHA256 matches one-off HMAC SHA256") = forAllNoShrink(secretGen) { (secret: String) =>
+    val mac = KeyedMac.hmacSHA256(secret)
+    forAll { (message: String) =>
+      Crypto.sign_HmacSHA256_base64_v0_5_2(message, mac) == Crypto.sign_HmacSHA256_base64_v0_5_2(message, secret)
+    }
+  }
+
+  val rsaKeyPair = {
+    val keyPairGen = KeyPairGenerator.getInstance("RSA")
+    keyPairGen.initialize(2048)
+    keyPairGen.generateKeyPair()
+  }
+  val rsaSigner = KeyedSignature.forSigning("SHA256withRSA", rsaKeyPair.getPrivate)
+  val rsaVerifier = KeyedSignature.forVerification("SHA256withRSA", rsaKeyPair.getPublic)
+
+  property("keyed RSA signature matches one-off RSA signature") = forAll { (message: Array[Byte]) =>
+    val signature = Signature.getInstance("SHA256withRSA")
+    signature.initSign(rsaKeyPair.getPrivate)
+    signature.update(message)
+    rsaSigner.sign(message).sameElements(signature.sign()) && rsaVerifier.verify(message, rsaSigner.sign(message))
+  }
+
+  property("keyed RSA verification rejects other and malformed signatures") = forAll {
+    (message: Array[Byte], other: Array[Byte]) =>
+      val signature = rsaSigner.sign(message)
+      (!message.sameElements(other)) ==> (
+        !rsaVerifier.verify(other, signature) &&
+        !rsaVerifier.verify(message, signature.take(signature.length / 2)) &&
+        rsaVerifier.verify(message, signature)
+      )
+  }
+
+  property("random strings have the requested length and use base32 digits") = forAll(Gen.choose(0, 200)) {
+    (length: Int) =>
+      val s = SessionUtil.randomString(length)
+      s.length == length && s.forall(c => (c >= '0' && c <= '9') || (c >= 'a' && c <= 'v'))
+  }
+
+  property("random strings are distinct") = forAllNoShrink(Gen.choose(16, 64)) { (length: Int) =>
+    List.fill(1000)(SessionUtil.randomString(length)).distinct.size == 1000
+  }
+}
@@ -0,0 +1,40 @@
+package com.softwaremill.pekkohttpsession
+
+import org.scalacheck.{Gen, Prop, Properties}
+
+object JwtIdGeneratorTest extends Properties("JwtIdGenerator") {
+
+  import Prop._
+
+  val Digits = "0123456789ABCDEFGHJKMNPQRSTVWXYZ"
+
+  def timestamp(ulid: String): Long = ulid.take(10).foldLeft(0L)((acc, c) => acc * 32 + Digits.indexOf(c.toInt))
+
+  val millisGen = Gen.choose(0L, (1L << 48) - 1)
+
+  // the generator's state is per-thread, and a new thread always starts with a fresh timestamp
+  def onNewThread[T](f: => T): T = {
+    var result: Option[T] = None
+    val thread = new Thread(() => result = Some(f))
+    thread.start()
+    thread.join()
+    result.get
+  }
+
+  property("ULIDs have 26 Crockford base32 chars and encode the timestamp") = forAll(millisGen) { (millis: Long) =>
+    val ulid = onNewThread(JwtIdGenerator.Ulid.generate(millis))
+    ulid.length == 26 && ulid.forall(Digits.contains(_)) && timestamp(ulid) == millis
+  }
+
+  property("ULIDs are ordered and distinct, also within the same millisecond") = forAllNoShrink(
+    Gen.listOf(Gen.choose(0L, 3L))) { (steps: List[Long]) =>
+    val ids = onNewThread(steps.scanLeft(System.currentTimeMillis())(_ + _).map(JwtIdGenerator.Ulid.generate))
+    ids == ids.sorted && ids.distinct == ids
+  }
+
+  property("ULIDs remain ordered when the clock goes back") = forAll(Gen.choose(1L, 1000L)) { (back: Long) =>
+    val now = System.currentTimeMillis()
+    val (first, second) = onNewThread((JwtIdGenerator.Ulid.generate(now), JwtIdGenerator.Ulid.generate(now - back)))
+    first < second && timestamp(second) == now
+  }
+}
@@ -0,0 +1,55 @@
+package com.softwaremill.pekkohttpsession
+
+import java.net.{URLDecoder, URLEncoder}
+
+import org.scalacheck.{Gen, Prop, Properties}
+
+import scala.util.{Success, Try}
+
+object MultiValueSessionSerializerTest extends Properties("MultiValueSessionSerializer") {
+
+  import Prop._
+  import SessionSerializer._
+
+  val serializer = new MultiValueSessionSerializer[Map[String, String]](identity, Try(_))
+
+  // the previous implementation, using URLEncoder and URLDecoder
+  def referenceSerialize(m: Map[String, String]): String =
+    m.map { case (k, v) => URLEncoder.encode(k, "UTF-8") + "~" + URLEncoder.encode(v, "UTF-8") }.mkString("&")
+
+  val unicodeString: Gen[String] = Gen
+    .listOf(Gen.oneOf(Gen.alphaNumChar, Gen.oneOf("~&=+% ._-*/\n"), Gen.choose(Char.MinValue, Char.MaxValue)))
+    .map(_.mkString)
+
+  property("url-encode as URLEncoder") = forAll(unicodeString) { (s: String) =>
+    urlEncode(s) == URLEncoder.encode(s, "UTF-8")
+  }
+
+  property("url-decode as URLDecoder") = forAll(unicodeString) { (s: String) =>
+    val encoded = URLEncoder.encode(s, "UTF-8")
+    urlDecode(encoded) == URLDecoder.decode(encoded, "UTF-8")
+  }
+
+  property("serialize as previously") = forAll(Gen.mapOf(Gen.zip(unicodeString, unicodeString))) {
+    (m: Map[String, String]) =>
+      serializer.serialize(m) == referenceSerialize(m)
+  }
+
+  property("serialize+deserialize") = forAll { (m: Map[String, String]) =>
+    serializer.deserialize(serializer.serialize(m)) == Success(m)
+  }
+
+  property("deserialize the legacy format") = forAll { (m: Map[String, String]) =>
+    val legacy = new Legacy.MultiValueSessionSerializerV0_5_2[Map[String, String]](identity, Try(_))
+    serializer.deserializeV0_5_2(legacy.serialize(m)) == Success(m)
+  }
+
+  property("ignore trailing separators") = {
+    serializer.deserialize("") == Success(Map.empty) &&
+    serializer.deserialize("a~1&b~2&&") == Success(Map("a" -> "1", "b" -> "2"))
+  }
+
+  property("not deserialize malformed values") = {
+    List("a", "a~1&&b~2", "&a~1", "a~1&b", "a%zz~1", "a~%4", "a=1").forall(serializer.deserialize(_).isFailure)
+  }
+}
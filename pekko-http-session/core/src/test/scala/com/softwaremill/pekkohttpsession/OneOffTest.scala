@@ -169,6 +169,38 @@ class OneOffTest extends AnyFlatSpec with ScalatestRouteTest with Matchers with
       }
     }
 
+    p should "touch the session only when less than the re-issue threshold of its max age remains" in {
+      Get("/set") ~> routes(manager_expires60_fixedTime) ~> check {
+        val Some(s1) = usingValue.getSession
+
+        // 50 seconds remaining, more than half of the max age: the session isn't sent again
+        Get("/touchReq") ~>
+          addHeader(usingValue.setSessionHeader(s1)) ~>
+          routes(manager_expires60_reissueHalf_fixedTime_plus10s) ~>
+          check {
+            responseAs[String] should be("Map(k1 -> v1)")
+            usingValue.getSession should be(None)
+          }
+
+        // 20 seconds remaining: the session is touched
+        Get("/touchReq") ~>
+          addHeader(usingValue.setSessionHeader(s1)) ~>
+          routes(manager_expires60_reissueHalf_fixedTime_plus40s) ~>
+          check {
+            responseAs[String] should be("Map(k1 -> v1)")
+
+            val Some(s2) = usingValue.getSession
+            s1 should not be (s2)
+
+            Get("/touchReq") ~> addHeader(usingValue.setSessionHeader(s2)) ~>
+              routes(manager_expires60_fixedTime_plus70s) ~>
+              check {
+                responseAs[String] should be("Map(k1 -> v1)")
+              }
+          }
+      }
+    }
+
     p should "reject v0.5.1 session without migration config" in {
       Get("/set") ~> routes ~> check {
         val data = Map("k1" -> "v1")
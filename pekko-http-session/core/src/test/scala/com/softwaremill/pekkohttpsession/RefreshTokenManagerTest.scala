@@ -0,0 +1,98 @@
+package com.softwaremill.pekkohttpsession
+
+import org.apache.pekko.util.ByteString
+import org.scalatest._
+import matchers.should._
+import org.scalatest.flatspec.AnyFlatSpec
+
+import scala.collection.mutable
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Future}
+
+class RefreshTokenManagerTest extends AnyFlatSpec with Matchers {
+
+  import TestData._
+
+  def await[R](f: Future[R]): R = Await.result(f, 5.seconds)
+
+  class HexRefreshTokenStorage extends RefreshTokenStorage[Map[String, String]] {
+    val stored = mutable.Map[String, (Map[String, String], String, Long)]()
+
+    override def lookup(selector: String) = Future.successful {
+      stored.get(selector).map {
+        case (session, tokenHash, expires) => RefreshTokenLookupResult(tokenHash, expires, () => session)
+      }
+    }
+    override def store(data: RefreshTokenData[Map[String, String]]) =
+      Future.successful(stored.put(data.selector, (data.forSession, data.tokenHash, data.expires))).map(_ => ())
+    override def remove(selector: String) = Future.successful(stored.remove(selector)).map(_ => ())
+    override def schedule[S](after: Duration)(op: => Future[S]) = ()
+  }
+
+  def tamper(value: String): String = value.dropRight(1) + (if (value.last == 'a') 'b' else 'a')
+
+  it should "work with a storage which stores the token hashes as 32 bytes" in {
+    val storedBytes = mutable.Map[String, (Map[String, String], ByteString, Long)]()
+    val storage = new HexRefreshTokenStorage {
+      override def lookup(selector: String) = Future.successful {
+        storedBytes.get(selector).map {
+          case (session, tokenHashBytes, expires) =>
+            RefreshTokenLookupResult(tokenHashBytes, expires, () => session)
+        }
+      }
+      override def store(data: RefreshTokenData[Map[String, String]]) =
+        Future.successful {
+          storedBytes.put(data.selector, (data.forSession, data.tokenHashBytes, data.expires))
+          ()
+        }
+    }
+    val refreshTokenManager = manager.createRefreshTokenManager(storage)
+
+    val value = await(refreshTokenManager.rotateToken(Map("k1" -> "v1"), None))
+
+    storedBytes.values.map(_._2.length) should be(List(32))
+    await(refreshTokenManager.sessionFromValue(value)) should be(SessionResult.CreatedFromToken(Map("k1" -> "v1")))
+    await(refreshTokenManager.sessionFromValue(tamper(value))) shouldBe a[SessionResult.Corrupt]
+  }
+
+  it should "compare token data with equal hashes as equal" in {
+    val hash = Crypto.hash_SHA256("token")
+    RefreshTokenData("session", "selector", hash, 1L) should be(RefreshTokenData("session", "selector", hash, 1L))
+    RefreshTokenData("session", "selector", hash, 1L) should be(
+      RefreshTokenData("session", "selector", hash.toUpperCase, 1L))
+    RefreshTokenData("session", "selector", hash, 1L).tokenHash should be(hash)
+  }
+
+  it should "work with a storage which stores hex-encoded token hashes" in {
+    val storage = new HexRefreshTokenStorage
+    val refreshTokenManager = manager.createRefreshTokenManager(storage)
+
+    val value = await(refreshTokenManager.rotateToken(Map("k1" -> "v1"), None))
+    val Some((_, token)) = refreshTokenManager.decodeSelectorAndToken(value)
+
+    storage.stored.values.map(_._2) should be(List(Crypto.hash_SHA256(token)))
+    await(refreshTokenManager.sessionFromValue(value)) should be(SessionResult.CreatedFromToken(Map("k1" -> "v1")))
+    await(refreshTokenManager.sessionFromValue(tamper(value))) shouldBe a[SessionResult.Corrupt]
+  }
+
+  it should "reject oversized tokens without looking them up" in {
+    val storage = new HexRefreshTokenStorage {
+      override def lookup(selector: String) = fail("Oversized tokens shouldn't be looked up")
+      override def remove(selector: String) = fail("Oversized tokens shouldn't be removed")
+    }
+    val refreshTokenManager =
+      new SessionManager[Map[String, String]](manager.config.copy(refreshTokenMaxTokenLength = Some(100)))
+        .createRefreshTokenManager(storage)
+    val oversized = "s" * 16 + ":" + "t" * 84
+
+    await(refreshTokenManager.sessionFromValue(oversized)) shouldBe a[SessionResult.Corrupt]
+    await(refreshTokenManager.removeToken(oversized))
+    await(refreshTokenManager.rotateToken(Map("k1" -> "v1"), Some(oversized)))
+    refreshTokenManager.oversizedTokens should be(3L)
+  }
+
+  it should "never match a token hash which isn't valid hex" in {
+    RefreshTokenLookupResult("not a hash", 0L, () => ()).tokenHashBytes shouldBe empty
+  }
+}
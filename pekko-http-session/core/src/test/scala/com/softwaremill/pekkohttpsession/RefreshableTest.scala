@@ -15,6 +15,8 @@ class RefreshableTest extends AnyFlatSpec with ScalatestRouteTest with Matchers
 
   implicit val storage: InMemoryRefreshTokenStorage[Map[String, String]] = new InMemoryRefreshTokenStorage[Map[String, String]] {
     override def log(msg: String) = println(msg)
+    // expired tokens are removed using the same clock as the tests' managers
+    override def nowMillis = manager_expires60_fixedTime.nowMillis
   }
 
   def createRoutes(`using`: TestUsingTransport)(implicit manager: SessionManager[Map[String, String]]) = get {
@@ -0,0 +1,136 @@
+package com.softwaremill.pekkohttpsession
+
+import org.scalacheck.{Gen, Prop, Properties}
+
+import scala.util.Success
+
+object SessionManagerBinaryEncoderTest extends Properties("SessionManagerBinaryEncoder") {
+
+  import Prop._
+
+  case class UserSession(userId: Long, name: String, roles: Set[String], attributes: Map[String, String])
+
+  implicit val userSessionSerializer: BinarySessionSerializer[UserSession] =
+    BinarySessionSerializer
+      .tuple4[Long, String, Set[String], Map[String, String]]
+      .xmap({ case (id, name, roles, attributes) => UserSession(id, name, roles, attributes) },
+            s => (s.userId, s.name, s.roles, s.attributes))
+
+  val userSessionGen: Gen[UserSession] = for {
+    id <- Gen.choose(Long.MinValue, Long.MaxValue)
+    name <- Gen.alphaStr
+    roles <- Gen.listOf(Gen.alphaStr)
+    attributes <- Gen.mapOf(Gen.zip(Gen.alphaStr, Gen.alphaStr))
+  } yield UserSession(id, name, roles.toSet, attributes)
+
+  val secretGen = Gen.choose(64, 256).flatMap(size => Gen.listOfN(size, Gen.alphaNumChar).map(_.mkString))
+
+  def roundTrip[T](t: T)(implicit s: BinarySessionSerializer[T]): Boolean = s.deserialize(s.serialize(t)) == Success(t)
+
+  property("serialize+deserialize primitives") = forAll {
+    (b: Boolean, i: Int, l: Long, d: Double, s: String, o: Option[String]) =>
+      // NaN isn't equal to itself
+      roundTrip(b) && roundTrip(i) && roundTrip(l) && (d.isNaN || roundTrip(d)) && roundTrip(s) && roundTrip(o)
+  }
+
+  property("serialize+deserialize collections") = forAll {
+    (l: List[Int], v: Vector[Long], s: Set[String], m: Map[String, List[Long]], t: (Int, String, Option[Long])) =>
+      roundTrip(l) && roundTrip(v) && roundTrip(s) && roundTrip(m) && roundTrip(t)
+  }
+
+  property("serializes small numbers to single bytes") = forAll(Gen.choose(-64, 63)) { (i: Int) =>
+    BinarySessionSerializer.int.serialize(i).length == 1 && BinarySessionSerializer.long.serialize(i.toLong).length == 1
+  }
+
+  property("doesn't deserialize truncated or extended data") = forAll(userSessionGen) { (session: UserSession) =>
+    val serialized = userSessionSerializer.serialize(session)
+
+    (0 until serialized.length).forall(n => userSessionSerializer.deserialize(serialized.take(n)).isFailure) &&
+    userSessionSerializer.deserialize(serialized :+ 0.toByte).isFailure
+  }
+
+  property("reads sessions without optional trailing fields") = forAll { (id: Long, email: Option[String]) =>
+    val v1 = BinarySessionSerializer.long
+    val v2 = BinarySessionSerializer.tuple2(v1, BinarySessionSerializer.optionalTrailing[String])
+
+    v2.deserialize(v1.serialize(id)) == Success((id, None)) &&
+    v2.deserialize(v2.serialize((id, email))) == Success((id, email))
+  }
+
+  val configGen: Gen[(Boolean, Boolean, Boolean, Boolean)] = for {
+    encrypt <- Gen.oneOf(true, false)
+    useMaxAgeSeconds <- Gen.oneOf(true, false)
+    useKeyRing <- Gen.oneOf(true, false)
+    compress <- Gen.oneOf(true, false)
+  } yield (encrypt, useMaxAgeSeconds, useKeyRing, compress)
+
+  property("encode+decode") = forAllNoShrink(secretGen, configGen) {
+    case (secret, (encrypt, useMaxAgeSeconds, useKeyRing, compress)) =>
+      forAll(userSessionGen) { (session: UserSession) =>
+        val config = SessionConfig
+          .default(secret)
+          .copy(sessionEncryptData = encrypt)
+          .copy(sessionMaxAgeSeconds = if (useMaxAgeSeconds) Some(3600L) else None)
+          .copy(keyRing = if (useKeyRing) Some(SessionKeyRing(SessionKey("k1", secret.reverse))) else None)
+          .copy(sessionCompression = if (compress) Some(SessionCompression(0, "admin")) else None)
+        val manager = new SessionManager[UserSession](config)(new BinarySessionEncoder[UserSession]).clientSessionManager
+
+        val encoded = manager.encode(session)
+        encoded.startsWith(if (useKeyRing) "2~k1." else "2~") &&
+        manager.decode(encoded) == SessionResult.Decoded(session)
+      }
+  }
+
+  property("binary tokens are shorter than compact ones and can't be tampered with") = forAllNoShrink(secretGen) {
+    (secret: String) =>
+      forAll { (encrypt: Boolean, id: Long, name: String, position: Int) =>
+        val config = SessionConfig
+          .default(secret)
+          .copy(sessionEncryptData = encrypt, sessionTokenFormat = SessionTokenFormat.Compact)
+        val encoder = new BinarySessionEncoder[UserSession]
+        val session = UserSession(id, name, Set("admin", "user"), Map("tenant" -> "acme"))
+        val now = System.currentTimeMillis()
+        val compact = new BasicSessionEncoder[Map[String, String]].encode(
+          Map("userId" -> id.toString, "name" -> name, "roles" -> "admin,user", "tenant" -> "acme"),
+          now,
+          config)
+
+        val enc = encoder.encode(session, now, config)
+        val i = 2 + math.abs(position % (enc.length - 2))
+        val tampered = enc.updated(i, if (enc(i) == 'A') 'B' else 'A')
+
+        enc.length < compact.length &&
+        encoder.decode(enc, config).map(_.t) == Success(session) &&
+        encoder.decode(tampered, config).isFailure
+      }
+  }
+
+  property("rejects expired sessions before verifying the signature") = forAllNoShrink(secretGen) { (secret: String) =>
+    forAll(userSessionGen, Gen.oneOf(true, false)) { (session: UserSession, encrypt: Boolean) =>
+      val config = SessionConfig.default(secret).copy(sessionEncryptData = encrypt, sessionMaxAgeSeconds = Some(20L))
+      val encoder = new BinarySessionEncoder[UserSession]
+      val now = 8172L * 1000L
+      val encoded = encoder.encode(session, now, config)
+      val otherKeyConfig = config.copy(serverSecret = secret.reverse)
+
+      encoder.decode(encoded, now + 600L * 1000L, otherKeyConfig).failed.toOption.exists(
+        _.isInstanceOf[ExpiredSessionException]) &&
+      encoder.decode(encoded, now + 1000L, config).map(_.t) == Success(session) &&
+      encoder.decode(encoded, now + 1000L, otherKeyConfig).isFailure
+    }
+  }
+
+  property("doesn't decode tokens without an expiry if one is required") = forAllNoShrink(secretGen) {
+    (secret: String) =>
+      forAll(userSessionGen) { (session: UserSession) =>
+        val config = SessionConfig.default(secret).copy(sessionMaxAgeSeconds = None)
+        val encoder = new BinarySessionEncoder[UserSession]
+
+        val enc = encoder.encode(session, System.currentTimeMillis(), config)
+
+        encoder.decode(enc, config).isSuccess &&
+        encoder.decode(enc, config.copy(sessionMaxAgeSeconds = Some(3600L))).isFailure &&
+        encoder.decode("1" + enc.substring(1), config).isFailure
+      }
+  }
+}
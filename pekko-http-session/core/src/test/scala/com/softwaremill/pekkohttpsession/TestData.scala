@@ -18,6 +18,16 @@ object TestData {
     override def nowMillis = (3028L + 70L) * 1000L
   }
 
+  val sessionConfig_expires60_reissueHalf = sessionConfig_expires60.copy(sessionTouchReissueThreshold = Some(0.5))
+  val manager_expires60_reissueHalf_fixedTime_plus10s =
+    new SessionManager[Map[String, String]](sessionConfig_expires60_reissueHalf) {
+      override def nowMillis = (3028L + 10L) * 1000L
+    }
+  val manager_expires60_reissueHalf_fixedTime_plus40s =
+    new SessionManager[Map[String, String]](sessionConfig_expires60_reissueHalf) {
+      override def nowMillis = (3028L + 40L) * 1000L
+    }
+
   val sessionConfig_tokenMigrationFromV0_5_1 =
     sessionConfig.copy(tokenMigrationV0_5_2Enabled = true, tokenMigrationV0_5_3Enabled = true)
   val manager_tokenMigrationFromV0_5_1 = new SessionManager[Map[String, String]](sessionConfig_tokenMigrationFromV0_5_1)
@@ -0,0 +1,61 @@
+package com.softwaremill.pekkohttpsession
+
+import org.scalatest.flatspec.AnyFlatSpec
+import org.scalatest.matchers.should.Matchers
+
+class VerifiedSessionCacheTest extends AnyFlatSpec with Matchers {
+
+  def result(session: String, expires: Option[Long] = None, signatureMatches: Boolean = true) =
+    DecodeResult(session, expires, signatureMatches, isLegacy = false)
+
+  it should "return cached results and count hits and misses" in {
+    val cache = new VerifiedSessionCache[String](10)
+
+    cache.get("t1", 0L) should be(None)
+    cache.put("t1", result("s1"), 0L)
+    cache.get("t1", 0L) should be(Some(result("s1")))
+    cache.get("t2", 0L) should be(None)
+
+    cache.hits should be(1L)
+    cache.misses should be(2L)
+  }
+
+  it should "not cache results with a corrupt signature or which already expired" in {
+    val cache = new VerifiedSessionCache[String](10)
+
+    cache.put("t1", result("s1", signatureMatches = false), 0L)
+    cache.put("t2", result("s2", expires = Some(100L)), 200L)
+
+    cache.size should be(0)
+  }
+
+  it should "return an expired result once, and then forget it" in {
+    val cache = new VerifiedSessionCache[String](10)
+
+    cache.put("t1", result("s1", expires = Some(100L)), 50L)
+    cache.get("t1", 50L) should be(Some(result("s1", expires = Some(100L))))
+    cache.get("t1", 150L) should be(Some(result("s1", expires = Some(100L))))
+    cache.get("t1", 150L) should be(None)
+  }
+
+  it should "not grow beyond the maximum size, evicting entries which haven't been read" in {
+    val cache = new VerifiedSessionCache[String](10)
+
+    (1 to 10).foreach(i => cache.put(s"t$i", result(s"s$i"), 0L))
+    cache.get("t1", 0L) should be(Some(result("s1")))
+    (11 to 100).foreach(i => cache.put(s"t$i", result(s"s$i"), 0L))
+
+    cache.size should be(10)
+    cache.get("t100", 0L) should be(Some(result("s100")))
+  }
+
+  it should "keep frequently read entries" in {
+    val cache = new VerifiedSessionCache[String](10)
+
+    cache.put("hot", result("hot"), 0L)
+    (1 to 100).foreach { i =>
+      cache.get("hot", 0L) should be(Some(result("hot")))
+      cache.put(s"t$i", result(s"s$i"), 0L)
+    }
+  }
+}
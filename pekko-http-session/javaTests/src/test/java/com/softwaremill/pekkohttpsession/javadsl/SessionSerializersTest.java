@@ -0,0 +1,201 @@
+package com.softwaremill.pekkohttpsession.javadsl;
+
+import com.softwaremill.pekkohttpsession.SessionSerializer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Date;
+
+public class SessionSerializersTest {
+
+    public enum Role {
+        USER, ADMIN
+    }
+
+    public static class UserSession {
+        private String name;
+        private int id;
+        private long createdAt;
+        private boolean admin;
+        private Double score;
+        private Role role;
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public void setId(int id) {
+            this.id = id;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        public void setCreatedAt(long createdAt) {
+            this.createdAt = createdAt;
+        }
+
+        public boolean isAdmin() {
+            return admin;
+        }
+
+        public void setAdmin(boolean admin) {
+            this.admin = admin;
+        }
+
+        public Double getScore() {
+            return score;
+        }
+
+        public void setScore(Double score) {
+            this.score = score;
+        }
+
+        public Role getRole() {
+            return role;
+        }
+
+        public void setRole(Role role) {
+            this.role = role;
+        }
+    }
+
+    static class PackagePrivateSession {
+        private String name;
+
+        public PackagePrivateSession() {
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+    }
+
+    public static class ReadOnlySession {
+        public String getName() {
+            return "john";
+        }
+    }
+
+    public static class DateSession {
+        private Date date;
+
+        public Date getDate() {
+            return date;
+        }
+
+        public void setDate(Date date) {
+            this.date = date;
+        }
+    }
+
+    private static final SessionSerializer<UserSession, String> SERIALIZER = SessionSerializers.generate(UserSession.class);
+
+    private static UserSession session() {
+        UserSession session = new UserSession();
+        session.setName("john & jane");
+        session.setId(42);
+        session.setCreatedAt(1234567890123L);
+        session.setAdmin(true);
+        session.setScore(0.5);
+        session.setRole(Role.ADMIN);
+        return session;
+    }
+
+    private static void assertSameSession(UserSession expected, UserSession actual) {
+        Assert.assertEquals(expected.getName(), actual.getName());
+        Assert.assertEquals(expected.getId(), actual.getId());
+        Assert.assertEquals(expected.getCreatedAt(), actual.getCreatedAt());
+        Assert.assertEquals(expected.isAdmin(), actual.isAdmin());
+        Assert.assertEquals(expected.getScore(), actual.getScore());
+        Assert.assertEquals(expected.getRole(), actual.getRole());
+    }
+
+    @Test
+    public void shouldSerializeAndDeserializeBeans() {
+        // given
+        UserSession session = session();
+
+        // when
+        String serialized = SERIALIZER.serialize(session);
+
+        // then
+        assertSameSession(session, SERIALIZER.deserialize(serialized).get());
+    }
+
+    @Test
+    public void shouldStoreEachPropertyAsASeparateValue() {
+        // when
+        String serialized = SERIALIZER.serialize(session());
+
+        // then
+        Assert.assertTrue(serialized.contains("id~42"));
+        Assert.assertTrue(serialized.contains("admin~true"));
+        Assert.assertTrue(serialized.contains("role~ADMIN"));
+    }
+
+    @Test
+    public void shouldOmitNullProperties() {
+        // given
+        UserSession session = session();
+        session.setScore(null);
+        session.setRole(null);
+
+        // when
+        String serialized = SERIALIZER.serialize(session);
+
+        // then
+        Assert.assertFalse(serialized.contains("score"));
+        Assert.assertFalse(serialized.contains("role"));
+        assertSameSession(session, SERIALIZER.deserialize(serialized).get());
+    }
+
+    @Test
+    public void shouldNotDeserializeInvalidValues() {
+        // given
+        String serialized = SERIALIZER.serialize(session());
+
+        // then
+        Assert.assertTrue(SERIALIZER.deserialize(serialized.replace("id~42", "id~x")).isFailure());
+        Assert.assertTrue(SERIALIZER.deserialize(serialized.replace("role~ADMIN", "role~ROOT")).isFailure());
+    }
+
+    @Test
+    public void shouldSerializeNonPublicBeansUsingTheGivenLookup() {
+        // given
+        SessionSerializer<PackagePrivateSession, String> serializer =
+            SessionSerializers.generate(PackagePrivateSession.class, MethodHandles.lookup());
+        PackagePrivateSession session = new PackagePrivateSession();
+        session.setName("john");
+
+        // when
+        String serialized = serializer.serialize(session);
+
+        // then
+        Assert.assertEquals("john", serializer.deserialize(serialized).get().getName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectBeansWithoutSetters() {
+        SessionSerializers.generate(ReadOnlySession.class);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnsupportedPropertyTypes() {
+        SessionSerializers.generate(DateSession.class);
+    }
+}
@@ -0,0 +1,70 @@
+package com.softwaremill.pekkohttpsession
+
+import org.json4s.{JField, JObject, JValue}
+
+import scala.compiletime.{constValue, erasedValue, summonInline}
+import scala.deriving.Mirror
+import scala.util.Try
+
+trait JValueSessionSerializerDerivation {
+
+  /**
+    * Creates a serializer of the case class `T` to a `JObject`, which accesses and constructs the case class directly,
+    * without reflection or json4s `Formats`. Each field is serialized using a given [[JValueSessionSerializer]];
+    * nested case classes need a derived serializer of their own. Used by `derives JValueSessionSerializer`.
+    */
+  inline def derived[T](using m: Mirror.ProductOf[T]): JValueSessionSerializer[T] =
+    new DerivedJValueSessionSerializer[T](
+      JValueSessionSerializerDerivation.labels[m.MirroredElemLabels].toArray,
+      JValueSessionSerializerDerivation.serializers[m.MirroredElemTypes].toArray,
+      m
+    )
+}
+
+object JValueSessionSerializerDerivation {
+  inline def labels[Labels <: Tuple]: List[String] = inline erasedValue[Labels] match {
+    case _: EmptyTuple     => Nil
+    case _: (label *: tail) => constValue[label].asInstanceOf[String] :: labels[tail]
+  }
+
+  inline def serializers[Types <: Tuple]: List[JValueSessionSerializer[Any]] = inline erasedValue[Types] match {
+    case _: EmptyTuple =>
+      Nil
+    case _: (t *: tail) =>
+      summonInline[JValueSessionSerializer[t]].asInstanceOf[JValueSessionSerializer[Any]] :: serializers[tail]
+  }
+}
+
+/**
+  * Created by [[JValueSessionSerializerDerivation.derived]]: the fields are read using `productElement`, and the case
+  * class is created using its `Mirror`.
+  */
+final class DerivedJValueSessionSerializer[T](
+    names: Array[String],
+    serializers: Array[JValueSessionSerializer[Any]],
+    mirror: Mirror.ProductOf[T]
+) extends JValueSessionSerializer[T] {
+  import JValueSessionSerializer.DerivedFields
+
+  override def serialize(t: T): JValue = {
+    val product = t.asInstanceOf[Product]
+    var fields = List.empty[JField]
+    var i = names.length - 1
+    while (i >= 0) {
+      fields = DerivedFields.write(names(i), serializers(i).serialize(product.productElement(i)), fields)
+      i -= 1
+    }
+    JObject(fields)
+  }
+
+  override def deserialize(r: JValue): Try[T] =
+    DerivedFields.readObject(r) { fields =>
+      val values = new Array[Any](names.length)
+      var i = 0
+      while (i < names.length) {
+        values(i) = DerivedFields.read(fields, names(i), serializers(i))
+        i += 1
+      }
+      mirror.fromProduct(Tuple.fromArray(values))
+    }
+}
@@ -0,0 +1,203 @@
+package com.softwaremill.pekkohttpsession
+
+import java.nio.charset.StandardCharsets.UTF_8
+
+import org.json4s._
+
+/**
+  * Writes compact JSON directly into a growable byte buffer, producing the same output as json4s'
+  * `compact(render(...))` (with the default formats), but without creating intermediate strings or documents.
+  */
+private[pekkohttpsession] final class JsonByteWriter(initialSize: Int = 256) {
+  private var buffer = new Array[Byte](initialSize)
+  private var length = 0
+  // whether a comma has to be written before the next field or array item
+  private var needsComma = false
+
+  def toByteArray: Array[Byte] = java.util.Arrays.copyOf(buffer, length)
+
+  private def ensureCapacity(extra: Int): Unit =
+    if (length + extra > buffer.length) {
+      buffer = java.util.Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra))
+    }
+
+  private def writeByte(b: Int): Unit = {
+    ensureCapacity(1)
+    buffer(length) = b.toByte
+    length += 1
+  }
+
+  private def writeAscii(s: String): Unit = {
+    ensureCapacity(s.length)
+    var i = 0
+    while (i < s.length) {
+      buffer(length) = s.charAt(i).toByte
+      length += 1
+      i += 1
+    }
+  }
+
+  private def separate(): Unit = {
+    if (needsComma) writeByte(',')
+    needsComma = true
+  }
+
+  def startObject(): JsonByteWriter = {
+    writeByte('{')
+    needsComma = false
+    this
+  }
+
+  def endObject(): JsonByteWriter = {
+    writeByte('}')
+    needsComma = true
+    this
+  }
+
+  def startArray(): JsonByteWriter = {
+    writeByte('[')
+    needsComma = false
+    this
+  }
+
+  def endArray(): JsonByteWriter = {
+    writeByte(']')
+    needsComma = true
+    this
+  }
+
+  def fieldName(name: String): JsonByteWriter = {
+    separate()
+    writeQuoted(name)
+    writeByte(':')
+    needsComma = false
+    this
+  }
+
+  def stringField(name: String, value: String): JsonByteWriter = fieldName(name).string(value)
+
+  def stringField(name: String, value: Option[String]): JsonByteWriter = {
+    value.foreach(stringField(name, _))
+    this
+  }
+
+  def longField(name: String, value: Option[Long]): JsonByteWriter = {
+    value.foreach(fieldName(name).long(_))
+    this
+  }
+
+  /**
+    * Writes already encoded fields (`"name":value` pairs, separated by commas), as returned by `toByteArray` of a writer
+    * on which only fields have been written.
+    */
+  def encodedFields(fields: Array[Byte]): JsonByteWriter = {
+    if (fields.nonEmpty) {
+      separate()
+      ensureCapacity(fields.length)
+      System.arraycopy(fields, 0, buffer, length, fields.length)
+      length += fields.length
+    }
+    this
+  }
+
+  def string(value: String): JsonByteWriter = {
+    separate()
+    writeQuoted(value)
+    this
+  }
+
+  def long(value: Long): JsonByteWriter = {
+    separate()
+    writeAscii(java.lang.Long.toString(value))
+    this
+  }
+
+  private def raw(value: String): JsonByteWriter = {
+    separate()
+    writeAscii(value)
+    this
+  }
+
+  /**
+    * Writes the value as json4s renders it: `JNothing` values, fields and array items are skipped.
+    */
+  def value(jv: JValue): JsonByteWriter = jv match {
+    case JString(s)  => string(s)
+    case JInt(i)     => raw(i.toString)
+    case JLong(l)    => long(l)
+    case JDouble(d)  => raw(java.lang.Double.toString(d))
+    case JDecimal(d) => raw(d.bigDecimal.toString)
+    case JBool(b)    => raw(if (b) "true" else "false")
+    case JNull       => raw("null")
+    case JNothing    => this
+    case JObject(fields) =>
+      separate()
+      startObject()
+      fields.foreach {
+        case (_, JNothing) =>
+        case (name, v)     => fieldName(name).value(v)
+      }
+      endObject()
+    case JArray(items) => array(items)
+    case JSet(items)   => array(items.toList)
+  }
+
+  private def array(items: List[JValue]): JsonByteWriter = {
+    separate()
+    startArray()
+    items.foreach {
+      case JNothing =>
+      case v        => value(v)
+    }
+    endArray()
+  }
+
+  /**
+    * Writes the string in quotes, escaping quotes, backslashes and control characters like Jackson does. Other
+    * characters are written as UTF-8.
+    */
+  private def writeQuoted(s: String): Unit = {
+    ensureCapacity(s.length + 2)
+    buffer(length) = '"'
+    length += 1
+    var i = 0
+    while (i < s.length) {
+      val c = s.charAt(i)
+      if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+        ensureCapacity(1)
+        buffer(length) = c.toByte
+        length += 1
+        i += 1
+      } else if (c < 0x80) {
+        c match {
+          case '"'  => writeAscii("\\\"")
+          case '\\' => writeAscii("\\\\")
+          case '\b' => writeAscii("\\b")
+          case '\t' => writeAscii("\\t")
+          case '\n' => writeAscii("\\n")
+          case '\f' => writeAscii("\\f")
+          case '\r' => writeAscii("\\r")
+          case _ =>
+            writeAscii("\\u00")
+            writeByte(JsonByteWriter.HexDigits(c >> 4))
+            writeByte(JsonByteWriter.HexDigits(c & 0x0F))
+        }
+        i += 1
+      } else {
+        // non-ASCII: encode the run of chars up to the next ASCII one, which handles surrogate pairs as well
+        var j = i + 1
+        while (j < s.length && s.charAt(j) >= 0x80) j += 1
+        val bytes = s.substring(i, j).getBytes(UTF_8)
+        ensureCapacity(bytes.length)
+        System.arraycopy(bytes, 0, buffer, length, bytes.length)
+        length += bytes.length
+        i = j
+      }
+    }
+    writeByte('"')
+  }
+}
+
+private[pekkohttpsession] object JsonByteWriter {
+  private val HexDigits = "0123456789ABCDEF".toCharArray
+}
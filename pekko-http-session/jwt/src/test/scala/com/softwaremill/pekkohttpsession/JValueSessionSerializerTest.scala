@@ -0,0 +1,76 @@
+package com.softwaremill.pekkohttpsession
+
+import org.json4s._
+import org.scalatest.flatspec.AnyFlatSpec
+import org.scalatest.matchers.should.Matchers
+
+import scala.util.Success
+
+class JValueSessionSerializerTest extends AnyFlatSpec with Matchers {
+  import JValueSessionSerializerTest._
+
+  val session = UserSession("john",
+                            42,
+                            1234567890123L,
+                            0.5,
+                            admin = true,
+                            Some("john@example.com"),
+                            List("admin", "user"),
+                            Map("tenant" -> 7L),
+                            Address("Warsaw", None))
+
+  it should "serialize a case class as json4s reflection does" in {
+    derivedSerializer.serialize(session) should be(JValueSessionSerializer.caseClass[UserSession].serialize(session))
+    derivedSerializer.serialize(session.copy(email = None)) should be(
+      JValueSessionSerializer.caseClass[UserSession].serialize(session.copy(email = None)))
+  }
+
+  it should "deserialize what json4s reflection serializes" in {
+    val serialized = JValueSessionSerializer.caseClass[UserSession].serialize(session)
+
+    derivedSerializer.deserialize(serialized) should be(Success(session))
+  }
+
+  it should "omit undefined optional fields" in {
+    val serialized = derivedSerializer.serialize(session.copy(email = None))
+
+    serialized \ "email" should be(JNothing)
+    derivedSerializer.deserialize(serialized) should be(Success(session.copy(email = None)))
+  }
+
+  it should "not deserialize objects with missing or invalid fields" in {
+    val JObject(fields) = derivedSerializer.serialize(session)
+
+    derivedSerializer.deserialize(JObject(fields.filterNot(_._1 == "id"))).isFailure should be(true)
+    derivedSerializer.deserialize(JObject(fields.map {
+      case ("admin", _) => "admin" -> JString("yes")
+      case field        => field
+    })).isFailure should be(true)
+    derivedSerializer.deserialize(JString("john")).isFailure should be(true)
+  }
+
+  it should "encode and decode JWTs using a derived serializer" in {
+    val config = SessionConfig.default("1234567890123456789012345678901234567890123456789012345678901234567890")
+    val encoder = new JwtSessionEncoder[UserSession]()(derivedSerializer, DefaultFormats)
+
+    encoder.decode(encoder.encode(session, System.currentTimeMillis(), config), config).map(_.t) should be(
+      Success(session))
+  }
+}
+
+object JValueSessionSerializerTest {
+  case class Address(city: String, zipCode: Option[String])
+
+  case class UserSession(name: String,
+                         id: Int,
+                         createdAt: Long,
+                         score: Double,
+                         admin: Boolean,
+                         email: Option[String],
+                         roles: List[String],
+                         limits: Map[String, Long],
+                         address: Address)
+
+  implicit val addressSerializer: JValueSessionSerializer[Address] = JValueSessionSerializer.derived[Address]
+  val derivedSerializer: JValueSessionSerializer[UserSession] = JValueSessionSerializer.derived[UserSession]
+}
@@ -1,7 +1,9 @@
 package com.softwaremill.pekkohttpsession
 
+import java.security.spec.ECGenParameterSpec
 import java.security.{KeyPairGenerator, PrivateKey}
 import java.util.Base64
+import java.util.zip.Inflater
 import com.softwaremill.pekkohttpsession.JwsAlgorithm.HmacSHA256
 import com.softwaremill.pekkohttpsession.SessionConfig.{JwsConfig, JwtConfig}
 import org.json4s.JsonAST.{JObject, JString}
@@ -11,13 +13,17 @@ import org.scalatest._
 import matchers.should._
 import org.scalatest.flatspec.AnyFlatSpec
 
+import scala.annotation.nowarn
 import scala.concurrent.duration._
+import scala.util.{Success, Try}
 
 class SessionManagerJwtEncoderTest extends AnyFlatSpec with Matchers {
   val defaultConfig = SessionConfig.default("1234567890123456789012345678901234567890123456789012345678901234567890")
   val configMaxAge = defaultConfig.copy(jwt = defaultConfig.jwt.copy(expirationTimeout = Some(3600)))
   val configEncrypted = defaultConfig.copy(sessionEncryptData = true)
   val configEncryptedMaxAge = configMaxAge.copy(sessionEncryptData = true)
+  val configEncryptedAesGcm = configEncrypted.copy(sessionEncryption = SessionEncryption.AesGcm)
+  val configCompressed = defaultConfig.copy(sessionCompression = Some(SessionCompression(256, "admin,")))
 
   def rsaSigConfig() = {
     val privateKey: PrivateKey = {
@@ -29,6 +35,21 @@ class SessionManagerJwtEncoderTest extends AnyFlatSpec with Matchers {
 
     defaultConfig.copy(jws = JwsConfig(alg = JwsAlgorithm.Rsa(privateKey)))
   }
+  def ecdsaSigConfig() = {
+    val keyPairGen = KeyPairGenerator.getInstance("EC")
+    keyPairGen.initialize(new ECGenParameterSpec("secp256r1"))
+    val kp = keyPairGen.generateKeyPair()
+
+    defaultConfig.copy(jws = JwsConfig(alg = JwsAlgorithm.Ecdsa(kp.getPrivate, kp.getPublic)))
+  }
+
+  // Ed25519 is only available since Java 15
+  def edDsaSigConfig(): Option[SessionConfig] =
+    Try(KeyPairGenerator.getInstance("Ed25519")).toOption.map { keyPairGen =>
+      val kp = keyPairGen.generateKeyPair()
+      defaultConfig.copy(jws = JwsConfig(alg = JwsAlgorithm.EdDsa(kp.getPrivate, kp.getPublic)))
+    }
+
   val hmacSha256Config = defaultConfig.copy(jws = JwsConfig(alg = HmacSHA256(defaultConfig.serverSecret)))
 
   case class TestData[T](name: String, data: T, config: SessionConfig, sessionSerializer: SessionSerializer[T, JValue])
@@ -42,6 +63,10 @@ class SessionManagerJwtEncoderTest extends AnyFlatSpec with Matchers {
              "username",
              configEncryptedMaxAge,
              implicitly[SessionSerializer[String, JValue]]),
+    TestData("string, with AES-GCM encryption",
+             "username",
+             configEncryptedAesGcm,
+             implicitly[SessionSerializer[String, JValue]]),
     TestData("integer, default config", 12345, defaultConfig, implicitly[SessionSerializer[Int, JValue]]),
     TestData("case class, default config",
              SessionData("john", 10),
@@ -52,9 +77,22 @@ class SessionManagerJwtEncoderTest extends AnyFlatSpec with Matchers {
              configEncryptedMaxAge,
              JValueSessionSerializer.caseClass[SessionData]),
     TestData("string, RSA signature", "username", rsaSigConfig(), implicitly[SessionSerializer[String, JValue]]),
+    TestData("string, ECDSA signature", "username", ecdsaSigConfig(), implicitly[SessionSerializer[String, JValue]]),
+    TestData("case class, ECDSA signature and encryption",
+             SessionData("john", 20),
+             ecdsaSigConfig().copy(sessionEncryptData = true),
+             JValueSessionSerializer.caseClass[SessionData]),
     TestData("string, HMAC SHA256 signature",
              "username",
              hmacSha256Config,
+             implicitly[SessionSerializer[String, JValue]]),
+    TestData("string, with compression",
+             "admin," * 100,
+             configCompressed,
+             implicitly[SessionSerializer[String, JValue]]),
+    TestData("string, with compression and encryption",
+             "admin," * 100,
+             configCompressed.copy(sessionEncryptData = true),
              implicitly[SessionSerializer[String, JValue]])
   )
 
@@ -64,6 +102,8 @@ class SessionManagerJwtEncoderTest extends AnyFlatSpec with Matchers {
     }
   }
 
+  def tamper(encoded: String): String = encoded.dropRight(1) + (if (encoded.last == 'A') 'B' else 'A')
+
   def runTest[T](td: TestData[T]): Unit = {
     implicit val ss: SessionSerializer[T, JValue] = td.sessionSerializer
     implicit val encoder: JwtSessionEncoder[T] = new JwtSessionEncoder[T]
@@ -108,13 +148,28 @@ class SessionManagerJwtEncoderTest extends AnyFlatSpec with Matchers {
     payloadJson \\ "iat" should equal(JInt(nowMillis / 1000L))
 
     payloadJson \\ "jti" match {
-      case JString(iat) => iat should startWith regex "testIssuer-.*"
+      case JString(jti) => jti should fullyMatch regex "testIssuer-[0-9A-HJKMNP-TV-Z]{26}"
       case oth => fail(s"Invalid 'jti' claim format. Expected JString(...), got  $oth")
     }
 
     payloadJson \\ "data" should equal(JString("testPayload"))
   }
 
+  it should "encode the header and claims of the given config, when the config changes" in {
+    val encoder = new JwtSessionEncoder[String]
+    val nowMillis = 1447416197071L
+
+    List("issuer1", "issuer2", "issuer1").foreach { issuer =>
+      val config = defaultConfig.copy(jwt = defaultConfig.jwt.copy(issuer = Some(issuer)),
+                                      jws = JwsConfig(alg = HmacSHA256(s"$issuer-secret")))
+      val encoded = encoder.encode("testPayload", nowMillis, config)
+
+      val List(_, payload, _) = encoded.split("\\.").toList
+      parse(new String(Base64.getUrlDecoder.decode(payload), "utf-8")) \ "iss" should equal(JString(issuer))
+      encoder.decode(encoded, config).get.signatureMatches should be(true)
+    }
+  }
+
   it should "encode JWT with default exp claim" in {
     val encoder = new JwtSessionEncoder[String]
     val nowMillis = 1447416197071L
@@ -148,7 +203,8 @@ class SessionManagerJwtEncoderTest extends AnyFlatSpec with Matchers {
   }
 
   for {
-    (alg, config) <- List(("HS256", defaultConfig), ("RS256", rsaSigConfig()))
+    (alg, config) <- List(("HS256", defaultConfig), ("RS256", rsaSigConfig()), ("ES256", ecdsaSigConfig())) ++
+      edDsaSigConfig().map(("EdDSA", _))
   } {
     it should s"encode a correct JWT header (alg = $alg)" in {
       val encoder = new JwtSessionEncoder[String]
@@ -198,6 +254,150 @@ class SessionManagerJwtEncoderTest extends AnyFlatSpec with Matchers {
     managerRsa1.decode(managerRsa2.encode(SessionData("john", 40))) shouldBe a[SessionResult.Corrupt]
   }
 
+  it should "verify the signature before deserializing the session data" in {
+    var deserialized = 0
+    val ss: SessionSerializer[String, JValue] = new SessionSerializer[String, JValue] {
+      override def serialize(t: String) = JString(t)
+      override def deserialize(r: JValue) = {
+        deserialized += 1
+        JValueSessionSerializer.stringToJValueSessionSerializer.deserialize(r)
+      }
+    }
+    val encoder = new JwtSessionEncoder[String]()(ss, DefaultFormats)
+    val encoded = encoder.encode("username", 1447416197071L, hmacSha256Config)
+
+    encoder.decode(tamper(encoded), hmacSha256Config).failed.get shouldBe a[CorruptSessionException]
+    deserialized should be(0)
+    encoder.decode(encoded, hmacSha256Config).get.t should be("username")
+    deserialized should be(1)
+  }
+
+  it should "not deserialize the data of an expired session" in {
+    implicit val ss: SessionSerializer[SessionData, JValue] = JValueSessionSerializer.caseClass[SessionData]
+    val encoder = new JwtSessionEncoder[SessionData]
+    val nowMillis = 1447416197071L
+    val encoded = encoder.encode(SessionData("john", 40), nowMillis, configMaxAge)
+
+    encoder.decode(encoded, nowMillis + 1000L * 60 * 60 * 3, configMaxAge).failed.get shouldBe an[
+      ExpiredSessionException]
+    encoder.decode(encoded, nowMillis + 1000L, configMaxAge).get.t should be(SessionData("john", 40))
+  }
+
+  it should "check the expiry before verifying the signature" in {
+    implicit val ss: SessionSerializer[SessionData, JValue] = JValueSessionSerializer.caseClass[SessionData]
+    var verified = 0
+    val encoder = new JwtSessionEncoder[SessionData] {
+      override protected def jwsAlgorithm(key: SessionKey, config: SessionConfig): JwsAlgorithm = {
+        verified += 1
+        super.jwsAlgorithm(key, config)
+      }
+    }
+    val nowMillis = 1447416197071L
+    val encoded = new JwtSessionEncoder[SessionData].encode(SessionData("john", 40), nowMillis, configMaxAge)
+
+    encoder.decode(tamper(encoded), nowMillis + 1000L * 60 * 60 * 3, configMaxAge).failed.get shouldBe an[
+      ExpiredSessionException]
+    verified should be(0)
+    encoder.decode(tamper(encoded), nowMillis + 1000L, configMaxAge).failed.get shouldBe a[CorruptSessionException]
+    verified should be(1)
+  }
+
+  it should "not parse the payload of a forged token" in {
+    implicit val ss: SessionSerializer[SessionData, JValue] = JValueSessionSerializer.caseClass[SessionData]
+    var decoded = 0
+    val streaming = JwtJsonCodec.Streaming
+    val countingCodec = new JwtJsonCodec {
+      override def encodeHeader(alg: String, keyId: Option[String], zip: Option[String]): Array[Byte] =
+        streaming.encodeHeader(alg, keyId, zip)
+      override def decodeHeader(header: Array[Byte]): Try[JwtHeader] = streaming.decodeHeader(header)
+      override def encodePayload(data: JValue, claims: JwtClaims): Array[Byte] = streaming.encodePayload(data, claims)
+      override def decodePayload(payload: Array[Byte]): Try[JwtPayload] = {
+        decoded += 1
+        streaming.decodePayload(payload)
+      }
+      override def peekExpiry(payload: Array[Byte]): Option[Long] = streaming.peekExpiry(payload)
+      override def encodeValue(value: JValue): Array[Byte] = streaming.encodeValue(value)
+      override def decodeValue(json: Array[Byte]): Try[JValue] = streaming.decodeValue(json)
+    }
+    val encoder = new JwtSessionEncoder[SessionData] {
+      override protected def jsonCodec: JwtJsonCodec = countingCodec
+    }
+    val config = configMaxAge.copy(tokenMigrationV0_5_3Enabled = true)
+    val nowMillis = 1447416197071L
+    val encoded = encoder.encode(SessionData("john", 40), nowMillis, config)
+
+    encoder.decode(tamper(encoded), nowMillis + 1000L, config).failed.get shouldBe a[CorruptSessionException]
+    decoded should be(0)
+    encoder.decode(encoded, nowMillis + 1000L, config).get.t should be(SessionData("john", 40))
+    decoded should be(1)
+  }
+
+  it should "decode RS256 tokens using only the public key" in {
+    implicit val ss: SessionSerializer[SessionData, JValue] = JValueSessionSerializer.caseClass[SessionData]
+    implicit val encoder: JwtSessionEncoder[SessionData] = new JwtSessionEncoder[SessionData]
+
+    val keyPair = {
+      val keyPairGen = KeyPairGenerator.getInstance("RSA")
+      keyPairGen.initialize(2048)
+      keyPairGen.generateKeyPair()
+    }
+    val signingManager =
+      new SessionManager(defaultConfig.copy(jws = JwsConfig(alg = JwsAlgorithm.Rsa(keyPair.getPrivate)))).clientSessionManager
+    val verifyingManager = new SessionManager(
+      defaultConfig.copy(jws = JwsConfig(alg = JwsAlgorithm.RsaVerifyOnly(keyPair.getPublic)))).clientSessionManager
+
+    val data = SessionData("john", 45)
+    val encoded = signingManager.encode(data)
+
+    verifyingManager.decode(encoded) should be(SessionResult.Decoded(data))
+    verifyingManager.decode(tamper(encoded)) shouldBe a[SessionResult.Corrupt]
+    verifyingManager.decode(new SessionManager(rsaSigConfig()).clientSessionManager.encode(data)) shouldBe a[
+      SessionResult.Corrupt]
+    an[UnsupportedOperationException] should be thrownBy verifyingManager.encode(data)
+  }
+
+  it should "decode ES256 tokens using only the public key" in {
+    implicit val ss: SessionSerializer[SessionData, JValue] = JValueSessionSerializer.caseClass[SessionData]
+    implicit val encoder: JwtSessionEncoder[SessionData] = new JwtSessionEncoder[SessionData]
+
+    val signingConfig = ecdsaSigConfig()
+    val signingManager = new SessionManager(signingConfig).clientSessionManager
+    val publicKey = signingConfig.jws.alg.asInstanceOf[JwsAlgorithm.Ecdsa].publicKey
+    val verifyingManager = new SessionManager(
+      defaultConfig.copy(jws = JwsConfig(alg = JwsAlgorithm.EcdsaVerifyOnly(publicKey)))).clientSessionManager
+
+    val data = SessionData("john", 45)
+    val encoded = signingManager.encode(data)
+
+    verifyingManager.decode(encoded) should be(SessionResult.Decoded(data))
+    verifyingManager.decode(tamper(encoded)) shouldBe a[SessionResult.Corrupt]
+    verifyingManager.decode(new SessionManager(ecdsaSigConfig()).clientSessionManager.encode(data)) shouldBe a[
+      SessionResult.Corrupt]
+    an[UnsupportedOperationException] should be thrownBy verifyingManager.encode(data)
+  }
+
+  it should "encode+decode and verify EdDSA tokens" in {
+    val config = edDsaSigConfig()
+    assume(config.isDefined)
+
+    implicit val ss: SessionSerializer[SessionData, JValue] = JValueSessionSerializer.caseClass[SessionData]
+    implicit val encoder: JwtSessionEncoder[SessionData] = new JwtSessionEncoder[SessionData]
+
+    val manager = new SessionManager(config.get).clientSessionManager
+    val publicKey = config.get.jws.alg.asInstanceOf[JwsAlgorithm.EdDsa].publicKey
+    val verifyingManager = new SessionManager(
+      defaultConfig.copy(jws = JwsConfig(alg = JwsAlgorithm.EdDsaVerifyOnly(publicKey)))).clientSessionManager
+
+    val data = SessionData("john", 45)
+    val encoded = manager.encode(data)
+
+    manager.decode(encoded) should be(SessionResult.Decoded(data))
+    verifyingManager.decode(encoded) should be(SessionResult.Decoded(data))
+    verifyingManager.decode(tamper(encoded)) shouldBe a[SessionResult.Corrupt]
+    manager.decode(new SessionManager(edDsaSigConfig().get).clientSessionManager.encode(data)) shouldBe a[
+      SessionResult.Corrupt]
+  }
+
   it should "not decode a token with a non compatible signatures [RSA vs HMAC SHA256]" in {
     implicit val ss: SessionSerializer[SessionData, JValue] = JValueSessionSerializer.caseClass[SessionData]
     implicit val encoder: JwtSessionEncoder[SessionData] = new JwtSessionEncoder[SessionData]
@@ -219,6 +419,62 @@ class SessionManagerJwtEncoderTest extends AnyFlatSpec with Matchers {
     manager.decode("Bearer " + manager.encode(data)) should be(SessionResult.Decoded(data))
   }
 
+  it should "decode tokens signed with a verify-only key from the key ring" in {
+    implicit val ss: SessionSerializer[SessionData, JValue] = JValueSessionSerializer.caseClass[SessionData]
+    implicit val encoder: JwtSessionEncoder[SessionData] = new JwtSessionEncoder[SessionData]
+    val k1 = SessionKey("k1", "1" * 64)
+    val k2 = SessionKey("k2", "2" * 64)
+
+    for (config <- List(defaultConfig, configEncrypted)) {
+      val managerK1 = new SessionManager(config.copy(keyRing = Some(SessionKeyRing(k1)))).clientSessionManager
+      val managerK2 =
+        new SessionManager(config.copy(keyRing = Some(SessionKeyRing(k2, verifyOnly = List(k1))))).clientSessionManager
+      val managerNoRing = new SessionManager(config).clientSessionManager
+
+      val data = SessionData("john", 60)
+      val encodedK1 = managerK1.encode(data)
+
+      val headerJson = parse(new String(Base64.getUrlDecoder.decode(encodedK1.split("\\.").head), "utf-8"))
+      headerJson \ "kid" should equal(JString("k1"))
+
+      managerK2.decode(encodedK1) should be(SessionResult.Decoded(data))
+      managerK2.decode(managerNoRing.encode(data)) should be(SessionResult.Decoded(data))
+      managerK1.decode(managerK2.encode(data)) shouldBe a[SessionResult.Corrupt]
+    }
+  }
+
+  it should "decode tokens using the verified session cache" in {
+    implicit val ss: SessionSerializer[SessionData, JValue] = JValueSessionSerializer.caseClass[SessionData]
+    implicit val encoder: JwtSessionEncoder[SessionData] = new JwtSessionEncoder[SessionData]
+    val manager = new SessionManager(configEncryptedMaxAge.copy(verifiedSessionCacheMaxSize = Some(10))).clientSessionManager
+
+    val data = SessionData("john", 70)
+    val encoded = manager.encode(data)
+
+    manager.decode(encoded) should be(SessionResult.Decoded(data))
+    manager.decode(encoded) should be(SessionResult.Decoded(data))
+    manager.verifiedSessionCache.map(c => (c.hits, c.misses)) should be(Some((1L, 1L)))
+  }
+
+  it should "compress large payloads without a dictionary, as indicated by the zip header" in {
+    val encoder = new JwtSessionEncoder[String]()(JValueSessionSerializer.stringToJValueSessionSerializer, DefaultFormats)
+    val data = "admin," * 100
+
+    val List(header, payload, _) = encoder.encode(data, 1447416197071L, configCompressed).split("\\.").toList
+    val uncompressed = encoder.encode(data, 1447416197071L, defaultConfig)
+
+    parse(new String(Base64.getUrlDecoder.decode(header), "utf-8")) \ "zip" should equal(JString("DEF"))
+    val inflater = new Inflater(true)
+    inflater.setInput(Base64.getUrlDecoder.decode(payload))
+    val inflated = new Array[Byte](4096)
+    val payloadJson = parse(new String(inflated, 0, inflater.inflate(inflated), "utf-8"))
+    payloadJson \ "data" should equal(JString(data))
+    header.length + payload.length should be < uncompressed.length / 2
+
+    val small = encoder.encode("admin", 1447416197071L, configCompressed)
+    small should be(encoder.encode("admin", 1447416197071L, defaultConfig))
+  }
+
   it should "not decode v0.5.2 tokens without config" in {
     implicit val ss: SessionSerializer[SessionData, JValue] = JValueSessionSerializer.caseClass[SessionData]
     implicit val encoder: JwtSessionEncoder[SessionData] = new JwtSessionEncoder[SessionData]
@@ -240,6 +496,39 @@ class SessionManagerJwtEncoderTest extends AnyFlatSpec with Matchers {
     manager.decode("Bearer " + encoder.encodeV0_5_2(data, manager.nowMillis, manager.config)) should be(
       SessionResult.DecodedLegacy(data))
   }
+
+  it should "render empty values in the session data as configured by the formats" in {
+    val ss = new SessionSerializer[JValue, JValue] {
+      override def serialize(t: JValue) = t
+      override def deserialize(r: JValue) = Try(r)
+    }
+    val data = JObject("a" -> JNothing, "b" -> JArray(List(JNothing, JInt(1))))
+    def encodedData(formats: Formats) = {
+      val encoded = new JwtSessionEncoder[JValue]()(ss, formats).encode(data, 1447416197071L, defaultConfig)
+      parse(new String(Base64.getUrlDecoder.decode(encoded.split("\\.")(1)), "utf-8")) \ "data"
+    }
+
+    encodedData(DefaultFormats) should be(JObject("b" -> JArray(List(JInt(1)))))
+    encodedData(DefaultFormats.preservingEmptyValues) should be(
+      JObject("a" -> JNull, "b" -> JArray(List(JNull, JInt(1)))))
+  }
+
+  it should "encode and decode payloads using the deprecated hooks" in {
+    implicit val ss: SessionSerializer[SessionData, JValue] = JValueSessionSerializer.caseClass[SessionData]
+    class DeprecatedHooksEncoder extends JwtSessionEncoder[SessionData] {
+      @nowarn("cat=deprecation")
+      def roundTrip(data: SessionData): Try[(SessionData, Option[Long])] =
+        decode(encode(createPayload(data, 1447416197071L, configMaxAge))).flatMap(extractPayload(_, configMaxAge))
+
+      @nowarn("cat=deprecation")
+      def header: JValue = createHeader(defaultConfig)
+    }
+    val encoder = new DeprecatedHooksEncoder
+
+    encoder.roundTrip(SessionData("john", 40)) should be(
+      Success((SessionData("john", 40), Some((1447416197071L / 1000L + 3600L) * 1000L))))
+    encoder.header \ "typ" should be(JString("JWT"))
+  }
 }
 
 case class SessionData(userName: String, userId: Int)